@@ -1,17 +1,25 @@
 package eu.kickuth.mthesis;
 
-import crosby.binary.osmosis.OsmosisReader;
+import eu.kickuth.mthesis.graph.ContractionHierarchy;
 import eu.kickuth.mthesis.graph.Graph;
+import eu.kickuth.mthesis.graph.GraphSnapshot;
+import eu.kickuth.mthesis.graph.Landmarks;
 import eu.kickuth.mthesis.graph.Node;
+import eu.kickuth.mthesis.utils.OSMChangeUpdater;
 import eu.kickuth.mthesis.utils.OSMPreprocessor;
 import eu.kickuth.mthesis.utils.OSMReader;
 import eu.kickuth.mthesis.utils.OSMRoadSimplification;
+import eu.kickuth.mthesis.utils.RoadIndex;
 import eu.kickuth.mthesis.web.Webserver;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+import org.openstreetmap.osmosis.pbf2.v0_6.PbfReader;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
 
 import java.io.*;
+import java.nio.file.Files;
 
 import static eu.kickuth.mthesis.utils.Settings.*;
 
@@ -20,13 +28,21 @@ public class Main {
     private static final Logger logger = LogManager.getLogger(Main.class);
 
 
+    /**
+     * Start the web visualization.
+     * @param args optional OSM change files (.osc or .osc.gz), applied in the given order before loading the graph
+     */
     public static void main(String... args) {
         preprocess();
+        for (String changeFile : args) {
+            applyChanges(new File(changeFile));
+        }
 
         Graph osmGraph = loadGraph();
 
         // output some graph stats
-        logger.info("Node count: {}", osmGraph.adjList.size());
+        logger.info("Node count: {}", osmGraph.nodes.size());
+        logger.info("Edge count: {}", osmGraph.getCSRGraph().getEdgeCount());
         logger.info("POI count: {}", osmGraph.pois.size());
         logger.info("Types of POIs: {}", osmGraph.poiClassesToCount.size());
 
@@ -55,9 +71,14 @@ public class Main {
         if (FORCE_PREPROCESS || !OSM_DUMP_PROCESSED.exists()) {
             logger.info("Preprocessing OSM file");
             try {
-                final File temporary_dump = new File(OSM_DUMP.getPath() + "_TEMP");
-                processData(new OSMPreprocessor(temporary_dump), OSM_DUMP);
-                processData(new OSMRoadSimplification(OSM_DUMP_PROCESSED), temporary_dump);
+                if (FUSED_PREPROCESSING) {
+                    // single pass: preprocessed entities are simplified right away
+                    processData(new OSMPreprocessor(new OSMRoadSimplification(OSM_DUMP_PROCESSED)), OSM_DUMP);
+                } else {
+                    final File temporary_dump = new File(OSM_DUMP.getPath() + "_TEMP");
+                    processData(new OSMPreprocessor(temporary_dump), OSM_DUMP);
+                    processData(new OSMRoadSimplification(OSM_DUMP_PROCESSED), temporary_dump);
+                }
             } catch (FileNotFoundException e) {
                 logger.error("Failed to preprocess data!", e);
             } finally {
@@ -70,26 +91,144 @@ public class Main {
     }
 
     public static Graph loadGraph() {
-        logger.info("Loading graph from preprocessed file");
-        OSMReader graphReader = new OSMReader();
-        processData(graphReader, OSM_DUMP_PROCESSED);
-        return graphReader.getOsmGraph();
+        Graph osmGraph = readGraph(MEMORY_MAPPED_GRAPH);
+        if (USE_CONTRACTION_HIERARCHY) {
+            osmGraph.setContractionHierarchy(loadContractionHierarchy(osmGraph));
+        } else if (POINT_TO_POINT_SEARCH.equals("astar") && LANDMARK_COUNT > 0) {
+            osmGraph.setLandmarks(loadLandmarks(osmGraph));
+        }
+        return osmGraph;
     }
 
     /**
-     * Read binary OSM data using Osmosis
+     * Read the graph from its snapshot, or from the preprocessed file if there is no up to date snapshot.
+     * @param memoryMapped keep the graph data mapped off-heap?
+     * @return the graph, without speed-up data
+     */
+    private static Graph readGraph(boolean memoryMapped) {
+        Graph osmGraph = null;
+        // the snapshot is outdated, if the preprocessed file was written after it
+        if (!FORCE_PREPROCESS && GRAPH_SNAPSHOT.exists() &&
+                GRAPH_SNAPSHOT.lastModified() >= OSM_DUMP_PROCESSED.lastModified()) {
+            try {
+                logger.info("Loading graph from snapshot");
+                osmGraph = GraphSnapshot.read(GRAPH_SNAPSHOT, memoryMapped);
+            } catch (IOException e) {
+                logger.warn("Failed to load graph snapshot, reading preprocessed file.", e);
+            }
+        }
+        if (osmGraph == null) {
+            logger.info("Loading graph from preprocessed file");
+            OSMReader graphReader = new OSMReader();
+            processData(graphReader, OSM_DUMP_PROCESSED);
+            osmGraph = graphReader.getOsmGraph();
+            try {
+                GraphSnapshot.write(osmGraph, GRAPH_SNAPSHOT);
+                if (memoryMapped) {
+                    // continue with the mapped graph, so the parsed one can be garbage collected
+                    osmGraph = GraphSnapshot.read(GRAPH_SNAPSHOT, true);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to store graph snapshot!", e);
+            }
+        }
+        return osmGraph;
+    }
+
+    /**
+     * Apply an OSM change file to the graph snapshot and the road index. The contraction hierarchy and landmarks no
+     * longer match the graph afterwards, they are rebuilt when loading the graph.
+     * @param changeFile OSM change file (.osc), may be gzip compressed (.osc.gz)
+     */
+    private static void applyChanges(File changeFile) {
+        logger.info("Applying OSM changes from {}", changeFile);
+        if (!changeFile.isFile()) {
+            logger.fatal("Failed to apply OSM changes! File {} not found.", changeFile);
+            System.exit(1);
+        }
+        if (!ROAD_INDEX_FILE.exists()) {
+            logger.fatal("No road index found! Set KEEP_ROAD_INDEX and preprocess again to apply OSM changes.");
+            System.exit(1);
+        }
+        try {
+            RoadIndex roadIndex = RoadIndex.read(ROAD_INDEX_FILE);
+            // heap copy, since the snapshot file is replaced
+            OSMChangeUpdater updater = new OSMChangeUpdater(roadIndex, readGraph(false));
+            XmlChangeReader reader = new XmlChangeReader(changeFile, false,
+                    changeFile.getName().endsWith(".gz") ? CompressionMethod.GZip : CompressionMethod.None);
+            reader.setChangeSink(updater);
+            reader.run();
+
+            GraphSnapshot.write(updater.getUpdatedGraph(), GRAPH_SNAPSHOT);
+            roadIndex.write(ROAD_INDEX_FILE);
+            Files.deleteIfExists(CH_FILE.toPath());
+            Files.deleteIfExists(LANDMARK_FILE.toPath());
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            logger.fatal("Failed to apply OSM changes from {}!", changeFile, e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Load the contraction hierarchy of a graph from file. Builds and stores it, if there is no valid file.
+     * @param osmGraph the graph loaded from the preprocessed file
+     * @return contraction hierarchy for the graph
+     */
+    private static ContractionHierarchy loadContractionHierarchy(Graph osmGraph) {
+        if (!FORCE_PREPROCESS && CH_FILE.exists()) {
+            try {
+                logger.info("Loading contraction hierarchy from file");
+                return ContractionHierarchy.read(CH_FILE, osmGraph);
+            } catch (IOException e) {
+                logger.warn("Failed to load contraction hierarchy, rebuilding it.", e);
+            }
+        }
+        ContractionHierarchy ch = ContractionHierarchy.build(osmGraph);
+        try {
+            ch.write(CH_FILE);
+        } catch (IOException e) {
+            logger.error("Failed to store contraction hierarchy!", e);
+        }
+        return ch;
+    }
+
+    /**
+     * Load the landmark tables of a graph from file. Computes and stores them, if there is no valid file.
+     * @param osmGraph the graph loaded from the preprocessed file
+     * @return landmark tables for the graph
+     */
+    private static Landmarks loadLandmarks(Graph osmGraph) {
+        if (!FORCE_PREPROCESS && LANDMARK_FILE.exists()) {
+            try {
+                logger.info("Loading landmarks from file");
+                return Landmarks.read(LANDMARK_FILE, osmGraph);
+            } catch (IOException e) {
+                logger.warn("Failed to load landmarks, recomputing them.", e);
+            }
+        }
+        Landmarks landmarks = Landmarks.select(osmGraph, LANDMARK_COUNT);
+        try {
+            landmarks.write(LANDMARK_FILE);
+        } catch (IOException e) {
+            logger.error("Failed to store landmarks!", e);
+        }
+        return landmarks;
+    }
+
+    /**
+     * Read binary OSM data using Osmosis. Blocks are decoded on multiple threads, but the sink still receives all
+     * entities in file order.
      * @param sink OSM data processor
      * @param dataFile Binary file
      */
     private static <T extends Sink> void processData(T sink, File dataFile) {
         logger.debug("Reading File {}", dataFile);
-        try {
-            OsmosisReader reader = new OsmosisReader(new FileInputStream(dataFile));
-            reader.setSink(sink);
-            reader.run();
-        } catch (FileNotFoundException e) {
-            logger.fatal("Failed to process OSM data file!", e);
+        if (!dataFile.isFile()) {
+            logger.fatal("Failed to process OSM data file! File {} not found.", dataFile);
             System.exit(1);
         }
+        PbfReader reader = new PbfReader(dataFile, PREPROCESSING_THREADS);
+        reader.setSink(sink);
+        reader.run();
     }
 }
@@ -0,0 +1,168 @@
+package eu.kickuth.mthesis.graph;
+
+import java.io.IOException;
+
+/**
+ * Immutable compressed sparse row (CSR) representation of the graph's edges.
+ *
+ * The outgoing edges of node v are stored at the edge indices [outBegin(v), outEnd(v)), its incoming edges at
+ * [inBegin(v), inEnd(v)). Edges of a node keep the order in which they were added to the graph.
+ *
+ * The arrays are heap arrays, or memory mapped from a graph snapshot.
+ */
+public final class CSRGraph {
+
+    private final int nodeCount;
+
+    // forward direction: offsets into target/cost arrays, indexed by node id
+    private final IntColumn outOffsets;
+    private final IntColumn outTargets;
+    private final DoubleColumn outCosts;
+
+    // reverse direction: offsets into source/cost arrays, indexed by node id
+    private final IntColumn inOffsets;
+    private final IntColumn inSources;
+    private final DoubleColumn inCosts;
+
+    /**
+     * Build the CSR arrays from an unordered edge list.
+     * @param nodeCount number of nodes in the graph
+     * @param sources edge source ids
+     * @param targets edge target ids
+     * @param costs edge costs
+     * @param edgeCount number of valid entries in the edge arrays
+     */
+    CSRGraph(int nodeCount, int[] sources, int[] targets, double[] costs, int edgeCount) {
+        this.nodeCount = nodeCount;
+        int[] outOffsets = new int[nodeCount + 1];
+        int[] outTargets = new int[edgeCount];
+        double[] outCosts = new double[edgeCount];
+        int[] inOffsets = new int[nodeCount + 1];
+        int[] inSources = new int[edgeCount];
+        double[] inCosts = new double[edgeCount];
+
+        // count degrees
+        for (int e = 0; e < edgeCount; e++) {
+            outOffsets[sources[e] + 1]++;
+            inOffsets[targets[e] + 1]++;
+        }
+        // prefix sums
+        for (int v = 0; v < nodeCount; v++) {
+            outOffsets[v + 1] += outOffsets[v];
+            inOffsets[v + 1] += inOffsets[v];
+        }
+        // fill in edges (stable, so insertion order is kept per node)
+        int[] outFill = new int[nodeCount];
+        int[] inFill = new int[nodeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            int source = sources[e];
+            int target = targets[e];
+            int outIndex = outOffsets[source] + outFill[source]++;
+            outTargets[outIndex] = target;
+            outCosts[outIndex] = costs[e];
+            int inIndex = inOffsets[target] + inFill[target]++;
+            inSources[inIndex] = source;
+            inCosts[inIndex] = costs[e];
+        }
+
+        this.outOffsets = IntColumn.wrap(outOffsets);
+        this.outTargets = IntColumn.wrap(outTargets);
+        this.outCosts = DoubleColumn.wrap(outCosts);
+        this.inOffsets = IntColumn.wrap(inOffsets);
+        this.inSources = IntColumn.wrap(inSources);
+        this.inCosts = DoubleColumn.wrap(inCosts);
+    }
+
+    /**
+     * Create a CSR graph from loaded arrays.
+     */
+    private CSRGraph(IntColumn outOffsets, IntColumn outTargets, DoubleColumn outCosts,
+                     IntColumn inOffsets, IntColumn inSources, DoubleColumn inCosts) {
+        this.nodeCount = outOffsets.size() - 1;
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        this.outCosts = outCosts;
+        this.inOffsets = inOffsets;
+        this.inSources = inSources;
+        this.inCosts = inCosts;
+    }
+
+    /**
+     * Write the CSR arrays to a graph snapshot.
+     */
+    void writeTo(GraphSnapshot.Writer out) throws IOException {
+        out.putInt(nodeCount);
+        out.putInt(getEdgeCount());
+        out.putInts(outOffsets, nodeCount + 1);
+        out.putInts(outTargets, getEdgeCount());
+        out.putDoubles(outCosts, getEdgeCount());
+        out.putInts(inOffsets, nodeCount + 1);
+        out.putInts(inSources, getEdgeCount());
+        out.putDoubles(inCosts, getEdgeCount());
+    }
+
+    /**
+     * Read a CSR graph written by {@link #writeTo(GraphSnapshot.Writer)}.
+     */
+    static CSRGraph readFrom(GraphSnapshot.Reader in) throws IOException {
+        int nodeCount = in.getInt();
+        int edgeCount = in.getInt();
+        return new CSRGraph(in.getInts(nodeCount + 1), in.getInts(edgeCount), in.getDoubles(edgeCount),
+                in.getInts(nodeCount + 1), in.getInts(edgeCount), in.getDoubles(edgeCount));
+    }
+
+    /**
+     * @return true, if the arrays are stored outside the JVM heap (e.g. memory mapped)
+     */
+    public boolean isOffHeap() {
+        return outTargets.isDirect();
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return outTargets.size();
+    }
+
+    public int outBegin(int node) {
+        return outOffsets.get(node);
+    }
+
+    public int outEnd(int node) {
+        return outOffsets.get(node + 1);
+    }
+
+    public int outDegree(int node) {
+        return outOffsets.get(node + 1) - outOffsets.get(node);
+    }
+
+    public int outTarget(int edge) {
+        return outTargets.get(edge);
+    }
+
+    public double outCost(int edge) {
+        return outCosts.get(edge);
+    }
+
+    public int inBegin(int node) {
+        return inOffsets.get(node);
+    }
+
+    public int inEnd(int node) {
+        return inOffsets.get(node + 1);
+    }
+
+    public int inDegree(int node) {
+        return inOffsets.get(node + 1) - inOffsets.get(node);
+    }
+
+    public int inSource(int edge) {
+        return inSources.get(edge);
+    }
+
+    public double inCost(int edge) {
+        return inCosts.get(edge);
+    }
+}
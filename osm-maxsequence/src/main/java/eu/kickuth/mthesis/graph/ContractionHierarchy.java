@@ -0,0 +1,793 @@
+package eu.kickuth.mthesis.graph;
+
+import eu.kickuth.mthesis.graph.Graph.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Contraction Hierarchies (CH) overlay for fast point-to-point shortest path queries.
+ *
+ * Nodes are contracted one by one in order of importance. Whenever contracting a node would destroy a shortest path
+ * between two of its neighbours, a shortcut edge is added. Queries run a bidirectional Dijkstra that only relaxes edges
+ * towards more important (higher ranked) nodes, which settles very few nodes. Shortcuts store the contracted node they
+ * bypass, so found paths can be unpacked into original graph edges.
+ */
+public final class ContractionHierarchy {
+
+    private static final Logger logger = LogManager.getLogger(ContractionHierarchy.class);
+
+    private static final int FILE_MAGIC = 0x43480001;  // "CH", format version 1
+    private static final int NO_MIDDLE = -1;  // middle node of original (non shortcut) edges
+
+    // limit of settled nodes per witness search. Lower values speed up preprocessing but add more shortcuts.
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    private final Graph graph;
+    private final int nodeCount;
+    private final int originalEdgeCount;  // edge count of the graph, used to detect outdated files
+    private final int[] ranks;  // contraction order of each node
+
+    // upward graph: edges to higher ranked nodes, used by the forward search
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final double[] upCosts;
+    private final int[] upMiddles;
+
+    // downward graph in reverse: edges from higher ranked nodes, used by the backward search
+    private final int[] downOffsets;
+    private final int[] downSources;
+    private final double[] downCosts;
+    private final int[] downMiddles;
+
+    private ContractionHierarchy(Graph graph, int originalEdgeCount, int[] ranks,
+                                 int[] upOffsets, int[] upTargets, double[] upCosts, int[] upMiddles,
+                                 int[] downOffsets, int[] downSources, double[] downCosts, int[] downMiddles) {
+        this.graph = graph;
+        this.nodeCount = ranks.length;
+        this.originalEdgeCount = originalEdgeCount;
+        this.ranks = ranks;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upCosts = upCosts;
+        this.upMiddles = upMiddles;
+        this.downOffsets = downOffsets;
+        this.downSources = downSources;
+        this.downCosts = downCosts;
+        this.downMiddles = downMiddles;
+    }
+
+    /**
+     * Contract all nodes of a graph.
+     * @param graph the graph to preprocess. Will be frozen, if it is not yet.
+     * @return the contraction hierarchy for the graph
+     */
+    public static ContractionHierarchy build(Graph graph) {
+        logger.info("Building contraction hierarchy");
+        long startTime = System.currentTimeMillis();
+        ContractionHierarchy ch = new Contractor(graph).contract();
+        logger.info("Built contraction hierarchy with {} edges ({} original) in {}s.",
+                ch.upTargets.length + ch.downSources.length, ch.originalEdgeCount,
+                (System.currentTimeMillis() - startTime) / 1000);
+        return ch;
+    }
+
+    /**
+     * Check whether this hierarchy was built for a graph with the given structure.
+     * @param g the graph to check
+     * @return true, if node and edge counts match
+     */
+    public boolean matches(Graph g) {
+        CSRGraph edges = g.getCSRGraph();
+        return edges.getNodeCount() == nodeCount && edges.getEdgeCount() == originalEdgeCount;
+    }
+
+    public int getRank(int node) {
+        return ranks[node];
+    }
+
+    /**
+     * Create a query workspace. Queries are not thread-safe, so each thread needs its own.
+     * @return a new query object
+     */
+    public Query createQuery() {
+        return new Query();
+    }
+
+    /**
+     * Store the hierarchy in a binary file.
+     * @param file the output file
+     * @throws IOException if writing fails
+     */
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(nodeCount);
+            out.writeInt(originalEdgeCount);
+            out.writeInt(upTargets.length);
+            out.writeInt(downSources.length);
+            writeInts(out, ranks);
+            writeInts(out, upOffsets);
+            writeInts(out, upTargets);
+            writeDoubles(out, upCosts);
+            writeInts(out, upMiddles);
+            writeInts(out, downOffsets);
+            writeInts(out, downSources);
+            writeDoubles(out, downCosts);
+            writeInts(out, downMiddles);
+        }
+    }
+
+    /**
+     * Load a hierarchy from a binary file.
+     * @param file the input file
+     * @param graph the graph the hierarchy was built for
+     * @return the loaded hierarchy
+     * @throws IOException if reading fails or the file does not belong to the graph
+     */
+    public static ContractionHierarchy read(File file, Graph graph) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a contraction hierarchy file: " + file);
+            }
+            int nodeCount = in.readInt();
+            int originalEdgeCount = in.readInt();
+            int upCount = in.readInt();
+            int downCount = in.readInt();
+            ContractionHierarchy ch = new ContractionHierarchy(graph, originalEdgeCount, readInts(in, nodeCount),
+                    readInts(in, nodeCount + 1), readInts(in, upCount), readDoubles(in, upCount), readInts(in, upCount),
+                    readInts(in, nodeCount + 1), readInts(in, downCount), readDoubles(in, downCount),
+                    readInts(in, downCount));
+            if (!ch.matches(graph)) {
+                throw new IOException("Contraction hierarchy file does not match the graph: " + file);
+            }
+            return ch;
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static double[] readDoubles(DataInputStream in, int count) throws IOException {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Find the cheapest upward edge from a node to a higher ranked target.
+     * @return edge index, -1 if no such edge exists
+     */
+    private int findUpEdge(int node, int target) {
+        int best = -1;
+        for (int e = upOffsets[node]; e < upOffsets[node + 1]; e++) {
+            if (upTargets[e] == target && (best == -1 || upCosts[e] < upCosts[best])) {
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the cheapest edge from a higher ranked source down to a node.
+     * @return edge index, -1 if no such edge exists
+     */
+    private int findDownEdge(int node, int source) {
+        int best = -1;
+        for (int e = downOffsets[node]; e < downOffsets[node + 1]; e++) {
+            if (downSources[e] == source && (best == -1 || downCosts[e] < downCosts[best])) {
+                best = e;
+            }
+        }
+        return best;
+    }
+
+
+    /**
+     * Workspace for bidirectional CH queries.
+     */
+    public final class Query {
+
+        private final IndexedMinHeap forwardQueue = new IndexedMinHeap(nodeCount);
+        private final IndexedMinHeap backwardQueue = new IndexedMinHeap(nodeCount);
+        private final double[] forwardDistances = new double[nodeCount];
+        private final double[] backwardDistances = new double[nodeCount];
+        private final int[] forwardParentEdges = new int[nodeCount];
+        private final int[] backwardParentEdges = new int[nodeCount];
+        private final int[] forwardParents = new int[nodeCount];
+        private final int[] backwardParents = new int[nodeCount];
+        // generation stamps, entries of older generations are unset
+        private final int[] forwardGenerations = new int[nodeCount];
+        private final int[] backwardGenerations = new int[nodeCount];
+        private int generation = 0;
+
+        // unpacking stack of edge segments (from, to, cost, middle)
+        private int[] stackFrom = new int[64];
+        private int[] stackTo = new int[64];
+        private double[] stackCosts = new double[64];
+        private int[] stackMiddles = new int[64];
+        private int stackSize = 0;
+
+        // nodes settled by the last search space search, and their distances
+        private int[] settledNodes = new int[64];
+        private double[] settledDistances = new double[64];
+        private int settledCount = 0;
+
+        private Query() {
+        }
+
+        public boolean belongsTo(ContractionHierarchy ch) {
+            return ContractionHierarchy.this == ch;
+        }
+
+        /**
+         * Compute the distance of the shortest s-t-path.
+         * @param source source node id
+         * @param target target node id
+         * @return shortest path cost, infinity if no path exists
+         */
+        public double distance(int source, int target) {
+            int meetingNode = search(source, target);
+            return meetingNode == -1 ? Double.POSITIVE_INFINITY
+                    : forwardDistances[meetingNode] + backwardDistances[meetingNode];
+        }
+
+        /**
+         * Compute the shortest s-t-path in the original graph.
+         * @param source source node id
+         * @param target target node id
+         * @return Shortest path, empty Path if no path exists
+         */
+        public Path shortestPath(int source, int target) {
+            int meetingNode = search(source, target);
+            if (meetingNode == -1) {
+                return graph.new Path();
+            }
+
+            // collect the CH edges of the path in reverse order, so the first edge ends up on top of the stack
+            stackSize = 0;
+            for (int node = meetingNode; node != target; node = backwardParents[node]) {
+                int e = backwardParentEdges[node];
+                push(node, backwardParents[node], downCosts[e], downMiddles[e]);
+            }
+            reverseStack();
+            for (int node = meetingNode; node != source; node = forwardParents[node]) {
+                int e = forwardParentEdges[node];
+                push(forwardParents[node], node, upCosts[e], upMiddles[e]);
+            }
+
+            Path path = graph.new Path();
+            double cost = 0;
+            path.addLast(source, 0);
+            while (stackSize > 0) {
+                stackSize--;
+                int from = stackFrom[stackSize];
+                int to = stackTo[stackSize];
+                double edgeCost = stackCosts[stackSize];
+                int middle = stackMiddles[stackSize];
+                if (middle == NO_MIDDLE) {
+                    cost += edgeCost;
+                    path.addLast(to, cost);
+                } else {
+                    // replace shortcut by its two halves, first half on top
+                    int second = findUpEdge(middle, to);
+                    push(middle, to, upCosts[second], upMiddles[second]);
+                    int first = findDownEdge(middle, from);
+                    push(from, middle, downCosts[first], downMiddles[first]);
+                }
+            }
+            return path;
+        }
+
+        /**
+         * Run a complete upward search from a node, for many-to-many queries: the shortest path from a source to a
+         * target meets at the node with the smallest sum of the forward distance from the source and the backward
+         * distance from the target. Settled distances are upper bounds, but exact at that meeting node.
+         * @param start the node to search from
+         * @param forward search along upward edges from a source, or along reversed downward edges from a target
+         * @return number of settled nodes, see getSettledNode and getSettledDistance
+         */
+        int searchSpace(int start, boolean forward) {
+            newGeneration();
+            IndexedMinHeap queue = forward ? forwardQueue : backwardQueue;
+            double[] distances = forward ? forwardDistances : backwardDistances;
+            relax(start, -1, -1, 0, forward);
+            settledCount = 0;
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                double distance = distances[node];
+                if (settledCount == settledNodes.length) {
+                    settledNodes = Arrays.copyOf(settledNodes, settledCount * 2);
+                    settledDistances = Arrays.copyOf(settledDistances, settledCount * 2);
+                }
+                settledNodes[settledCount] = node;
+                settledDistances[settledCount] = distance;
+                settledCount++;
+                if (forward) {
+                    for (int e = upOffsets[node]; e < upOffsets[node + 1]; e++) {
+                        relax(upTargets[e], node, e, distance + upCosts[e], true);
+                    }
+                } else {
+                    for (int e = downOffsets[node]; e < downOffsets[node + 1]; e++) {
+                        relax(downSources[e], node, e, distance + downCosts[e], false);
+                    }
+                }
+            }
+            return settledCount;
+        }
+
+        int getSettledNode(int i) {
+            return settledNodes[i];
+        }
+
+        double getSettledDistance(int i) {
+            return settledDistances[i];
+        }
+
+        /**
+         * Run the bidirectional upward search.
+         * @return the meeting node of the shortest path, -1 if there is no path
+         */
+        private int search(int source, int target) {
+            newGeneration();
+
+            relax(source, -1, -1, 0, true);
+            relax(target, -1, -1, 0, false);
+
+            double best = Double.POSITIVE_INFINITY;
+            int meetingNode = -1;
+            while (true) {
+                boolean forwardActive = !forwardQueue.isEmpty() && forwardQueue.peekKey() < best;
+                boolean backwardActive = !backwardQueue.isEmpty() && backwardQueue.peekKey() < best;
+                if (!forwardActive && !backwardActive) {
+                    break;
+                }
+                boolean forward = forwardActive &&
+                        (!backwardActive || forwardQueue.peekKey() <= backwardQueue.peekKey());
+
+                if (forward) {
+                    int node = forwardQueue.poll();
+                    double distance = forwardDistances[node];
+                    if (backwardGenerations[node] == generation && distance + backwardDistances[node] < best) {
+                        best = distance + backwardDistances[node];
+                        meetingNode = node;
+                    }
+                    for (int e = upOffsets[node]; e < upOffsets[node + 1]; e++) {
+                        relax(upTargets[e], node, e, distance + upCosts[e], true);
+                    }
+                } else {
+                    int node = backwardQueue.poll();
+                    double distance = backwardDistances[node];
+                    if (forwardGenerations[node] == generation && distance + forwardDistances[node] < best) {
+                        best = distance + forwardDistances[node];
+                        meetingNode = node;
+                    }
+                    for (int e = downOffsets[node]; e < downOffsets[node + 1]; e++) {
+                        relax(downSources[e], node, e, distance + downCosts[e], false);
+                    }
+                }
+            }
+            return meetingNode;
+        }
+
+        /**
+         * Start a new search: invalidate all distances and empty the queues.
+         */
+        private void newGeneration() {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(forwardGenerations, 0);
+                Arrays.fill(backwardGenerations, 0);
+                generation = 1;
+            }
+            forwardQueue.clear();
+            backwardQueue.clear();
+        }
+
+        private void relax(int node, int parent, int parentEdge, double distance, boolean forward) {
+            int[] generations = forward ? forwardGenerations : backwardGenerations;
+            double[] distances = forward ? forwardDistances : backwardDistances;
+            if (generations[node] != generation || distance < distances[node]) {
+                generations[node] = generation;
+                distances[node] = distance;
+                (forward ? forwardParents : backwardParents)[node] = parent;
+                (forward ? forwardParentEdges : backwardParentEdges)[node] = parentEdge;
+                (forward ? forwardQueue : backwardQueue).insertOrDecrease(node, distance);
+            }
+        }
+
+        private void push(int from, int to, double cost, int middle) {
+            if (stackSize == stackFrom.length) {
+                int newCapacity = stackSize * 2;
+                stackFrom = Arrays.copyOf(stackFrom, newCapacity);
+                stackTo = Arrays.copyOf(stackTo, newCapacity);
+                stackCosts = Arrays.copyOf(stackCosts, newCapacity);
+                stackMiddles = Arrays.copyOf(stackMiddles, newCapacity);
+            }
+            stackFrom[stackSize] = from;
+            stackTo[stackSize] = to;
+            stackCosts[stackSize] = cost;
+            stackMiddles[stackSize] = middle;
+            stackSize++;
+        }
+
+        private void reverseStack() {
+            for (int i = 0, j = stackSize - 1; i < j; i++, j--) {
+                swap(i, j);
+            }
+        }
+
+        private void swap(int i, int j) {
+            int tmpFrom = stackFrom[i];
+            stackFrom[i] = stackFrom[j];
+            stackFrom[j] = tmpFrom;
+            int tmpTo = stackTo[i];
+            stackTo[i] = stackTo[j];
+            stackTo[j] = tmpTo;
+            double tmpCost = stackCosts[i];
+            stackCosts[i] = stackCosts[j];
+            stackCosts[j] = tmpCost;
+            int tmpMiddle = stackMiddles[i];
+            stackMiddles[i] = stackMiddles[j];
+            stackMiddles[j] = tmpMiddle;
+        }
+    }
+
+
+    /**
+     * Node contraction during preprocessing. Keeps mutable adjacency lists of all not yet contracted nodes.
+     */
+    private static final class Contractor {
+
+        private final Graph graph;
+        private final int nodeCount;
+
+        // mutable adjacency of the remaining graph (original edges and shortcuts)
+        private final int[][] outNodes;
+        private final double[][] outCosts;
+        private final int[][] outMiddles;
+        private final int[] outSizes;
+        private final int[][] inNodes;
+        private final double[][] inCosts;
+        private final int[][] inMiddles;
+        private final int[] inSizes;
+
+        private final boolean[] contracted;
+        private final int[] deletedNeighbours;
+        private final int[] ranks;
+
+        // final hierarchy edges, collected per contracted node
+        private final EdgeBuffer upEdges = new EdgeBuffer();
+        private final EdgeBuffer downEdges = new EdgeBuffer();
+
+        // witness search state
+        private final IndexedMinHeap witnessQueue;
+        private final double[] witnessDistances;
+        private final int[] witnessGenerations;
+        private int witnessGeneration = 0;
+
+        Contractor(Graph graph) {
+            this.graph = graph;
+            CSRGraph edges = graph.getCSRGraph();
+            nodeCount = edges.getNodeCount();
+            outNodes = new int[nodeCount][];
+            outCosts = new double[nodeCount][];
+            outMiddles = new int[nodeCount][];
+            outSizes = new int[nodeCount];
+            inNodes = new int[nodeCount][];
+            inCosts = new double[nodeCount][];
+            inMiddles = new int[nodeCount][];
+            inSizes = new int[nodeCount];
+            for (int v = 0; v < nodeCount; v++) {
+                int outCapacity = Math.max(2, edges.outDegree(v));
+                outNodes[v] = new int[outCapacity];
+                outCosts[v] = new double[outCapacity];
+                outMiddles[v] = new int[outCapacity];
+                int inCapacity = Math.max(2, edges.inDegree(v));
+                inNodes[v] = new int[inCapacity];
+                inCosts[v] = new double[inCapacity];
+                inMiddles[v] = new int[inCapacity];
+            }
+            for (int v = 0; v < nodeCount; v++) {
+                for (int e = edges.outBegin(v); e < edges.outEnd(v); e++) {
+                    addEdge(v, edges.outTarget(e), edges.outCost(e), NO_MIDDLE);
+                }
+            }
+
+            contracted = new boolean[nodeCount];
+            deletedNeighbours = new int[nodeCount];
+            ranks = new int[nodeCount];
+            witnessQueue = new IndexedMinHeap(nodeCount);
+            witnessDistances = new double[nodeCount];
+            witnessGenerations = new int[nodeCount];
+        }
+
+        ContractionHierarchy contract() {
+            IndexedMinHeap priorities = new IndexedMinHeap(nodeCount);
+            for (int v = 0; v < nodeCount; v++) {
+                priorities.insertOrDecrease(v, priority(v));
+            }
+
+            int rank = 0;
+            while (!priorities.isEmpty()) {
+                int v = priorities.poll();
+
+                // lazy update: contract later, if the node became less attractive in the meantime
+                double currentPriority = priority(v);
+                if (!priorities.isEmpty() && currentPriority > priorities.peekKey()) {
+                    priorities.insertOrDecrease(v, currentPriority);
+                    continue;
+                }
+
+                contractNode(v);
+                ranks[v] = rank++;
+                if (rank % 100_000 == 0) {
+                    logger.debug("Contracted {} of {} nodes.", rank, nodeCount);
+                }
+            }
+
+            int[] upOffsets = new int[nodeCount + 1];
+            int[] downOffsets = new int[nodeCount + 1];
+            EdgeBuffer up = upEdges.sortByNode(nodeCount, upOffsets);
+            EdgeBuffer down = downEdges.sortByNode(nodeCount, downOffsets);
+            return new ContractionHierarchy(graph, graph.getCSRGraph().getEdgeCount(), ranks,
+                    upOffsets, up.others, up.costs, up.middles,
+                    downOffsets, down.others, down.costs, down.middles);
+        }
+
+        /**
+         * Priority of a node for contraction. Lower values are contracted first.
+         */
+        private double priority(int v) {
+            int edgeDifference = processNode(v, true) - outSizes[v] - inSizes[v];
+            return edgeDifference + deletedNeighbours[v];
+        }
+
+        private void contractNode(int v) {
+            processNode(v, false);
+
+            // move remaining edges of v into the hierarchy. All neighbours are contracted later, i.e. rank higher.
+            for (int i = 0; i < outSizes[v]; i++) {
+                upEdges.add(v, outNodes[v][i], outCosts[v][i], outMiddles[v][i]);
+                int neighbour = outNodes[v][i];
+                removeEdge(neighbour, v, false);
+                deletedNeighbours[neighbour]++;
+            }
+            for (int i = 0; i < inSizes[v]; i++) {
+                downEdges.add(v, inNodes[v][i], inCosts[v][i], inMiddles[v][i]);
+                int neighbour = inNodes[v][i];
+                removeEdge(neighbour, v, true);
+                deletedNeighbours[neighbour]++;
+            }
+            contracted[v] = true;
+            outSizes[v] = 0;
+            inSizes[v] = 0;
+        }
+
+        /**
+         * Find the shortcuts necessary to contract a node.
+         * @param v the node to contract
+         * @param simulate only count shortcuts, if true. Else, add them to the graph.
+         * @return the number of shortcuts
+         */
+        private int processNode(int v, boolean simulate) {
+            int shortcuts = 0;
+            for (int i = 0; i < inSizes[v]; i++) {
+                int u = inNodes[v][i];
+                double inCost = inCosts[v][i];
+
+                // longest path via v we need to find a witness for
+                double maxCost = Double.NEGATIVE_INFINITY;
+                for (int j = 0; j < outSizes[v]; j++) {
+                    if (outNodes[v][j] != u) {
+                        maxCost = Math.max(maxCost, inCost + outCosts[v][j]);
+                    }
+                }
+                if (maxCost == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+
+                witnessSearch(u, v, maxCost);
+                for (int j = 0; j < outSizes[v]; j++) {
+                    int x = outNodes[v][j];
+                    double viaCost = inCost + outCosts[v][j];
+                    if (x == u || witnessDistance(x) <= viaCost) {
+                        continue;
+                    }
+                    shortcuts++;
+                    if (!simulate) {
+                        addEdge(u, x, viaCost, v);
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /**
+         * Limited Dijkstra from a node in the remaining graph, avoiding the node to contract.
+         */
+        private void witnessSearch(int source, int avoid, double maxCost) {
+            if (++witnessGeneration == Integer.MAX_VALUE) {
+                Arrays.fill(witnessGenerations, 0);
+                witnessGeneration = 1;
+            }
+            witnessQueue.clear();
+            witnessGenerations[source] = witnessGeneration;
+            witnessDistances[source] = 0;
+            witnessQueue.insertOrDecrease(source, 0);
+
+            int settled = 0;
+            while (!witnessQueue.isEmpty() && settled++ < WITNESS_SETTLE_LIMIT) {
+                if (witnessQueue.peekKey() > maxCost) {
+                    break;
+                }
+                int node = witnessQueue.poll();
+                double distance = witnessDistances[node];
+                for (int i = 0; i < outSizes[node]; i++) {
+                    int neighbour = outNodes[node][i];
+                    if (neighbour == avoid) {
+                        continue;
+                    }
+                    double alternative = distance + outCosts[node][i];
+                    if (witnessGenerations[neighbour] != witnessGeneration || alternative < witnessDistances[neighbour]) {
+                        witnessGenerations[neighbour] = witnessGeneration;
+                        witnessDistances[neighbour] = alternative;
+                        witnessQueue.insertOrDecrease(neighbour, alternative);
+                    }
+                }
+            }
+        }
+
+        private double witnessDistance(int node) {
+            return witnessGenerations[node] == witnessGeneration ? witnessDistances[node] : Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Add an edge to the remaining graph. Only the cheapest edge between two nodes is kept.
+         */
+        private void addEdge(int from, int to, double cost, int middle) {
+            if (from == to) {
+                return;
+            }
+            for (int i = 0; i < outSizes[from]; i++) {
+                if (outNodes[from][i] == to) {
+                    if (cost < outCosts[from][i]) {
+                        outCosts[from][i] = cost;
+                        outMiddles[from][i] = middle;
+                        for (int j = 0; j < inSizes[to]; j++) {
+                            if (inNodes[to][j] == from) {
+                                inCosts[to][j] = cost;
+                                inMiddles[to][j] = middle;
+                                break;
+                            }
+                        }
+                    }
+                    return;
+                }
+            }
+            int outIndex = outSizes[from]++;
+            if (outIndex == outNodes[from].length) {
+                outNodes[from] = Arrays.copyOf(outNodes[from], outIndex * 2);
+                outCosts[from] = Arrays.copyOf(outCosts[from], outIndex * 2);
+                outMiddles[from] = Arrays.copyOf(outMiddles[from], outIndex * 2);
+            }
+            outNodes[from][outIndex] = to;
+            outCosts[from][outIndex] = cost;
+            outMiddles[from][outIndex] = middle;
+
+            int inIndex = inSizes[to]++;
+            if (inIndex == inNodes[to].length) {
+                inNodes[to] = Arrays.copyOf(inNodes[to], inIndex * 2);
+                inCosts[to] = Arrays.copyOf(inCosts[to], inIndex * 2);
+                inMiddles[to] = Arrays.copyOf(inMiddles[to], inIndex * 2);
+            }
+            inNodes[to][inIndex] = from;
+            inCosts[to][inIndex] = cost;
+            inMiddles[to][inIndex] = middle;
+        }
+
+        /**
+         * Remove all edges between a node and a contracted node from the node's lists.
+         * @param node the node to update
+         * @param removed the contracted node
+         * @param outgoing remove from the outgoing (true) or incoming (false) list
+         */
+        private void removeEdge(int node, int removed, boolean outgoing) {
+            int[] nodes = outgoing ? outNodes[node] : inNodes[node];
+            double[] costs = outgoing ? outCosts[node] : inCosts[node];
+            int[] middles = outgoing ? outMiddles[node] : inMiddles[node];
+            int size = outgoing ? outSizes[node] : inSizes[node];
+            for (int i = 0; i < size; i++) {
+                if (nodes[i] == removed) {
+                    // swap with last element
+                    size--;
+                    nodes[i] = nodes[size];
+                    costs[i] = costs[size];
+                    middles[i] = middles[size];
+                    i--;
+                }
+            }
+            if (outgoing) {
+                outSizes[node] = size;
+            } else {
+                inSizes[node] = size;
+            }
+        }
+    }
+
+
+    /**
+     * Growable list of hierarchy edges (node, other node, cost, middle node).
+     */
+    private static final class EdgeBuffer {
+        private int[] nodes = new int[1024];
+        private int[] others = new int[1024];
+        private double[] costs = new double[1024];
+        private int[] middles = new int[1024];
+        private int size = 0;
+
+        void add(int node, int other, double cost, int middle) {
+            if (size == nodes.length) {
+                int newCapacity = size + (size >> 1);
+                nodes = Arrays.copyOf(nodes, newCapacity);
+                others = Arrays.copyOf(others, newCapacity);
+                costs = Arrays.copyOf(costs, newCapacity);
+                middles = Arrays.copyOf(middles, newCapacity);
+            }
+            nodes[size] = node;
+            others[size] = other;
+            costs[size] = cost;
+            middles[size] = middle;
+            size++;
+        }
+
+        /**
+         * Sort edges by node (counting sort) and compute CSR offsets.
+         * @param nodeCount number of nodes
+         * @param offsets output array of size nodeCount + 1
+         * @return buffer with sorted and trimmed arrays
+         */
+        EdgeBuffer sortByNode(int nodeCount, int[] offsets) {
+            for (int i = 0; i < size; i++) {
+                offsets[nodes[i] + 1]++;
+            }
+            for (int v = 0; v < nodeCount; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            EdgeBuffer sorted = new EdgeBuffer();
+            sorted.nodes = new int[0];
+            sorted.others = new int[size];
+            sorted.costs = new double[size];
+            sorted.middles = new int[size];
+            sorted.size = size;
+            int[] fill = new int[nodeCount];
+            for (int i = 0; i < size; i++) {
+                int index = offsets[nodes[i]] + fill[nodes[i]]++;
+                sorted.others[index] = others[i];
+                sorted.costs[index] = costs[i];
+                sorted.middles[index] = middles[i];
+            }
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package eu.kickuth.mthesis.graph;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable subgraph of a frozen graph, re-indexed into compact CSR arrays: a query corridor, e.g. the path candidates
+ * of a Dijkstra update.
+ *
+ * Corridor nodes have local indices 0 to size() - 1, in order of their node IDs. Only edges between corridor nodes are
+ * kept, so searches on the corridor never leave it, and their arrays are sized by the corridor instead of the graph.
+ * Corridors can be shared between threads.
+ */
+public final class Corridor {
+
+    private final Graph graph;
+    private final int[] ids;  // node id by local index, sorted
+
+    private final int[] outBegin;
+    private final int[] outTargets;
+    private final double[] outCosts;
+    private final int[] inBegin;
+    private final int[] inSources;
+    private final double[] inCosts;
+
+    /**
+     * Build a corridor.
+     * @param graph the frozen graph
+     * @param nodes the corridor's nodes
+     */
+    public Corridor(Graph graph, Collection<Node> nodes) {
+        this.graph = graph;
+        CSRGraph edges = graph.getCSRGraph();
+        ids = nodes.stream().mapToInt(node -> node.id).sorted().distinct().toArray();
+        int size = ids.length;
+
+        outBegin = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            outBegin[i + 1] = outBegin[i];
+            for (int e = edges.outBegin(ids[i]); e < edges.outEnd(ids[i]); e++) {
+                if (localIndex(edges.outTarget(e)) >= 0) {
+                    outBegin[i + 1]++;
+                }
+            }
+        }
+        outTargets = new int[outBegin[size]];
+        outCosts = new double[outBegin[size]];
+        inBegin = new int[size + 1];
+        for (int i = 0, edge = 0; i < size; i++) {
+            for (int e = edges.outBegin(ids[i]); e < edges.outEnd(ids[i]); e++) {
+                int target = localIndex(edges.outTarget(e));
+                if (target >= 0) {
+                    outTargets[edge] = target;
+                    outCosts[edge] = edges.outCost(e);
+                    inBegin[target + 1]++;
+                    edge++;
+                }
+            }
+        }
+
+        // incoming edges: transpose the outgoing edges
+        for (int i = 0; i < size; i++) {
+            inBegin[i + 1] += inBegin[i];
+        }
+        inSources = new int[outTargets.length];
+        inCosts = new double[outTargets.length];
+        int[] inFill = Arrays.copyOf(inBegin, size);
+        for (int i = 0; i < size; i++) {
+            for (int e = outBegin[i]; e < outBegin[i + 1]; e++) {
+                int slot = inFill[outTargets[e]]++;
+                inSources[slot] = i;
+                inCosts[slot] = outCosts[e];
+            }
+        }
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return number of corridor nodes
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public int getEdgeCount() {
+        return outTargets.length;
+    }
+
+    /**
+     * @param nodeId id of a graph node
+     * @return local index of the node, negative if it is not in the corridor
+     */
+    public int localIndex(int nodeId) {
+        return Arrays.binarySearch(ids, nodeId);
+    }
+
+    public boolean contains(Node node) {
+        return localIndex(node.id) >= 0;
+    }
+
+    /**
+     * @param local local index
+     * @return id of the graph node
+     */
+    public int getNodeId(int local) {
+        return ids[local];
+    }
+
+    public int outBegin(int local) {
+        return outBegin[local];
+    }
+
+    public int outEnd(int local) {
+        return outBegin[local + 1];
+    }
+
+    public int outTarget(int edge) {
+        return outTargets[edge];
+    }
+
+    public double outCost(int edge) {
+        return outCosts[edge];
+    }
+
+    public int inBegin(int local) {
+        return inBegin[local];
+    }
+
+    public int inEnd(int local) {
+        return inBegin[local + 1];
+    }
+
+    public int inSource(int edge) {
+        return inSources[edge];
+    }
+
+    public double inCost(int edge) {
+        return inCosts[edge];
+    }
+}
@@ -0,0 +1,228 @@
+package eu.kickuth.mthesis.graph;
+
+import eu.kickuth.mthesis.graph.Graph.Path;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Distances from a solution path to all nodes of a {@link Corridor}.
+ *
+ * Every corridor node holds its distance from the closest path node, its parent and the path node (root) its label
+ * originates from. When a detour is spliced into the path, only labels that changed are searched again: new path nodes
+ * start a search that only relaxes improved labels, and labels rooted in removed path nodes are reset and repaired from
+ * their valid neighbours. Finding the closest of some targets then is a table lookup instead of a graph search.
+ */
+public final class CorridorDistances {
+
+    private final Corridor corridor;
+
+    private final double[] distances;  // distance from the path
+    private final int[] parents;  // local index of the parent, -1 for path nodes and unreached nodes
+    private final int[] roots;  // local index of the path node a label originates from, -1 for unreached nodes
+    private final int[] pathCounts;  // number of occurrences on the path
+    private final IndexedMinHeap queue;
+
+    private Path path;
+
+    /**
+     * Create the distance labels for a corridor. Instances are not thread-safe, but can share their corridor.
+     * @param corridor the corridor to search on
+     */
+    public CorridorDistances(Corridor corridor) {
+        this.corridor = corridor;
+        int size = corridor.size();
+        distances = new double[size];
+        parents = new int[size];
+        roots = new int[size];
+        pathCounts = new int[size];
+        queue = new IndexedMinHeap(size);
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        Arrays.fill(parents, -1);
+        Arrays.fill(roots, -1);
+    }
+
+    public Corridor getCorridor() {
+        return corridor;
+    }
+
+    /**
+     * Compute the distances from a path. The path is tracked: change it with {@link #insert(Path, int, int)} only.
+     * @param path the solution path
+     * @throws IllegalArgumentException if a path node is not in the corridor
+     */
+    public void setPath(Path path) {
+        this.path = path;
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        Arrays.fill(parents, -1);
+        Arrays.fill(roots, -1);
+        Arrays.fill(pathCounts, 0);
+        for (int i = 0; i < path.size(); i++) {
+            int local = pathNodeIndex(path.getNodeId(i));
+            if (pathCounts[local]++ == 0) {
+                relax(local, 0, -1, local);
+            }
+        }
+        search();
+    }
+
+    /**
+     * Insert a detour into the tracked path, like {@link Path#insert(Path, int, int)}, and update the distances.
+     * @param toInsert path from the node at index start to the node at index end
+     * @param start index of the node where the inserted path starts
+     * @param end index of the node where the inserted path ends, at least start
+     * @return the tracked path
+     * @throws IllegalArgumentException if a node of the detour is not in the corridor
+     */
+    public Path insert(Path toInsert, int start, int end) {
+        if (path == null) {
+            throw new IllegalStateException("No path is set!");
+        }
+        // check the detour first, so a failed insertion leaves the path unchanged
+        int[] inserted = new int[Math.max(0, toInsert.size() - 1)];
+        for (int i = 0; i < inserted.length; i++) {
+            inserted[i] = pathNodeIndex(toInsert.getNodeId(i + 1));
+        }
+        // nodes (start, end] are removed from the path
+        int[] removed = new int[Math.max(0, end - start)];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = corridor.localIndex(path.getNodeId(start + 1 + i));
+        }
+        path.insert(toInsert, start, end);
+        for (int local : removed) {
+            pathCounts[local]--;
+        }
+        for (int local : inserted) {
+            if (pathCounts[local]++ == 0) {
+                relax(local, 0, -1, local);
+            }
+        }
+
+        // reset labels of removed path nodes, then repair them from valid in-neighbours
+        if (removed.length > 0) {
+            int invalidCount = 0;
+            int[] invalid = new int[16];
+            for (int v = 0; v < distances.length; v++) {
+                if (roots[v] >= 0 && pathCounts[roots[v]] == 0) {
+                    distances[v] = Double.POSITIVE_INFINITY;
+                    parents[v] = -1;
+                    roots[v] = -1;
+                    if (invalidCount == invalid.length) {
+                        invalid = Arrays.copyOf(invalid, invalidCount * 2);
+                    }
+                    invalid[invalidCount++] = v;
+                }
+            }
+            for (int i = 0; i < invalidCount; i++) {
+                int v = invalid[i];
+                for (int e = corridor.inBegin(v); e < corridor.inEnd(v); e++) {
+                    int u = corridor.inSource(e);
+                    if (roots[u] >= 0) {
+                        relax(v, distances[u] + corridor.inCost(e), u, roots[u]);
+                    }
+                }
+            }
+        }
+        search();
+        return path;
+    }
+
+    /**
+     * @return local index of a path node
+     * @throws IllegalArgumentException if the node is not in the corridor
+     */
+    private int pathNodeIndex(int nodeId) {
+        int local = corridor.localIndex(nodeId);
+        if (local < 0) {
+            throw new IllegalArgumentException("Path node " + nodeId + " is not in the corridor!");
+        }
+        return local;
+    }
+
+    /**
+     * Settle queued labels and propagate improvements along the corridor edges.
+     */
+    private void search() {
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            double currentDistance = distances[current];
+            for (int e = corridor.outBegin(current); e < corridor.outEnd(current); e++) {
+                relax(corridor.outTarget(e), currentDistance + corridor.outCost(e), current, roots[current]);
+            }
+        }
+    }
+
+    private void relax(int local, double distance, int parent, int root) {
+        if (distance < distances[local]) {
+            distances[local] = distance;
+            parents[local] = parent;
+            roots[local] = root;
+            queue.insertOrDecrease(local, distance);
+        }
+    }
+
+    /**
+     * Get a node's distance from the path.
+     * @param node the node
+     * @return distance within the corridor, infinity if the node is not reachable or not in the corridor
+     */
+    public double getDistance(Node node) {
+        int local = corridor.localIndex(node.id);
+        return local < 0 ? Double.POSITIVE_INFINITY : distances[local];
+    }
+
+    /**
+     * Find the target closest to the path.
+     * @param targets the targets
+     * @return shortest path from a path node to the closest target, empty Path if no target is reachable
+     */
+    public Path pathToNearest(Collection<Node> targets) {
+        int nearest = -1;
+        for (Node target : targets) {
+            int local = corridor.localIndex(target.id);
+            if (local >= 0 && distances[local] < Double.POSITIVE_INFINITY &&
+                    (nearest == -1 || distances[local] < distances[nearest])) {
+                nearest = local;
+            }
+        }
+        return pathTo(nearest);
+    }
+
+    /**
+     * Pick a random target close to the path: one of the targets at most (1 + slack) times as far as the closest.
+     * @param targets the targets
+     * @param slack relative distance over the closest target's, 0 to pick among the closest targets only
+     * @param random random source
+     * @return shortest path from a path node to the picked target, empty Path if no target is reachable
+     */
+    public Path pathToNear(Collection<Node> targets, double slack, Random random) {
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (Node target : targets) {
+            nearestDistance = Math.min(nearestDistance, getDistance(target));
+        }
+        // pick uniformly among the targets that are close enough (reservoir sampling)
+        int picked = -1;
+        int closeCount = 0;
+        for (Node target : targets) {
+            int local = corridor.localIndex(target.id);
+            if (local >= 0 && distances[local] <= nearestDistance * (1 + slack) && random.nextInt(++closeCount) == 0) {
+                picked = local;
+            }
+        }
+        return pathTo(picked);
+    }
+
+    /**
+     * @return shortest path from a path node to a corridor node, empty Path for -1 or unreachable nodes
+     */
+    private Path pathTo(int local) {
+        Path result = corridor.getGraph().new Path();
+        if (local >= 0 && distances[local] < Double.POSITIVE_INFINITY) {
+            for (int node = local; node != -1; node = parents[node]) {
+                result.addFirst(corridor.getNodeId(node), distances[node]);
+            }
+        }
+        return result;
+    }
+}
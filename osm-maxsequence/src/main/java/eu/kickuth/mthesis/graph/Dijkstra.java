@@ -1,110 +1,183 @@
 package eu.kickuth.mthesis.graph;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 
 import eu.kickuth.mthesis.graph.Graph.Path;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import static eu.kickuth.mthesis.utils.Settings.DIJKSTRA_LEASE_TIMEOUT_MS;
+import static eu.kickuth.mthesis.utils.Settings.DIJKSTRA_MAX_INSTANCES;
+import static eu.kickuth.mthesis.utils.Settings.POINT_TO_POINT_SEARCH;
+
 public class Dijkstra {
 
     private static final Logger logger = LogManager.getLogger(Dijkstra.class);
-    private static final Map<Graph, Dijkstra> instances = new HashMap<>();
 
     private final Graph graph;
-    private final PriorityQueue<DijkstraNode> pqueue;
-    private final DijkstraNode[] pqueueNodes;
-    private List<Integer> updatedPqueueNodes;  // keep track of which nodes need resetting after dijkstra run
-    private int[] parentMap;  // keep track of a nodes Parent for a dijkstra run
-    private boolean[] settledNodes;  // keep track of already extracted nodes
+    private final CSRGraph edges;
+    private final NodeStore nodeStore;
+    private final IndexedMinHeap pqueue;
+    private final double[] distances;  // tentative distances of the current dijkstra run
+    private final int[] parentMap;  // keep track of a nodes Parent for a dijkstra run
+    // generation in which a node's distance and parent were last written. Entries of older generations are unset.
+    private final int[] generations;
+    private int generation = 1;
     private boolean[] isTarget;  // mark dijkstra targets in array to quickly check if a node is a target
-    private Set<Node> pathCandidates = new HashSet<>();
+    private final BitSet candidates;  // path candidates of the last update
+    private int candidateCount = 0;
+    private final Set<Node> pathCandidates;  // read-only view of the candidates
+    private boolean restrictToCandidates = false;  // do searches ignore nodes that are not path candidates?
 
     private double shortestPathCost;  // target distance
     private double maxDistance = Double.POSITIVE_INFINITY;
     private Graph.Path stPath;  // shortest st path
 
-    private double[] updateForwardCosts;
+    private final double[] updateForwardCosts;
+    private final int[] updateGenerations;  // update run in which a node's forward cost was set
+    private int updateGeneration = 1;
+
+    private ContractionHierarchy.Query chQuery;  // point-to-point queries, if the graph has a contraction hierarchy
+
+    // state of the backward search in bidirectional queries, allocated on first use. Shares the generation counter.
+    private IndexedMinHeap backwardQueue;
+    private double[] backwardDistances;
+    private int[] backwardParents;
+    private int[] backwardGenerations;
+
+    private boolean leased;  // is the instance currently in use (i.e. not in its graph's pool)?
 
     /**
-     * Get a Dijkstra instance for given graph. Will only create a single instance per graph.
+     * Lease a Dijkstra instance for the given graph. Instances are not thread-safe, but every leased instance is used
+     * exclusively by its leaseholder until it is released. Released instances are reused by later leases, so their
+     * search arrays are only allocated once per concurrent user. At most DIJKSTRA_MAX_INSTANCES instances of a graph
+     * are leased at a time, further leases wait for a release.
      * @param graph graph for the Dijkstra instance
-     * @return unique Dijkstra object for given graph
+     * @return Dijkstra object for exclusive use
+     * @throws IllegalStateException if no instance was released within DIJKSTRA_LEASE_TIMEOUT_MS
+     * @throws CancellationException if the thread was interrupted while waiting
+     */
+    public static Dijkstra lease(Graph graph) {
+        try {
+            if (!graph.dijkstraLeases.tryAcquire(DIJKSTRA_LEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("All " + DIJKSTRA_MAX_INSTANCES + " Dijkstra instances are leased!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for a Dijkstra instance");
+        }
+        Dijkstra instance = graph.dijkstraPool.poll();
+        if (instance == null) {
+            try {
+                instance = new Dijkstra(graph);
+            } catch (RuntimeException | Error e) {
+                graph.dijkstraLeases.release();
+                throw e;
+            }
+        }
+        instance.leased = true;
+        return instance;
+    }
+
+    /**
+     * Return this instance to its graph's pool. The instance must not be used after releasing it.
      */
-    public static Dijkstra getInstance(Graph graph) {
-        Dijkstra instance = instances.get(graph);
-        return (instance == null ? new Dijkstra(graph) : instance);
+    public void release() {
+        if (!leased) {
+            throw new IllegalStateException("Dijkstra instance is not leased!");
+        }
+        leased = false;
+        clean();
+        candidates.clear();
+        candidateCount = 0;
+        restrictToCandidates = false;
+        shortestPathCost = 0;
+        maxDistance = Double.POSITIVE_INFINITY;
+        stPath = graph.new Path();
+        graph.dijkstraPool.offer(this);  // a full pool drops the instance
+        graph.dijkstraLeases.release();
     }
 
     /**
-     * Create a new Dijkstra instance and add it to the instance map.
+     * Create a new Dijkstra instance. The graph's edge and node data are shared between all instances.
      * @param g The graph belonging to this instance
      */
     private Dijkstra(Graph g) {
         graph = g;
-        int nodeCount = graph.nodes.size();
-        pqueue = new PriorityQueue<>(nodeCount);
-        pqueueNodes = graph.nodes.stream().map(node -> new DijkstraNode(node, Double.POSITIVE_INFINITY)).toArray(DijkstraNode[]::new);
-        updatedPqueueNodes = new ArrayList<>(10_000);
+        edges = graph.getCSRGraph();
+        nodeStore = graph.getNodeStore();
+        int nodeCount = nodeStore.size();
+        pqueue = new IndexedMinHeap(nodeCount);
+        distances = new double[nodeCount];
         parentMap = new int[nodeCount];
-        Arrays.fill(parentMap, -1);
-        settledNodes = new boolean[nodeCount];
+        generations = new int[nodeCount];
         isTarget = new boolean[nodeCount];
-        instances.put(graph, this);
         stPath = graph.new Path();
         updateForwardCosts = new double[nodeCount];
+        updateGenerations = new int[nodeCount];
+        candidates = new BitSet(nodeCount);
+        pathCandidates = new AbstractSet<>() {
+            @Override
+            public Iterator<Node> iterator() {
+                return candidates.stream().mapToObj(nodeStore::getNode).iterator();
+            }
+
+            @Override
+            public int size() {
+                return candidateCount;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Node && isCandidate(((Node) o).id);
+            }
+        };
     }
 
 
     public void update(final Node source, final Node target, final double maxDistanceFactor) {
         clean();
-        Arrays.fill(updateForwardCosts, Double.POSITIVE_INFINITY);
+        newUpdate();
 
         // initialise queue
-        pqueueNodes[source.id].distanceFromSource = 0;
-        updatedPqueueNodes.add(source.id);
-        pqueue.add(pqueueNodes[source.id]);
+        checkNewDistance(source.id, 0);
 
         // main loop
         while (!pqueue.isEmpty()) {
-            DijkstraNode currentMin = pqueue.poll();
-            int currentId = currentMin.node.id;
-
-            // check whether an updated node has already been processed
-            if (settledNodes[currentId]) {
-                continue;
-            } else {
-                settledNodes[currentId] = true;
-                updateForwardCosts[currentId] = currentMin.distanceFromSource;
-            }
+            int currentId = pqueue.poll();
+            double currentDistance = distances[currentId];
+            updateForwardCosts[currentId] = currentDistance;
+            updateGenerations[currentId] = updateGeneration;
 
             // are we passing the target? --> set shortest path and s-t distance
             if (currentId == target.id) {
-                shortestPathCost = currentMin.distanceFromSource;
+                shortestPathCost = currentDistance;
                 maxDistance = shortestPathCost * maxDistanceFactor;
                 retrieveShortestPath(target.id);
                 logger.debug("found target. Shortest path dist is {}.", shortestPathCost);
             }
             // get and potentially update all neighbours
-            for (Edge toNeighbour : graph.adjList.get(currentId)) {
-                double alternativeDistance = currentMin.distanceFromSource + toNeighbour.cost;
+            for (int e = edges.outBegin(currentId); e < edges.outEnd(currentId); e++) {
+                double alternativeDistance = currentDistance + edges.outCost(e);
 
                 // ignore neighbours that are too far
                 if (alternativeDistance > maxDistance) {
                     continue;
                 }
 
-                Node neighbour = toNeighbour.dest;
+                int neighbourId = edges.outTarget(e);
 
                 // check that b-line to target is short enough (starting after we know the max distance)
                 if (maxDistance < Double.POSITIVE_INFINITY &&
-                        alternativeDistance + neighbour.getDistance(target) > maxDistance) {
+                        alternativeDistance + graph.getDistance(neighbourId, target.id) > maxDistance) {
                     continue;
                 }
 
                 // update queue, if the new path is shorter than the previous shortest
-                if (checkNewDistance(pqueueNodes[neighbour.id], alternativeDistance)) {
-                    parentMap[neighbour.id] = currentId;
+                if (checkNewDistance(neighbourId, alternativeDistance)) {
+                    parentMap[neighbourId] = currentId;
                 }
             }
         }
@@ -113,14 +186,47 @@ public class Dijkstra {
         computePathCandidates(target);
     }
 
+    /**
+     * Take over the result of another instance's update, instead of searching again: the shortest path, the path
+     * candidates and the forward costs of the candidates. Forward costs of other nodes are unset.
+     * @param other instance of the same graph, that ran the update. Is only read, so several instances can take over
+     *              its update concurrently.
+     */
+    public void adoptUpdate(Dijkstra other) {
+        if (other.graph != graph) {
+            throw new IllegalArgumentException("Dijkstra instances belong to different graphs!");
+        }
+        clean();
+        newUpdate();
+        candidates.or(other.candidates);
+        candidateCount = other.candidateCount;
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            updateForwardCosts[id] = other.getUpdateForwardCost(id);
+            updateGenerations[id] = updateGeneration;
+        }
+        shortestPathCost = other.shortestPathCost;
+        stPath = other.stPath.copy();
+    }
+
+    /**
+     * Invalidate the candidates and forward costs of the previous update.
+     */
+    private void newUpdate() {
+        candidates.clear();
+        candidateCount = 0;
+        if (++updateGeneration == Integer.MAX_VALUE) {
+            Arrays.fill(updateGenerations, 0);
+            updateGeneration = 1;
+        }
+    }
+
     private void retrieveShortestPath(int targetId) {
-        LinkedList<DijkstraNode> results = new LinkedList<>();
+        Path path = graph.new Path();
         while (targetId != -1) {
-            DijkstraNode backtrack = pqueueNodes[targetId];
-            results.addFirst(new DijkstraNode(backtrack.node, backtrack.distanceFromSource));
+            path.addFirst(targetId, distances[targetId]);
             targetId = parentMap[targetId];
         }
-        stPath = graph.new Path(results);
+        stPath = path;
     }
 
     public double getShortestPathCost() {
@@ -131,10 +237,40 @@ public class Dijkstra {
         return stPath.copy();
     }
 
+    /**
+     * Get the nodes that can lie on a path of the last update that is short enough: the query corridor.
+     * @return read-only view of the candidates, valid until the next update
+     */
     public Set<Node> getPathCandidates() {
         return pathCandidates;
     }
 
+    /**
+     * @param nodeId the node's id
+     * @return true, if the node is a path candidate of the last update
+     */
+    public boolean isCandidate(int nodeId) {
+        return candidates.get(nodeId);
+    }
+
+    /**
+     * Restrict the Dijkstra, A* and bidirectional searches to the path candidates of the last update, so they never
+     * leave the query corridor. Sources and targets may lie outside of it, but found paths only pass through
+     * candidates. Restricted single-pair queries never use the contraction hierarchy, as its shortcuts may bypass the
+     * corridor; they fall back to a plain Dijkstra search of the corridor.
+     * @param restrict true to ignore all other nodes, false to search the whole graph
+     */
+    public void setRestrictToCandidates(boolean restrict) {
+        restrictToCandidates = restrict;
+    }
+
+    /**
+     * @return true, if searches may visit the node
+     */
+    private boolean isAllowed(int nodeId) {
+        return !restrictToCandidates || candidates.get(nodeId);
+    }
+
     /**
      * Compute the shortest s-t-path
      * @param source the node to start with
@@ -146,12 +282,87 @@ public class Dijkstra {
         return shortestPath(Collections.singletonList(source), targets, reverse);
     }
     public Path shortestPath(final Node source, final Node target, final boolean reverse) {
-        return shortestPath(Collections.singletonList(source), Collections.singletonList(target), reverse);
+        if (restrictToCandidates) {
+            // shortcuts of the contraction hierarchy may leave the corridor, so search it directly
+            return shortestPath(Collections.singletonList(source), Collections.singletonList(target), reverse);
+        }
+        ContractionHierarchy.Query query = getCHQuery();
+        if (query != null) {
+            // the search direction does not matter for a single pair
+            stPath = query.shortestPath(source.id, target.id);
+            return stPath;
+        }
+        switch (POINT_TO_POINT_SEARCH) {
+            case "astar":
+                return goalDirectedPath(source, target);
+            case "bidirectional":
+                return bidirectionalPath(source, target);
+            default:
+                return shortestPath(Collections.singletonList(source), Collections.singletonList(target), reverse);
+        }
     }
     public Path shortestPath(final Collection<Node> sources, final Node target, final boolean reverse) {
         return shortestPath(sources, Collections.singletonList(target), reverse);
     }
 
+    /**
+     * Get this instance's query workspace for the graph's contraction hierarchy.
+     * @return the query, null if the graph has no contraction hierarchy
+     */
+    private ContractionHierarchy.Query getCHQuery() {
+        ContractionHierarchy ch = graph.getContractionHierarchy();
+        if (ch == null) {
+            return null;
+        }
+        if (chQuery == null || !chQuery.belongsTo(ch)) {
+            chQuery = ch.createQuery();
+        }
+        return chQuery;
+    }
+
+    /**
+     * Compute the distances from a node to several targets (one-to-many). The search stops once all targets are
+     * settled.
+     * @param source the node to start with
+     * @param targets the target nodes, may contain duplicates
+     * @return distance to each target, in order of targets. Infinity for unreachable targets.
+     */
+    public double[] distances(final Node source, final List<Node> targets) {
+        clean();
+        int remaining = 0;
+        for (Node target : targets) {
+            if (!isTarget[target.id]) {
+                isTarget[target.id] = true;
+                remaining++;
+            }
+        }
+
+        checkNewDistance(source.id, 0);
+        while (!pqueue.isEmpty() && remaining > 0) {
+            int currentId = pqueue.poll();
+            double currentDistance = distances[currentId];
+            if (isTarget[currentId]) {
+                remaining--;
+            }
+            for (int e = edges.outBegin(currentId); e < edges.outEnd(currentId); e++) {
+                int neighbourId = edges.outTarget(e);
+                if ((isTarget[neighbourId] || isAllowed(neighbourId)) &&
+                        checkNewDistance(neighbourId, currentDistance + edges.outCost(e))) {
+                    parentMap[neighbourId] = currentId;
+                }
+            }
+        }
+
+        // read the distances and reset the target array
+        double[] targetDistances = new double[targets.size()];
+        for (int i = 0; i < targetDistances.length; i++) {
+            int targetId = targets.get(i).id;
+            isTarget[targetId] = false;
+            targetDistances[i] = generations[targetId] == generation ? distances[targetId] : Double.POSITIVE_INFINITY;
+        }
+        return targetDistances;
+    }
+
     /**
      * Compute the shortest path from any source to any target node
      * @param sources the set of source nodes
@@ -167,10 +378,7 @@ public class Dijkstra {
         }
         // initialise
         for (Node source : sources) {
-            pqueueNodes[source.id].distanceFromSource = 0;
-            updatedPqueueNodes.add(source.id);
-            pqueue.add(pqueueNodes[source.id]);
-            parentMap[source.id] = -1;
+            checkNewDistance(source.id, 0);
         }
         targets.forEach(node -> isTarget[node.id] = true);
 
@@ -179,15 +387,8 @@ public class Dijkstra {
 
         // main loop
         while (!pqueue.isEmpty()) {
-            DijkstraNode currentMin = pqueue.poll();
-            int currentId = currentMin.node.id;
-
-            // check whether an updated node has already been processed
-            if (settledNodes[currentId]) {
-                continue;
-            } else {
-                settledNodes[currentId] = true;
-            }
+            int currentId = pqueue.poll();
+            double currentDistance = distances[currentId];
 
             // are we at the target yet?
             if (isTarget[currentId]) {
@@ -195,12 +396,13 @@ public class Dijkstra {
                 break;
             }
             // get and potentially update all neighbours
-            for (Edge toNeighbour : graph.adjList.get(currentId)) {
-                double alternativeDistance = currentMin.distanceFromSource + toNeighbour.cost;
+            for (int e = edges.outBegin(currentId); e < edges.outEnd(currentId); e++) {
+                double alternativeDistance = currentDistance + edges.outCost(e);
                 // update queue, if the new path is shorter than the previous shortest
-                Node neighbour = toNeighbour.dest;
-                if (checkNewDistance(pqueueNodes[neighbour.id], alternativeDistance)) {
-                    parentMap[neighbour.id] = currentId;
+                int neighbourId = edges.outTarget(e);
+                if ((isTarget[neighbourId] || isAllowed(neighbourId)) &&
+                        checkNewDistance(neighbourId, alternativeDistance)) {
+                    parentMap[neighbourId] = currentId;
                 }
             }
         }
@@ -214,13 +416,162 @@ public class Dijkstra {
         return stPath;
     }
 
+    /**
+     * Compute the shortest s-t-path with A*. Nodes are prioritised by their distance from the source plus a lower
+     * bound of their distance to the target: the bee-line distance, improved by the graph's landmarks (ALT) if present.
+     * Settled nodes are reopened when a shorter path to them is found, so the path is optimal even if the potential is
+     * not consistent.
+     * @param source the node to start with
+     * @param target the node to reach
+     * @return Shortest path, empty Path if no path exists
+     */
+    public Path goalDirectedPath(final Node source, final Node target) {
+        int sourceId = source.id;
+        int targetId = target.id;
+        clean();
+        Landmarks landmarks = graph.getLandmarks();
+
+        checkNewDistance(sourceId, 0, potential(sourceId, targetId, landmarks));
+        int backtrackId = -1;
+        while (!pqueue.isEmpty()) {
+            int currentId = pqueue.poll();
+            if (currentId == targetId) {
+                backtrackId = currentId;
+                break;
+            }
+            double currentDistance = distances[currentId];
+            for (int e = edges.outBegin(currentId); e < edges.outEnd(currentId); e++) {
+                int neighbourId = edges.outTarget(e);
+                if (neighbourId != targetId && !isAllowed(neighbourId)) {
+                    continue;
+                }
+                double potential = potential(neighbourId, targetId, landmarks);
+                // the target is not reachable from this neighbour
+                if (potential == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                double alternativeDistance = currentDistance + edges.outCost(e);
+                if (checkNewDistance(neighbourId, alternativeDistance, alternativeDistance + potential)) {
+                    parentMap[neighbourId] = currentId;
+                }
+            }
+        }
+
+        retrieveShortestPath(backtrackId);
+        return stPath;
+    }
+
+    /**
+     * Compute the shortest s-t-path with a bidirectional search. A forward search from the source and a backward search
+     * (along incoming edges, as in the reverse search) from the target alternate, always expanding the side with the
+     * smaller queue key. The search stops once the queue keys of both sides add up to at least the best s-t-distance
+     * seen at a meeting node.
+     * @param source the node to start with
+     * @param target the node to reach
+     * @return Shortest path, empty Path if no path exists
+     */
+    public Path bidirectionalPath(final Node source, final Node target) {
+        int sourceId = source.id;
+        int targetId = target.id;
+        if (backwardQueue == null) {
+            int nodeCount = nodeStore.size();
+            backwardQueue = new IndexedMinHeap(nodeCount);
+            backwardDistances = new double[nodeCount];
+            backwardParents = new int[nodeCount];
+            backwardGenerations = new int[nodeCount];
+        }
+        clean();
+
+        checkNewDistance(sourceId, 0);
+        checkNewBackwardDistance(targetId, 0);
+        double bestDistance = (sourceId == targetId ? 0 : Double.POSITIVE_INFINITY);
+        int meetingId = (sourceId == targetId ? sourceId : -1);
+
+        while (!pqueue.isEmpty() && !backwardQueue.isEmpty() &&
+                pqueue.peekKey() + backwardQueue.peekKey() < bestDistance) {
+            if (pqueue.peekKey() <= backwardQueue.peekKey()) {
+                int currentId = pqueue.poll();
+                double currentDistance = distances[currentId];
+                for (int e = edges.outBegin(currentId); e < edges.outEnd(currentId); e++) {
+                    int neighbourId = edges.outTarget(e);
+                    double alternativeDistance = currentDistance + edges.outCost(e);
+                    if ((neighbourId == targetId || isAllowed(neighbourId)) &&
+                            checkNewDistance(neighbourId, alternativeDistance)) {
+                        parentMap[neighbourId] = currentId;
+                        // reached by the backward search? --> candidate s-t-path
+                        if (backwardGenerations[neighbourId] == generation &&
+                                alternativeDistance + backwardDistances[neighbourId] < bestDistance) {
+                            bestDistance = alternativeDistance + backwardDistances[neighbourId];
+                            meetingId = neighbourId;
+                        }
+                    }
+                }
+            } else {
+                int currentId = backwardQueue.poll();
+                double currentDistance = backwardDistances[currentId];
+                for (int e = edges.inBegin(currentId); e < edges.inEnd(currentId); e++) {
+                    int neighbourId = edges.inSource(e);
+                    double alternativeDistance = currentDistance + edges.inCost(e);
+                    if ((neighbourId == sourceId || isAllowed(neighbourId)) &&
+                            checkNewBackwardDistance(neighbourId, alternativeDistance)) {
+                        backwardParents[neighbourId] = currentId;
+                        // reached by the forward search? --> candidate s-t-path
+                        if (generations[neighbourId] == generation &&
+                                alternativeDistance + distances[neighbourId] < bestDistance) {
+                            bestDistance = alternativeDistance + distances[neighbourId];
+                            meetingId = neighbourId;
+                        }
+                    }
+                }
+            }
+        }
+
+        // forward part up to the meeting node, then the backward part to the target
+        Path path = graph.new Path();
+        if (meetingId != -1) {
+            for (int nodeId = meetingId; nodeId != -1; nodeId = parentMap[nodeId]) {
+                path.addFirst(nodeId, distances[nodeId]);
+            }
+            for (int nodeId = backwardParents[meetingId]; nodeId != -1; nodeId = backwardParents[nodeId]) {
+                path.addLast(nodeId, bestDistance - backwardDistances[nodeId]);
+            }
+        }
+        stPath = path;
+        return stPath;
+    }
+
+    /**
+     * Backward search counterpart of {@link #checkNewDistance(int, double)}.
+     */
+    private boolean checkNewBackwardDistance(int nodeId, double altDist) {
+        if (backwardGenerations[nodeId] != generation) {
+            backwardGenerations[nodeId] = generation;
+            backwardDistances[nodeId] = Double.POSITIVE_INFINITY;
+            backwardParents[nodeId] = -1;
+        }
+        if (altDist < backwardDistances[nodeId]) {
+            backwardDistances[nodeId] = altDist;
+            backwardQueue.insertOrDecrease(nodeId, altDist);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lower bound of the distance from a node to the target.
+     */
+    private double potential(int nodeId, int targetId, Landmarks landmarks) {
+        double potential = graph.getDistance(nodeId, targetId);
+        if (landmarks != null) {
+            potential = Math.max(potential, landmarks.lowerBound(nodeId, targetId));
+        }
+        return potential;
+    }
+
     private Path shortestPathRev(Collection<Node> sources, Collection<Node> targets) {
         // initialise
         for (Node target : targets) {
-            pqueueNodes[target.id].distanceFromSource = 0;
-            updatedPqueueNodes.add(target.id);
-            pqueue.add(pqueueNodes[target.id]);
-            parentMap[target.id] = -1;
+            checkNewDistance(target.id, 0);
         }
         sources.forEach(node -> isTarget[node.id] = true);
 
@@ -229,15 +580,8 @@ public class Dijkstra {
 
         // main loop
         while (!pqueue.isEmpty()) {
-            DijkstraNode currentMin = pqueue.poll();
-            int currentId = currentMin.node.id;
-
-            // check whether an updated node has already been processed
-            if (settledNodes[currentId]) {
-                continue;
-            } else {
-                settledNodes[currentId] = true;
-            }
+            int currentId = pqueue.poll();
+            double currentDistance = distances[currentId];
 
             // are we at a source yet?
             if (isTarget[currentId]) {
@@ -245,12 +589,13 @@ public class Dijkstra {
                 break;
             }
             // get and potentially update all (back edge) neighbours
-            for (Edge toNeighbour : graph.adjListRev.get(currentId)) {
-                double alternativeDistance = currentMin.distanceFromSource + toNeighbour.cost;
+            for (int e = edges.inBegin(currentId); e < edges.inEnd(currentId); e++) {
+                double alternativeDistance = currentDistance + edges.inCost(e);
                 // update queue, if the new path is shorter than the previous shortest
-                Node neighbour = toNeighbour.source;
-                if (checkNewDistance(pqueueNodes[neighbour.id], alternativeDistance)) {
-                    parentMap[neighbour.id] = currentId;
+                int neighbourId = edges.inSource(e);
+                if ((isTarget[neighbourId] || isAllowed(neighbourId)) &&
+                        checkNewDistance(neighbourId, alternativeDistance)) {
+                    parentMap[neighbourId] = currentId;
                 }
             }
         }
@@ -259,92 +604,114 @@ public class Dijkstra {
         sources.forEach(node -> isTarget[node.id] = false);
 
         // reconstruct the path from the target
-        LinkedList<DijkstraNode> results = new LinkedList<>();
-        DijkstraNode backtrack;
+        Path path = graph.new Path();
         double pathCost;
         if (backtrackId != -1) {
-            pathCost = pqueueNodes[backtrackId].distanceFromSource;
+            pathCost = distances[backtrackId];
             do {
-                backtrack = pqueueNodes[backtrackId];
-                results.addLast(new DijkstraNode(backtrack.node, pathCost - backtrack.distanceFromSource));
+                path.addLast(backtrackId, pathCost - distances[backtrackId]);
                 backtrackId = parentMap[backtrackId];
             } while (backtrackId != -1);
         }
-        stPath = graph.new Path(results);
+        stPath = path;
 
         return stPath;
     }
 
+    /**
+     * Backward pass of an update: search from the target on incoming edges and mark every node whose forward cost
+     * plus backward distance fits within the max distance as path candidate. Nodes that do not fit are not expanded,
+     * as all nodes found through them are at least as far from the target.
+     * @param target target of the update
+     */
     private void computePathCandidates(Node target) {
-        // TODO logs/comments (or rewrite first)
-        // TODO pathCandidates as bool array? --> shortest path only look at pathCandidates
         clean();
 
-        pqueueNodes[target.id].distanceFromSource = 0;
-        updatedPqueueNodes.add(target.id);
-        pqueue.add(pqueueNodes[target.id]);
+        checkNewDistance(target.id, 0);
 
         while (!pqueue.isEmpty()) {
-            DijkstraNode currentMin = pqueue.poll();
-            int currentId = currentMin.node.id;
+            int currentId = pqueue.poll();
+            double currentDistance = distances[currentId];
 
-            // check whether an updated node has already been processed
-            if (settledNodes[currentId] || 10e-4 + maxDistance < currentMin.distanceFromSource + updateForwardCosts[currentId]) {
+            // check whether the node can lie on a path that is short enough (with some slack for rounding errors)
+            if (10e-4 + maxDistance < currentDistance + getUpdateForwardCost(currentId)) {
                 continue;
             } else {
-                settledNodes[currentId] = true;
-                pathCandidates.add(currentMin.node);
+                candidates.set(currentId);
+                candidateCount++;
             }
 
             // get and potentially update all neighbours
-            for (Edge toNeighbour : graph.adjListRev.get(currentId)) {
-                double alternativeDistance = currentMin.distanceFromSource + toNeighbour.cost;
+            for (int e = edges.inBegin(currentId); e < edges.inEnd(currentId); e++) {
+                double alternativeDistance = currentDistance + edges.inCost(e);
                 // update queue, if the new path is shorter than the previous shortest
-                checkNewDistance(pqueueNodes[toNeighbour.source.id], alternativeDistance);
+                checkNewDistance(edges.inSource(e), alternativeDistance);
             }
         }
-        logger.trace("Number of reachable nodes: {}", pathCandidates.size());
+        logger.trace("Number of reachable nodes: {}", candidateCount);
         maxDistance = Double.POSITIVE_INFINITY;
         logger.trace("Dijkstra update complete.");
     }
 
     /**
-     * reset instance arrays for new dijkstra computation
+     * reset instance arrays for new dijkstra computation. Starting a new generation implicitly resets all distances
+     * and parents, so this does not depend on the graph size.
      */
     private void clean() {
-        updatedPqueueNodes.parallelStream().forEach(index -> {
-            DijkstraNode dNode = pqueueNodes[index];
-            dNode.distanceFromSource = Double.POSITIVE_INFINITY;
-            settledNodes[index] = false;
-            parentMap[index] = -1;
-        });
-        updatedPqueueNodes.clear();
+        if (++generation == Integer.MAX_VALUE) {
+            // generation counter overflow: reset explicitly once
+            Arrays.fill(generations, 0);
+            if (backwardGenerations != null) {
+                Arrays.fill(backwardGenerations, 0);
+            }
+            generation = 1;
+        }
         pqueue.clear();
-        pathCandidates.clear();
+        if (backwardQueue != null) {
+            backwardQueue.clear();
+        }
     }
 
     /**
      * Check if the new distance to a node is smaller than the previously known distance. If so, update priority queue
      * and instance lists.
-     * @param dNode node in question
+     * @param nodeId node in question
      * @param altDist new distance to node
      * @return true if the new distance was smaller, else false.
      */
-    private boolean checkNewDistance(DijkstraNode dNode, double altDist) {
-        if (altDist < dNode.distanceFromSource) {
-            // only add to updated list, if it was not already updated
-            if (dNode.distanceFromSource == Double.POSITIVE_INFINITY) {
-                updatedPqueueNodes.add(dNode.node.id);
-            }
-            dNode = new DijkstraNode(dNode.node, altDist);
-            pqueueNodes[dNode.node.id] = dNode;
-            pqueue.add(dNode);
+    private boolean checkNewDistance(int nodeId, double altDist) {
+        return checkNewDistance(nodeId, altDist, altDist);
+    }
+
+    /**
+     * Check if the new distance to a node is smaller than the previously known distance. If so, update priority queue
+     * (with a separate queue key, e.g. for A*) and instance lists.
+     * @param nodeId node in question
+     * @param altDist new distance to node
+     * @param key priority queue key for the new distance
+     * @return true if the new distance was smaller, else false.
+     */
+    private boolean checkNewDistance(int nodeId, double altDist, double key) {
+        if (generations[nodeId] != generation) {
+            // first visit in this run: entry still holds values of an old run
+            generations[nodeId] = generation;
+            distances[nodeId] = Double.POSITIVE_INFINITY;
+            parentMap[nodeId] = -1;
+        }
+        if (altDist < distances[nodeId]) {
+            distances[nodeId] = altDist;
+            pqueue.insertOrDecrease(nodeId, key);
             return true;
         }
         return false;
     }
 
-    public double[] getUpdateForwardCosts() {
-        return updateForwardCosts;
+    /**
+     * Get the distance from the source of the last update to a node.
+     * @param nodeId the node's id
+     * @return forward distance, infinity if the node was not reached
+     */
+    public double getUpdateForwardCost(int nodeId) {
+        return updateGenerations[nodeId] == updateGeneration ? updateForwardCosts[nodeId] : Double.POSITIVE_INFINITY;
     }
 }
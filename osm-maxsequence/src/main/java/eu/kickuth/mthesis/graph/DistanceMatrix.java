@@ -0,0 +1,317 @@
+package eu.kickuth.mthesis.graph;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static eu.kickuth.mthesis.utils.Settings.MATRIX_THREADS;
+
+/**
+ * Shortest path distances between all pairs of a list of nodes (many-to-many), as a primitive matrix.
+ *
+ * On graphs with a contraction hierarchy, matrices are computed with buckets: a backward upward search from every
+ * target stores its distances in buckets at the nodes it settles, then a forward upward search from every source scans
+ * the buckets of the nodes it settles. A distance is the minimum over all nodes where both searches meet. Without a
+ * hierarchy, or restricted to a corridor, every source runs a one-to-many Dijkstra that stops once all targets are
+ * settled. Searches are split into fork-join tasks, each with its own search workspace.
+ */
+public final class DistanceMatrix {
+
+    private static final Logger logger = LogManager.getLogger(DistanceMatrix.class);
+
+    private static final int MIN_TASK_SIZE = 4;  // searches per fork-join task, at least
+    private static final ForkJoinPool pool = new ForkJoinPool(MATRIX_THREADS);
+    // contraction hierarchy query workspace of each pool thread, reused by later matrices of the same hierarchy
+    private static final ThreadLocal<ContractionHierarchy.Query> chQueries = new ThreadLocal<>();
+
+    private final List<Node> nodes;
+    private final double[] distances;  // row-major: distance from node i to node j at i * size + j
+
+    private DistanceMatrix(List<Node> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        distances = new double[nodes.size() * nodes.size()];
+    }
+
+    /**
+     * Compute the distances between nodes of a graph.
+     * @param graph the frozen graph
+     * @param nodes the matrix's nodes, may contain duplicates
+     * @return the distance matrix
+     */
+    public static DistanceMatrix compute(Graph graph, List<Node> nodes) {
+        long startTime = System.currentTimeMillis();
+        DistanceMatrix matrix = new DistanceMatrix(nodes);
+        ContractionHierarchy ch = graph.getContractionHierarchy();
+        if (ch != null) {
+            matrix.computeWithBuckets(ch);
+        } else {
+            int size = matrix.size();
+            matrix.forEachRange(size, (from, to) -> {
+                Dijkstra dijkstra = Dijkstra.lease(graph);
+                try {
+                    for (int row = from; row < to; row++) {
+                        System.arraycopy(dijkstra.distances(matrix.nodes.get(row), matrix.nodes), 0,
+                                matrix.distances, row * size, size);
+                    }
+                } finally {
+                    dijkstra.release();
+                }
+            });
+        }
+        logger.debug("Computed {}x{} distance matrix in {}ms.", matrix.size(), matrix.size(),
+                System.currentTimeMillis() - startTime);
+        return matrix;
+    }
+
+    /**
+     * Compute the distances between nodes within a corridor, i.e. only on paths that do not leave the corridor.
+     * @param corridor the corridor to search on
+     * @param nodes the matrix's nodes, may contain duplicates. Nodes outside the corridor can not be reached.
+     * @return the distance matrix
+     */
+    public static DistanceMatrix compute(Corridor corridor, List<Node> nodes) {
+        long startTime = System.currentTimeMillis();
+        DistanceMatrix matrix = new DistanceMatrix(nodes);
+        int size = matrix.size();
+        int[] locals = nodes.stream().mapToInt(node -> corridor.localIndex(node.id)).toArray();
+        boolean[] isTarget = new boolean[corridor.size()];
+        int targetCount = 0;
+        for (int local : locals) {
+            if (local >= 0 && !isTarget[local]) {
+                isTarget[local] = true;
+                targetCount++;
+            }
+        }
+
+        int distinctTargets = targetCount;
+        matrix.forEachRange(size, (from, to) -> {
+            CorridorSearch search = new CorridorSearch(corridor);
+            for (int row = from; row < to; row++) {
+                int offset = row * size;
+                if (locals[row] < 0) {
+                    Arrays.fill(matrix.distances, offset, offset + size, Double.POSITIVE_INFINITY);
+                    continue;
+                }
+                search.run(locals[row], isTarget, distinctTargets);
+                for (int column = 0; column < size; column++) {
+                    matrix.distances[offset + column] = search.getDistance(locals[column]);
+                }
+            }
+        });
+        logger.debug("Computed {}x{} distance matrix on {} corridor nodes in {}ms.", size, size, corridor.size(),
+                System.currentTimeMillis() - startTime);
+        return matrix;
+    }
+
+    /**
+     * Bucket-based many-to-many search on the graph's contraction hierarchy.
+     */
+    private void computeWithBuckets(ContractionHierarchy ch) {
+        int size = size();
+
+        // backward search spaces of all targets
+        int[][] spaceNodes = new int[size][];
+        double[][] spaceDistances = new double[size][];
+        forEachRange(size, (from, to) -> {
+            ContractionHierarchy.Query query = getCHQuery(ch);
+            for (int column = from; column < to; column++) {
+                int settled = query.searchSpace(nodes.get(column).id, false);
+                spaceNodes[column] = new int[settled];
+                spaceDistances[column] = new double[settled];
+                for (int i = 0; i < settled; i++) {
+                    spaceNodes[column][i] = query.getSettledNode(i);
+                    spaceDistances[column][i] = query.getSettledDistance(i);
+                }
+            }
+        });
+
+        // sort the entries into buckets by node: entry keys are node (high bits) and entry index (low bits)
+        int entryCount = Arrays.stream(spaceNodes).mapToInt(space -> space.length).sum();
+        long[] keys = new long[entryCount];
+        int[] entryColumns = new int[entryCount];
+        double[] entryDistances = new double[entryCount];
+        for (int column = 0, entry = 0; column < size; column++) {
+            for (int i = 0; i < spaceNodes[column].length; i++, entry++) {
+                keys[entry] = ((long) spaceNodes[column][i] << 32) | entry;
+                entryColumns[entry] = column;
+                entryDistances[entry] = spaceDistances[column][i];
+            }
+        }
+        Arrays.sort(keys);
+        int[] bucketNodes = new int[entryCount];
+        int[] bucketOffsets = new int[entryCount + 1];
+        int[] bucketColumns = new int[entryCount];
+        double[] bucketDistances = new double[entryCount];
+        int bucketCount = 0;
+        for (int i = 0; i < entryCount; i++) {
+            int node = (int) (keys[i] >>> 32);
+            int entry = (int) keys[i];
+            if (bucketCount == 0 || bucketNodes[bucketCount - 1] != node) {
+                bucketNodes[bucketCount] = node;
+                bucketOffsets[bucketCount] = i;
+                bucketCount++;
+            }
+            bucketColumns[i] = entryColumns[entry];
+            bucketDistances[i] = entryDistances[entry];
+        }
+        bucketOffsets[bucketCount] = entryCount;
+        int buckets = bucketCount;
+
+        // forward search from every source, scanning the buckets of settled nodes
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        forEachRange(size, (from, to) -> {
+            ContractionHierarchy.Query query = getCHQuery(ch);
+            for (int row = from; row < to; row++) {
+                int offset = row * size;
+                int settled = query.searchSpace(nodes.get(row).id, true);
+                for (int i = 0; i < settled; i++) {
+                    int bucket = Arrays.binarySearch(bucketNodes, 0, buckets, query.getSettledNode(i));
+                    if (bucket < 0) {
+                        continue;
+                    }
+                    double distance = query.getSettledDistance(i);
+                    for (int b = bucketOffsets[bucket]; b < bucketOffsets[bucket + 1]; b++) {
+                        int index = offset + bucketColumns[b];
+                        distances[index] = Math.min(distances[index], distance + bucketDistances[b]);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the current thread's query workspace for a contraction hierarchy.
+     */
+    private static ContractionHierarchy.Query getCHQuery(ContractionHierarchy ch) {
+        ContractionHierarchy.Query query = chQueries.get();
+        if (query == null || !query.belongsTo(ch)) {
+            query = ch.createQuery();
+            chQueries.set(query);
+        }
+        return query;
+    }
+
+    /**
+     * Run an action on the range [0, size), split into ranges that are run as fork-join tasks.
+     */
+    private void forEachRange(int size, RangeAction action) {
+        if (size == 0) {
+            return;
+        }
+        int taskSize = Math.max(MIN_TASK_SIZE, size / (4 * MATRIX_THREADS));
+        pool.invoke(new RangeTask(0, size, taskSize, action));
+    }
+
+    /**
+     * @return number of nodes
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return the matrix's nodes, in row and column order
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Get a distance.
+     * @param from row, the index of the source node
+     * @param to column, the index of the target node
+     * @return shortest path distance, infinity if the target is not reachable
+     */
+    public double get(int from, int to) {
+        Objects.checkIndex(from, size());
+        Objects.checkIndex(to, size());
+        return distances[from * size() + to];
+    }
+
+
+    @FunctionalInterface
+    private interface RangeAction {
+        void run(int from, int to);
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+        private final int taskSize;
+        private final RangeAction action;
+
+        private RangeTask(int from, int to, int taskSize, RangeAction action) {
+            this.from = from;
+            this.to = to;
+            this.taskSize = taskSize;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= taskSize) {
+                action.run(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, mid, taskSize, action), new RangeTask(mid, to, taskSize, action));
+            }
+        }
+    }
+
+    /**
+     * Workspace for one-to-many searches on a corridor.
+     */
+    private static final class CorridorSearch {
+
+        private final Corridor corridor;
+        private final IndexedMinHeap queue;
+        private final double[] distances;
+        private final int[] generations;  // search in which a node's distance was set
+        private int generation = 0;
+
+        private CorridorSearch(Corridor corridor) {
+            this.corridor = corridor;
+            queue = new IndexedMinHeap(corridor.size());
+            distances = new double[corridor.size()];
+            generations = new int[corridor.size()];
+        }
+
+        /**
+         * Search from a node until all targets are settled.
+         */
+        private void run(int source, boolean[] isTarget, int targetCount) {
+            generation++;
+            queue.clear();
+            relax(source, 0);
+            int remaining = targetCount;
+            while (!queue.isEmpty() && remaining > 0) {
+                int current = queue.poll();
+                if (isTarget[current]) {
+                    remaining--;
+                }
+                for (int e = corridor.outBegin(current); e < corridor.outEnd(current); e++) {
+                    relax(corridor.outTarget(e), distances[current] + corridor.outCost(e));
+                }
+            }
+        }
+
+        private void relax(int local, double distance) {
+            if (generations[local] != generation || distance < distances[local]) {
+                generations[local] = generation;
+                distances[local] = distance;
+                queue.insertOrDecrease(local, distance);
+            }
+        }
+
+        /**
+         * @return distance of a target in the last search, infinity if it was not reached or is not in the corridor
+         */
+        private double getDistance(int local) {
+            return local >= 0 && generations[local] == generation ? distances[local] : Double.POSITIVE_INFINITY;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package eu.kickuth.mthesis.graph;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Fixed-size double array of the graph, stored in NIO buffer chunks of 2^chunkBits values each: a single heap array, or
+ * memory mapped regions of a graph snapshot. Chunks lift the 2 GB limit of a single mapped region.
+ */
+final class DoubleColumn {
+
+    private final DoubleBuffer[] chunks;
+    private final int chunkBits;
+    private final int chunkMask;
+    private final int size;
+
+    /**
+     * Create a column from its chunks.
+     * @param chunks the chunks, all but the last holding 2^chunkBits values
+     * @param chunkBits values per chunk, as a power of two
+     * @param size total number of values
+     */
+    DoubleColumn(DoubleBuffer[] chunks, int chunkBits, int size) {
+        this.chunks = chunks;
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1 << chunkBits) - 1;
+        this.size = size;
+    }
+
+    /**
+     * Wrap a heap array into a column of a single chunk. Changes are visible in both.
+     */
+    static DoubleColumn wrap(double[] values) {
+        return new DoubleColumn(new DoubleBuffer[] {DoubleBuffer.wrap(values)}, 31, values.length);
+    }
+
+    double get(int index) {
+        return chunks[index >>> chunkBits].get(index & chunkMask);
+    }
+
+    void put(int index, double value) {
+        chunks[index >>> chunkBits].put(index & chunkMask, value);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true, if the values are stored outside the JVM heap (e.g. memory mapped)
+     */
+    boolean isDirect() {
+        return chunks[0].isDirect();
+    }
+
+    /**
+     * Copy the first values into a new heap column.
+     * @param capacity size of the new column
+     * @param count number of values to copy
+     * @return the copy
+     */
+    DoubleColumn copyOf(int capacity, int count) {
+        double[] values = new double[capacity];
+        for (int i = 0; i < count; i++) {
+            values[i] = get(i);
+        }
+        return wrap(values);
+    }
+}
@@ -1,29 +1,42 @@
 package eu.kickuth.mthesis.graph;
 
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
-import static eu.kickuth.mthesis.utils.Settings.*;
+import static eu.kickuth.mthesis.utils.Settings.DIJKSTRA_MAX_INSTANCES;
 
 public class Graph {
 
     private static final Logger logger = LogManager.getLogger(Graph.class);
 
-    public final List<List<Edge>> adjList;
-    public final List<List<Edge>> adjListRev;
-    public final List<Node> nodes;
+    public final List<Node> nodes;  // read-only view, creates Node objects from the node store on access
+    private final NodeStore nodeStore;
     public final Set<Node> pois;
     public final Map<String, Integer> poiClassesToCount = new TreeMap<>(); // TODO private
-    private final List<List<Node>> poiGrid;
+    private volatile PoiIndex poiIndex;  // spatial index over the POIs, built on first use
+    private volatile NodeIndex nodeIndex;  // spatial index over routable nodes, built on first use
+
+    // edges added while building the graph. Released once the graph is frozen into its CSR representation.
+    private int[] edgeSources;
+    private int[] edgeTargets;
+    private double[] edgeCosts;
+    private int edgeCount = 0;
+    private volatile CSRGraph csr;
+    private volatile ContractionHierarchy contractionHierarchy;  // optional speed-up for point-to-point queries
+    private volatile Landmarks landmarks;  // optional lower bounds for goal-directed searches
+
+    // released Dijkstra instances, reused by later leases, and permits for leasing them
+    final Queue<Dijkstra> dijkstraPool = new ArrayBlockingQueue<>(DIJKSTRA_MAX_INSTANCES);
+    final Semaphore dijkstraLeases = new Semaphore(DIJKSTRA_MAX_INSTANCES);
 
     // bounds related variables
     private final double[] bounds;  // top/N, bottom/S, left/W, right/E
-    private final int nsLineCount;
 
 
     public Graph(double[] bounds) {
@@ -31,22 +44,47 @@ public class Graph {
     }
 
     public Graph(double[] bounds, int nodeCountEstimate) {
-        this.bounds = bounds;
-        adjList = new ArrayList<>(nodeCountEstimate);
-        adjListRev = new ArrayList<>(nodeCountEstimate);
-        nodes = new ArrayList<>(nodeCountEstimate);
-        pois = new HashSet<>(nodeCountEstimate / 200);
+        this(bounds, new NodeStore(nodeCountEstimate), nodeCountEstimate);
 
-        // TODO poiGrid based on distances, not lat/lon values
-        // Initialise POI grid
-        double nsDiff = Math.abs(bounds[0] - bounds[1]);
-        double weDiff = Math.abs(bounds[2] - bounds[3]);
-        nsLineCount = (int) Math.ceil(nsDiff / POI_GRID_FIDELITY);
-        int weLineCount = (int) Math.ceil(weDiff / POI_GRID_FIDELITY);
-        poiGrid = new ArrayList<>(nsLineCount * weLineCount);
-        for (int i = 0; i < nsLineCount * weLineCount; i++) {
-            poiGrid.add(new ArrayList<>());
+        // edge buffers grow on demand
+        int edgeCapacity = Math.max(16, nodeCountEstimate);
+        edgeSources = new int[edgeCapacity];
+        edgeTargets = new int[edgeCapacity];
+        edgeCosts = new double[edgeCapacity];
+    }
+
+    /**
+     * Create an already frozen graph from loaded node and edge data, e.g. from a snapshot.
+     * @param bounds top/N, bottom/S, left/W, right/E
+     * @param nodeStore the graph's nodes
+     * @param csr the graph's edges
+     */
+    Graph(double[] bounds, NodeStore nodeStore, CSRGraph csr) {
+        this(bounds, nodeStore, nodeStore.size());
+        for (int id = 0; id < nodeStore.size(); id++) {
+            if (nodeStore.isPoi(id)) {
+                registerPoi(id);
+            }
         }
+        this.csr = csr;
+    }
+
+    private Graph(double[] bounds, NodeStore nodeStore, int nodeCountEstimate) {
+        this.bounds = bounds;
+        this.nodeStore = nodeStore;
+        nodes = new AbstractList<>() {
+            @Override
+            public Node get(int index) {
+                Objects.checkIndex(index, nodeStore.size());
+                return nodeStore.getNode(index);
+            }
+
+            @Override
+            public int size() {
+                return nodeStore.size();
+            }
+        };
+        pois = new HashSet<>(nodeCountEstimate / 200);
     }
 
     /**
@@ -55,46 +93,116 @@ public class Graph {
      * @param toAdd node to add
      */
     public void addNode(Node toAdd) {
-        adjList.add(new ArrayList<>());
-        adjListRev.add(new ArrayList<>());
-        nodes.add(toAdd);
+        if (isFrozen()) {
+            throw new IllegalStateException("Can not add nodes to a frozen graph!");
+        }
+        int id = nodeStore.add(toAdd.lat, toAdd.lon, toAdd.type);
 
         // check if the node is a POI
-        String nodeType = toAdd.type;
-        if (!StringUtils.isEmpty(nodeType)) {
-            // add POI
-            pois.add(toAdd);
-            addToPoiGrid(toAdd);
-
-            // count up respective POI type: increment by one, or set to 1 if not present
-            poiClassesToCount.merge(toAdd.type, 1, Integer::sum);
+        if (nodeStore.isPoi(id)) {
+            registerPoi(id);
         }
     }
 
     /**
-     * Add POI to the correct element in the POI grid
-     * @param poi The node we want to add to the grid
+     * Add a stored node to the POI set and class counts.
+     * @param id id of a POI node
      */
-    private void addToPoiGrid(Node poi) {
-        double south = poi.lat - bounds[1];
-        double west = poi.lon - bounds[2];
-
-        int appropriateField = (int) Math.floor(west / POI_GRID_FIDELITY)  // west/east index
-                + nsLineCount * (int) Math.floor(south / POI_GRID_FIDELITY);  // north/south index
+    private void registerPoi(int id) {
+        Node poi = nodeStore.getNode(id);
+        pois.add(poi);
+        poiIndex = null;  // rebuilt on the next spatial query
 
-        poiGrid.get(appropriateField).add(poi);
+        // count up respective POI type: increment by one, or set to 1 if not present
+        poiClassesToCount.merge(poi.type, 1, Integer::sum);
     }
 
     /**
      * Add an edge to the graph
      */
     public void addEdge(Edge edge) {
-        try {
-            adjList.get(edge.source.id).add(edge);
-            adjListRev.get(edge.dest.id).add(edge);
-        } catch (IndexOutOfBoundsException e) {
-            logger.warn("Edge {} from non existent node {} added. Ignoring.", edge, edge.source);
+        if (isFrozen()) {
+            throw new IllegalStateException("Can not add edges to a frozen graph!");
+        }
+        if (edge.source.id >= nodeStore.size() || edge.dest.id >= nodeStore.size()) {
+            logger.warn("Edge {} from or to non existent node added. Ignoring.", edge);
+            return;
+        }
+        if (edgeCount == edgeSources.length) {
+            int newCapacity = edgeCount + (edgeCount >> 1);
+            edgeSources = Arrays.copyOf(edgeSources, newCapacity);
+            edgeTargets = Arrays.copyOf(edgeTargets, newCapacity);
+            edgeCosts = Arrays.copyOf(edgeCosts, newCapacity);
         }
+        edgeSources[edgeCount] = edge.source.id;
+        edgeTargets[edgeCount] = edge.dest.id;
+        edgeCosts[edgeCount] = edge.cost;
+        edgeCount++;
+    }
+
+    /**
+     * Convert the added edges into the immutable CSR representation. No nodes or edges can be added afterwards.
+     * Calling this method on an already frozen graph has no effect. A frozen graph may be read by multiple threads.
+     */
+    public synchronized void freeze() {
+        if (isFrozen()) {
+            return;
+        }
+        nodeStore.trimToSize();
+        csr = new CSRGraph(nodeStore.size(), edgeSources, edgeTargets, edgeCosts, edgeCount);
+        edgeSources = null;
+        edgeTargets = null;
+        edgeCosts = null;
+        logger.debug("Froze graph with {} nodes and {} edges.", csr.getNodeCount(), csr.getEdgeCount());
+    }
+
+    public boolean isFrozen() {
+        return csr != null;
+    }
+
+    /**
+     * Get the CSR edge representation of this graph. Freezes the graph, if it is not frozen yet.
+     * @return the graph's edges in CSR format
+     */
+    public CSRGraph getCSRGraph() {
+        freeze();
+        return csr;
+    }
+
+    /**
+     * @return the contraction hierarchy of this graph, null if none was set
+     */
+    public ContractionHierarchy getContractionHierarchy() {
+        return contractionHierarchy;
+    }
+
+    /**
+     * Set the contraction hierarchy used for point-to-point shortest path queries.
+     * @param ch a hierarchy built for this graph, or null to use plain Dijkstra searches
+     */
+    public void setContractionHierarchy(ContractionHierarchy ch) {
+        if (ch != null && !ch.matches(this)) {
+            throw new IllegalArgumentException("Contraction hierarchy does not belong to this graph!");
+        }
+        contractionHierarchy = ch;
+    }
+
+    /**
+     * @return the landmark tables of this graph, null if none were set
+     */
+    public Landmarks getLandmarks() {
+        return landmarks;
+    }
+
+    /**
+     * Set the landmark tables used by goal-directed (ALT) searches.
+     * @param landmarks tables computed for this graph, or null to use bee-line bounds only
+     */
+    public void setLandmarks(Landmarks landmarks) {
+        if (landmarks != null && !landmarks.matches(this)) {
+            throw new IllegalArgumentException("Landmarks do not belong to this graph!");
+        }
+        this.landmarks = landmarks;
     }
 
     /**
@@ -103,12 +211,40 @@ public class Graph {
      * @return node with specified id, null if no node present
      */
     public Node getNode(int id) {
-        try {
-            return nodes.get(id);
-        } catch (IndexOutOfBoundsException e) {
+        if (id < 0 || id >= nodeStore.size()) {
             logger.error("Non-existent node requested (id: {}).", id);
             return null;
         }
+        return nodeStore.getNode(id);
+    }
+
+    /**
+     * @return copy of the graph's bounds: top/N, bottom/S, left/W, right/E
+     */
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Get the columnar node storage, to read node values by id without creating Node objects.
+     * @return the graph's node store
+     */
+    public NodeStore getNodeStore() {
+        return nodeStore;
+    }
+
+    /**
+     * Computes the distance between two nodes of this graph.
+     * @param a first node id
+     * @param b second node id
+     * @return the distance in meters between the nodes
+     */
+    public double getDistance(int a, int b) {
+        return nodeStore.getDistance(a, b);
+    }
+
+    public boolean isPoi(int id) {
+        return nodeStore.isPoi(id);
     }
 
     public Graph createSubgraph(Set<Node> nodeSubset) {
@@ -119,11 +255,12 @@ public class Graph {
         }
 
         // add edges present in both graphs
+        CSRGraph edges = getCSRGraph();
         for (Node node : nodeSubset) {
-            var neighbours = adjList.get(node.id);
-            for (Edge neighbour : neighbours) {
-                if (nodeSubset.contains(neighbour.dest)) {
-                    subGraph.addEdge(neighbour);
+            for (int e = edges.outBegin(node.id); e < edges.outEnd(node.id); e++) {
+                Node neighbour = nodes.get(edges.outTarget(e));
+                if (nodeSubset.contains(neighbour)) {
+                    subGraph.addEdge(new Edge(node, neighbour, edges.outCost(e)));
                 }
             }
         }
@@ -131,22 +268,95 @@ public class Graph {
         return subGraph;
     }
 
-    public Collection<Node> getPois(double[] area) {
-        int north = (int) Math.ceil((area[0] - bounds[1]) / POI_GRID_FIDELITY);
-        int south = (int) Math.floor((area[1] - bounds[1]) / POI_GRID_FIDELITY);
-        int west = (int) Math.floor((area[2] - bounds[2]) / POI_GRID_FIDELITY);
-        int east = (int) Math.ceil((area[3] - bounds[2]) / POI_GRID_FIDELITY);
+    /**
+     * Snap a location to the closest node with edges. Freezes the graph, if it is not frozen yet.
+     * @param lat latitude of the location
+     * @param lon longitude of the location
+     * @return the closest node, null if the graph has no edges
+     */
+    public Node getNearestNode(double lat, double lon) {
+        int[] nearest = getNodeIndex().nearest(lat, lon, 1);
+        return nearest.length == 0 ? null : nodeStore.getNode(nearest[0]);
+    }
 
-        List<Node> results = new ArrayList<>();
+    /**
+     * Find the nodes with edges closest to a location. Freezes the graph, if it is not frozen yet.
+     * @param lat latitude of the location
+     * @param lon longitude of the location
+     * @param k number of nodes to find
+     * @return up to k nodes, ordered by increasing distance
+     */
+    public List<Node> getNearestNodes(double lat, double lon, int k) {
+        int[] nearest = getNodeIndex().nearest(lat, lon, k);
+        List<Node> result = new ArrayList<>(nearest.length);
+        for (int id : nearest) {
+            result.add(nodeStore.getNode(id));
+        }
+        return result;
+    }
 
-        // add all elements in all touching grid cells
-        for (int we = west; we < east; we++) {
-            for (int sn = south; sn < north; sn++) {
-                results.addAll(poiGrid.get(we + nsLineCount * sn));
+    private NodeIndex getNodeIndex() {
+        NodeIndex index = nodeIndex;
+        if (index == null) {
+            CSRGraph edges = getCSRGraph();
+            synchronized (this) {
+                index = nodeIndex;
+                if (index == null) {
+                    long startTime = System.currentTimeMillis();
+                    index = new NodeIndex(nodeStore, edges);
+                    nodeIndex = index;
+                    logger.debug("Indexed {} nodes in {}ms.", index.size(), System.currentTimeMillis() - startTime);
+                }
             }
         }
+        return index;
+    }
 
-        return results;
+    /**
+     * Find all POIs inside an area.
+     * @param area north, south, west and east border
+     * @return POIs inside the area, borders included
+     */
+    public Collection<Node> getPois(double[] area) {
+        return getPoiIndex().range(area[0], area[1], area[2], area[3]);
+    }
+
+    /**
+     * Find the POIs closest to a location, by air-line distance.
+     * @param lat latitude of the location
+     * @param lon longitude of the location
+     * @param k number of POIs to find
+     * @return up to k POIs, ordered by increasing distance
+     */
+    public List<Node> getNearestPois(double lat, double lon, int k) {
+        return getPoiIndex().nearest(lat, lon, k);
+    }
+
+    /**
+     * Find all POIs within an air-line distance of a location.
+     * @param lat latitude of the location
+     * @param lon longitude of the location
+     * @param radius maximum distance in meters
+     * @return POIs within the radius, in no particular order
+     */
+    public List<Node> getPoisWithin(double lat, double lon, double radius) {
+        return getPoiIndex().withinRadius(lat, lon, radius);
+    }
+
+    private PoiIndex getPoiIndex() {
+        PoiIndex index = poiIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = poiIndex;
+                if (index == null) {
+                    long startTime = System.currentTimeMillis();
+                    index = new PoiIndex(pois);
+                    poiIndex = index;
+                    logger.debug("Indexed {} POIs in {}ms.", pois.size(), System.currentTimeMillis() - startTime);
+                }
+            }
+        }
+        return index;
     }
 
     public Set<Node> getPoisOnPath(Path p) {
@@ -154,7 +364,7 @@ public class Graph {
     }
 
     public Set<Node> getPoisOnPath(List<Node> p) {
-        return p.stream().filter(pois::contains).collect(Collectors.toSet());
+        return p.stream().filter(node -> nodeStore.isPoi(node.id)).collect(Collectors.toSet());
     }
 
     public List<Node> getOrderedPoisOnPath(Path p) {
@@ -162,109 +372,326 @@ public class Graph {
     }
 
     public List<Node> getOrderedPoisOnPath(List<Node> p) {
-        return p.stream().filter(pois::contains).collect(Collectors.toList());
+        return p.stream().filter(node -> nodeStore.isPoi(node.id)).collect(Collectors.toList());
     }
 
+    /**
+     * A path through the graph: node IDs with the cost from the path's first node to each node.
+     *
+     * IDs and costs are primitive arrays with spare room at both ends, so nodes can be indexed in constant time and
+     * added to either end in amortised constant time. Stored costs are relative to a lazy cost offset: prepending a
+     * path raises the offset instead of every stored cost. Node objects are only created on access.
+     */
     public class Path {
 
-        private final LinkedList<DijkstraNode> dNodes;
-        private double pathCost;
+        private int[] ids;
+        private double[] costs;  // cost from the first node, minus costOffset
+        private int start;  // index of the first node in the arrays
+        private int size;
+        private double costOffset;
 
-        Path(LinkedList<DijkstraNode> nodes) {
-            this.dNodes = nodes;
-            pathCost = (nodes.isEmpty() ? 0 : nodes.getLast().distanceFromSource);
+        public Path() {
+            this(16);
         }
 
-        public Path() {
-            dNodes = new LinkedList<>();
-            pathCost = 0;
+        /**
+         * Create an empty path.
+         * @param capacity number of nodes the path can hold before growing
+         */
+        Path(int capacity) {
+            ids = new int[Math.max(capacity, 2)];
+            costs = new double[ids.length];
+            start = ids.length / 2;  // room to grow in both directions
         }
 
+        /**
+         * Add a node before the first node. Used to build paths backwards, e.g. by backtracking a search.
+         * @param id node id
+         * @param cost cost from the (final) first node to this node
+         */
+        void addFirst(int id, double cost) {
+            if (start == 0) {
+                grow(size + 1, 0);
+            }
+            start--;
+            size++;
+            ids[start] = id;
+            costs[start] = cost - costOffset;
+        }
+
+        /**
+         * Add a node after the last node.
+         * @param id node id
+         * @param cost cost from the first node to this node
+         */
+        void addLast(int id, double cost) {
+            if (start + size == ids.length) {
+                grow(0, size + 1);
+            }
+            ids[start + size] = id;
+            costs[start + size] = cost - costOffset;
+            size++;
+        }
+
+        /**
+         * Reallocate the arrays with at least the given free space before and after the nodes.
+         */
+        private void grow(int before, int after) {
+            int capacity = Math.max(ids.length * 2, before + size + after);
+            int newStart = before + (capacity - before - size - after) / 2;
+            int[] newIds = new int[capacity];
+            double[] newCosts = new double[capacity];
+            System.arraycopy(ids, start, newIds, newStart, size);
+            System.arraycopy(costs, start, newCosts, newStart, size);
+            ids = newIds;
+            costs = newCosts;
+            start = newStart;
+        }
+
+        /**
+         * Append a path, that starts with the last node of this path.
+         * @param toAppend the path to append. Is not modified.
+         * @return this path
+         */
         public Path append(Path toAppend) {
-            if (toAppend.dNodes.isEmpty()) {
-                // do nothing
-            } else if (dNodes.isEmpty()) {
+            if (toAppend == this) {
+                return append(toAppend.copy());
+            }
+            if (toAppend.isEmpty()) {
+                return this;  // do nothing
+            }
+            if (isEmpty()) {
                 // copy everything from toAppend
-                dNodes.addAll(toAppend.dNodes);
-                pathCost = toAppend.pathCost;
-            } else if(!dNodes.getLast().node.equals(toAppend.dNodes.getFirst().node)) {
+                for (int i = 0; i < toAppend.size; i++) {
+                    addLast(toAppend.getNodeId(i), toAppend.getCost(i));
+                }
+                return this;
+            }
+            if (getNodeId(size - 1) != toAppend.getNodeId(0)) {
                 throw new IllegalArgumentException("Appended path does not start with end node of previous path!");
-            } else {
-                toAppend.dNodes.forEach(dNode -> dNode.distanceFromSource += pathCost);
-                dNodes.removeLast();
-                dNodes.addAll(toAppend.dNodes);
-                pathCost = dNodes.getLast().distanceFromSource;
+            }
+            if (start + size + toAppend.size - 1 > ids.length) {
+                grow(0, toAppend.size - 1);
+            }
+            double appendedCostOffset = getPathCost() + toAppend.costOffset - costOffset;
+            for (int i = 1; i < toAppend.size; i++) {
+                ids[start + size] = toAppend.ids[toAppend.start + i];
+                costs[start + size] = toAppend.costs[toAppend.start + i] + appendedCostOffset;
+                size++;
+            }
+            return this;
+        }
+
+        /**
+         * Prepend a path, that ends with the first node of this path. Costs of this path's nodes are shifted lazily.
+         * @param toPrepend the path to prepend. Is not modified.
+         * @return this path
+         */
+        public Path prepend(Path toPrepend) {
+            if (toPrepend == this) {
+                return prepend(toPrepend.copy());
+            }
+            if (toPrepend.isEmpty()) {
+                return this;
+            }
+            if (isEmpty()) {
+                return append(toPrepend);
+            }
+            if (getNodeId(0) != toPrepend.getNodeId(toPrepend.size - 1)) {
+                throw new IllegalArgumentException("Prepended path does not end with start node of following path!");
+            }
+            if (start < toPrepend.size - 1) {
+                grow(toPrepend.size - 1, 0);
+            }
+            costOffset += toPrepend.getPathCost();
+            for (int i = toPrepend.size - 2; i >= 0; i--) {
+                addFirst(toPrepend.getNodeId(i), toPrepend.getCost(i));
             }
             return this;
         }
 
+        /**
+         * Replace the part between two nodes of this path by another path.
+         * @param toInsert path from the node at index start to the node at index end
+         * @param start index of the node where the inserted path starts
+         * @param end index of the node where the inserted path ends, at least start
+         * @return this path
+         */
         public Path insert(Path toInsert, int start, int end) {
-            // check if parameters are invalid. Passing this check implies that dNodes.size() > 0.
-            if (dNodes.size() <= Math.max(start, end) || Math.min(start, end) < 0) {
-                logger.error("Insertion points are out of bounds: start {}, end {}, path length {}", start, end, dNodes.size());
+            // check if parameters are invalid. Passing this check implies that size > 0.
+            if (size <= end || start < 0 || end < start) {
+                logger.error("Insertion points are out of bounds: start {}, end {}, path length {}", start, end, size);
                 throw new IllegalArgumentException();
             }
+            if (toInsert.isEmpty()) {
+                if (getNodeId(start) != getNodeId(end)) {
+                    throw new IllegalArgumentException("Inserted path is empty, but start and end node differ!");
+                }
+            } else if (getNodeId(start) != toInsert.getNodeId(0) ||
+                    getNodeId(end) != toInsert.getNodeId(toInsert.size - 1)) {
+                throw new IllegalArgumentException("Inserted path does not connect the insertion points!");
+            }
 
-            // LinkedList.subList does not create a copy. Therefore we map dNodes to new DijkstraNodes
-            LinkedList<DijkstraNode> backList = new LinkedList<>(dNodes.subList(end, dNodes.size()));
-            double reducedCost = backList.getFirst().distanceFromSource;
-            Path back = new Path(backList.stream().map(
-                    dNode -> new DijkstraNode(dNode.node, dNode.distanceFromSource - reducedCost))
-                    .collect(Collectors.toCollection(LinkedList::new)));
+            if (toInsert == this) {
+                return insert(toInsert.copy(), start, end);
+            }
+            if (start == end && toInsert.size <= 1) {
+                return this;  // nothing to insert
+            }
 
-            dNodes.subList(start+1, dNodes.size()).clear();
-            // if start == end, backList's first node is our last node.
-            pathCost = (start == end ? reducedCost : dNodes.getLast().distanceFromSource);
+            // nodes (start, end] are replaced by the nodes of the inserted path after its first
+            int shift = Math.max(0, toInsert.size - 1) - (end - start);
+            if (shift > 0 && this.start + size + shift > ids.length) {
+                grow(0, shift);
+            }
+            double startCost = getCost(start);
+            double costChange = startCost + toInsert.getPathCost() - getCost(end);
+
+            // move the tail and adjust its costs
+            int tailFrom = this.start + end + 1;
+            int tailLength = size - end - 1;
+            System.arraycopy(ids, tailFrom, ids, tailFrom + shift, tailLength);
+            System.arraycopy(costs, tailFrom, costs, tailFrom + shift, tailLength);
+            for (int i = tailFrom + shift; i < tailFrom + shift + tailLength; i++) {
+                costs[i] += costChange;
+            }
 
-            return append(toInsert).append(back);
+            for (int i = 1; i < toInsert.size; i++) {
+                ids[this.start + start + i] = toInsert.getNodeId(i);
+                costs[this.start + start + i] = startCost + toInsert.getCost(i) - costOffset;
+            }
+            size += shift;
+            return this;
         }
 
         public double getPathCost() {
-            return pathCost;
+            return isEmpty() ? 0 : getCost(size - 1);
         }
 
-        public LinkedList<Node> getNodes() {
-            return dNodes.stream().map(dNode -> dNode.node).collect(Collectors.toCollection(LinkedList::new));
+        /**
+         * @return read-only view of the path's nodes. Node objects are created on access.
+         */
+        public List<Node> getNodes() {
+            return new NodeView();
         }
 
         public Node get(int index) {
-            return dNodes.get(index).node;
+            return nodeStore.getNode(getNodeId(index));
+        }
+
+        /**
+         * @param index position on the path
+         * @return id of the node at the position
+         */
+        public int getNodeId(int index) {
+            Objects.checkIndex(index, size);
+            return ids[start + index];
+        }
+
+        /**
+         * @param index position on the path
+         * @return latitude of the node at the position, without creating a Node object
+         */
+        public double getLat(int index) {
+            return nodeStore.getLat(getNodeId(index));
+        }
+
+        /**
+         * @param index position on the path
+         * @return longitude of the node at the position, without creating a Node object
+         */
+        public double getLon(int index) {
+            return nodeStore.getLon(getNodeId(index));
+        }
+
+        /**
+         * @param index position on the path
+         * @return cost from the first node to the node at the position
+         */
+        public double getCost(int index) {
+            Objects.checkIndex(index, size);
+            return costs[start + index] + costOffset;
+        }
+
+        /**
+         * @param node a node
+         * @return first position of the node on the path, -1 if the path does not contain it
+         */
+        public int indexOf(Node node) {
+            for (int i = 0; i < size; i++) {
+                if (ids[start + i] == node.id) {
+                    return i;
+                }
+            }
+            return -1;
         }
 
         public Node getFirst() {
-            return dNodes.getFirst().node;
+            if (isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            return get(0);
         }
 
         public Node getLast() {
-            return dNodes.getLast().node;
+            if (isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            return get(size - 1);
         }
 
         public boolean isEmpty() {
-            return dNodes.isEmpty();
+            return size == 0;
         }
 
         public int size() {
-            return dNodes.size();
+            return size;
         }
 
         public Path copy() {
-            return new Path(dNodes.stream().map(dNode -> new DijkstraNode(dNode.node, dNode.distanceFromSource)).collect(Collectors.toCollection(LinkedList::new)));
+            Path copy = new Path(size);
+            copy.start = 0;
+            copy.size = size;
+            System.arraycopy(ids, start, copy.ids, 0, size);
+            for (int i = 0; i < size; i++) {
+                copy.costs[i] = costs[start + i] + costOffset;
+            }
+            return copy;
         }
 
         @Override
         public String toString() {
             StringBuilder s = new StringBuilder("Path: ");
-            if (dNodes.size() < 15) {
-                for (DijkstraNode dNode : dNodes) {
-                    s.append(dNode.node.id).append(", ");
+            if (size < 15) {
+                for (int i = 0; i < size; i++) {
+                    s.append(getNodeId(i)).append(", ");
                 }
             } else {
-                s.append(String.format("%d, %d, [%d nodes], %d, ", dNodes.getFirst().node.id,
-                        dNodes.get(1).node.id, dNodes.size()-3, dNodes.getLast().node.id));
+                s.append(String.format("%d, %d, [%d nodes], %d, ", getNodeId(0), getNodeId(1), size - 3,
+                        getNodeId(size - 1)));
             }
-            s.append("Total length: ").append(pathCost);
+            s.append("Total length: ").append(getPathCost());
             return s.toString();
         }
+
+
+        private class NodeView extends AbstractList<Node> implements RandomAccess {
+
+            @Override
+            public Node get(int index) {
+                return Path.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public int indexOf(Object o) {
+                return o instanceof Node ? Path.this.indexOf((Node) o) : -1;
+            }
+        }
     }
 
 }
\ No newline at end of file
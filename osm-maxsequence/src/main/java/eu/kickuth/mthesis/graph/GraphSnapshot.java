@@ -0,0 +1,280 @@
+package eu.kickuth.mthesis.graph;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary snapshot of a frozen graph, for fast startup without parsing OSM data.
+ *
+ * The file (little endian) holds a header with the graph bounds, followed by the node store (POI class dictionary
+ * and node columns) and the CSR edge arrays. Arrays are read through memory mapped file regions of at most 2^CHUNK_BITS
+ * values, and are either copied to the heap or used in place. POI sets, class counts and the POI index are derived from
+ * the node columns when loading; they only cover the POIs, a small fraction of all nodes, and stay on the heap.
+ */
+public final class GraphSnapshot {
+
+    private static final Logger logger = LogManager.getLogger(GraphSnapshot.class);
+
+    private static final int FILE_MAGIC = 0x47520001;  // "GR", format version 1
+    private static final int CHUNK_BITS = 27;  // values per mapped region: 2^27, i.e. 1 GB of doubles
+
+    // don't allow instantiation
+    private GraphSnapshot() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Write a snapshot of a graph. The file is replaced atomically, so readers never see a partial snapshot.
+     * @param graph the graph to store. Will be frozen, if it is not yet.
+     * @param file the output file
+     * @throws IOException if writing fails
+     */
+    public static void write(Graph graph, File file) throws IOException {
+        long startTime = System.currentTimeMillis();
+        CSRGraph edges = graph.getCSRGraph();
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer out = new Writer(FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            out.putInt(FILE_MAGIC);
+            for (double bound : graph.getBounds()) {
+                out.putDouble(bound);
+            }
+            graph.getNodeStore().writeTo(out);
+            edges.writeTo(out);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Wrote graph snapshot {} in {}ms.", file, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Load a graph from a snapshot into the heap.
+     * @param file the snapshot file
+     * @return the frozen graph
+     * @throws IOException if reading fails or the file is no valid snapshot
+     */
+    public static Graph read(File file) throws IOException {
+        return read(file, false);
+    }
+
+    /**
+     * Load a graph from a snapshot.
+     * @param file the snapshot file
+     * @param memoryMapped keep node and edge data in read-only memory mapped regions of the file, instead of copying
+     *                     them to the heap? The file must not be modified while the graph is in use.
+     * @return the frozen graph
+     * @throws IOException if reading fails or the file is no valid snapshot
+     */
+    public static Graph read(File file, boolean memoryMapped) throws IOException {
+        return read(file, memoryMapped, CHUNK_BITS);
+    }
+
+    /**
+     * Load a graph from a snapshot, mapping arrays in chunks of the given size.
+     * @param chunkBits values per mapped region, as a power of two
+     */
+    static Graph read(File file, boolean memoryMapped, int chunkBits) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try (Reader in = new Reader(FileChannel.open(file.toPath(), StandardOpenOption.READ), memoryMapped,
+                chunkBits)) {
+            if (in.getInt() != FILE_MAGIC) {
+                throw new IOException("Not a graph snapshot: " + file);
+            }
+            double[] bounds = new double[4];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = in.getDouble();
+            }
+            NodeStore nodeStore = NodeStore.readFrom(in);
+            CSRGraph edges = CSRGraph.readFrom(in);
+            if (edges.getNodeCount() != nodeStore.size()) {
+                throw new IOException("Corrupt graph snapshot (node counts differ): " + file);
+            }
+            Graph graph = new Graph(bounds, nodeStore, edges);
+            logger.debug("Read graph snapshot {} in {}ms.", file, System.currentTimeMillis() - startTime);
+            return graph;
+        }
+    }
+
+
+    /**
+     * Buffered sequential writer for snapshot files.
+     */
+    static final class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        private Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensureRemaining(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        void putInts(IntColumn values, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                putInt(values.get(i));
+            }
+        }
+
+        void putDoubles(DoubleColumn values, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                putDouble(values.get(i));
+            }
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            for (byte b : bytes) {
+                ensureRemaining(1);
+                buffer.put(b);
+            }
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+
+    /**
+     * Sequential reader for snapshot files. Arrays are memory mapped regions of the file, or heap copies of them.
+     * Arrays are mapped in chunks, as a single mapped region can not exceed 2 GB.
+     */
+    static final class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final boolean memoryMapped;  // return mapped regions instead of heap copies?
+        private final int chunkBits;  // values per mapped region, as a power of two
+        private long position = 0;
+
+        private Reader(FileChannel channel, boolean memoryMapped, int chunkBits) {
+            this.channel = channel;
+            this.memoryMapped = memoryMapped;
+            this.chunkBits = chunkBits;
+        }
+
+        int getInt() throws IOException {
+            return read(Integer.BYTES).getInt();
+        }
+
+        double getDouble() throws IOException {
+            return read(Double.BYTES).getDouble();
+        }
+
+        IntColumn getInts(int count) throws IOException {
+            IntBuffer[] chunks = new IntBuffer[chunkCount(count)];
+            int[] values = memoryMapped ? null : new int[count];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                int offset = chunk << chunkBits;
+                int length = Math.min(count - offset, 1 << chunkBits);
+                chunks[chunk] = map((long) length * Integer.BYTES).asIntBuffer();
+                if (values != null) {
+                    chunks[chunk].get(values, offset, length);
+                }
+            }
+            return values == null ? new IntColumn(chunks, chunkBits, count) : IntColumn.wrap(values);
+        }
+
+        DoubleColumn getDoubles(int count) throws IOException {
+            DoubleBuffer[] chunks = new DoubleBuffer[chunkCount(count)];
+            double[] values = memoryMapped ? null : new double[count];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                int offset = chunk << chunkBits;
+                int length = Math.min(count - offset, 1 << chunkBits);
+                chunks[chunk] = map((long) length * Double.BYTES).asDoubleBuffer();
+                if (values != null) {
+                    chunks[chunk].get(values, offset, length);
+                }
+            }
+            return values == null ? new DoubleColumn(chunks, chunkBits, count) : DoubleColumn.wrap(values);
+        }
+
+        /**
+         * @return number of chunks for an array, at least one
+         */
+        private int chunkCount(int count) {
+            return Math.max(1, (int) (((long) count + (1 << chunkBits) - 1) >>> chunkBits));
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            return new String(read(length).array(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Map the next bytes of the file, at most 2 GB.
+         */
+        private ByteBuffer map(long bytes) throws IOException {
+            if (position + bytes > channel.size()) {
+                throw new EOFException("Unexpected end of graph snapshot.");
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            position += bytes;
+            return mapped;
+        }
+
+        /**
+         * Read the next few bytes of the file into a heap buffer.
+         */
+        private ByteBuffer read(int bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of graph snapshot.");
+                }
+            }
+            position += bytes;
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package eu.kickuth.mthesis.graph;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap over int ids in the range [0, capacity), keyed by doubles. Keeps track of the heap position of every
+ * id, which allows decreasing the key of queued ids instead of inserting duplicates. Does not allocate after
+ * construction.
+ */
+public final class IndexedMinHeap {
+
+    private static final int ABSENT = -1;
+
+    private final int[] heap;  // ids in heap order
+    private final double[] keys;  // keys in heap order
+    private final int[] positions;  // heap position for each id, ABSENT if the id is not queued
+    private int size = 0;
+
+    /**
+     * Create a new heap.
+     * @param capacity number of distinct ids, i.e. the largest id plus one
+     */
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, ABSENT);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int id) {
+        return positions[id] != ABSENT;
+    }
+
+    /**
+     * Insert an id, or lower its key if it is already queued. Keys are never increased.
+     * @param id the id to insert or update
+     * @param key the new key
+     */
+    public void insertOrDecrease(int id, double key) {
+        int position = positions[id];
+        if (position == ABSENT) {
+            position = size++;
+            heap[position] = id;
+            keys[position] = key;
+            positions[id] = position;
+            siftUp(position);
+        } else if (key < keys[position]) {
+            keys[position] = key;
+            siftUp(position);
+        }
+    }
+
+    /**
+     * @return the smallest key in the heap
+     */
+    public double peekKey() {
+        if (size == 0) {
+            throw new IllegalStateException("Heap is empty!");
+        }
+        return keys[0];
+    }
+
+    /**
+     * @return the id with the smallest key in the heap
+     */
+    public int peek() {
+        if (size == 0) {
+            throw new IllegalStateException("Heap is empty!");
+        }
+        return heap[0];
+    }
+
+    /**
+     * Remove the id with the smallest key.
+     * @return the removed id
+     */
+    public int poll() {
+        if (size == 0) {
+            throw new IllegalStateException("Heap is empty!");
+        }
+        int min = heap[0];
+        positions[min] = ABSENT;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            keys[0] = keys[size];
+            positions[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    /**
+     * Remove all ids. Runs in time linear to the current heap size.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            positions[heap[i]] = ABSENT;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int position) {
+        int id = heap[position];
+        double key = keys[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            move(parent, position);
+            position = parent;
+        }
+        place(id, key, position);
+    }
+
+    private void siftDown(int position) {
+        int id = heap[position];
+        double key = keys[position];
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if (right < size && keys[right] < keys[child]) {
+                child = right;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            move(child, position);
+            position = child;
+        }
+        place(id, key, position);
+    }
+
+    private void move(int from, int to) {
+        heap[to] = heap[from];
+        keys[to] = keys[from];
+        positions[heap[to]] = to;
+    }
+
+    private void place(int id, double key, int position) {
+        heap[position] = id;
+        keys[position] = key;
+        positions[id] = position;
+    }
+}
@@ -0,0 +1,218 @@
+package eu.kickuth.mthesis.graph;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Landmark distance tables for ALT (A*, Landmarks, Triangle inequality) searches.
+ *
+ * For every landmark L the distances d(L, v) and d(v, L) to and from all nodes v are stored. By the triangle
+ * inequality, d(v, L) - d(t, L) and d(L, t) - d(L, v) are lower bounds of d(v, t). Distances are stored as floats
+ * rounded down, and rounded up again where they are subtracted, so the bounds stay admissible.
+ */
+public final class Landmarks {
+
+    private static final Logger logger = LogManager.getLogger(Landmarks.class);
+
+    private static final int FILE_MAGIC = 0x4c4d0001;  // "LM", format version 1
+
+    private final int nodeCount;
+    private final int originalEdgeCount;  // edge count of the graph, used to detect outdated files
+    private final int[] landmarkIds;
+    private final float[][] fromLandmark;  // d(L, v), indexed by landmark, then node
+    private final float[][] toLandmark;  // d(v, L), indexed by landmark, then node
+
+    private Landmarks(int nodeCount, int originalEdgeCount, int[] landmarkIds, float[][] fromLandmark,
+                      float[][] toLandmark) {
+        this.nodeCount = nodeCount;
+        this.originalEdgeCount = originalEdgeCount;
+        this.landmarkIds = landmarkIds;
+        this.fromLandmark = fromLandmark;
+        this.toLandmark = toLandmark;
+    }
+
+    /**
+     * Select landmarks by farthest selection and compute their distance tables. Each new landmark is the node with the
+     * largest (finite) distance from all previously selected landmarks.
+     * @param graph the graph to preprocess. Will be frozen, if it is not yet.
+     * @param count number of landmarks to select
+     * @return landmark tables for the graph
+     */
+    public static Landmarks select(Graph graph, int count) {
+        logger.info("Selecting {} landmarks", count);
+        long startTime = System.currentTimeMillis();
+        CSRGraph edges = graph.getCSRGraph();
+        int nodeCount = edges.getNodeCount();
+        count = Math.min(count, nodeCount);
+
+        IndexedMinHeap queue = new IndexedMinHeap(nodeCount);
+        double[] distances = new double[nodeCount];
+        double[] selectionDistances = new double[nodeCount];
+        int[] landmarkIds = new int[count];
+        float[][] fromLandmark = new float[count][];
+        float[][] toLandmark = new float[count][];
+
+        int[] sources = {0};
+        for (int i = 0; i < count; i++) {
+            // distances from the already selected landmarks (or an arbitrary start node) pick the next landmark
+            search(edges, sources, false, selectionDistances, queue);
+            int landmark = farthest(selectionDistances);
+            landmarkIds[i] = landmark;
+            sources = Arrays.copyOf(landmarkIds, i + 1);
+
+            search(edges, new int[]{landmark}, false, distances, queue);
+            fromLandmark[i] = roundDown(distances);
+            search(edges, new int[]{landmark}, true, distances, queue);
+            toLandmark[i] = roundDown(distances);
+            logger.trace("Selected landmark {} (node {}).", i, landmark);
+        }
+        logger.info("Selected landmarks in {}s.", (System.currentTimeMillis() - startTime) / 1000);
+        return new Landmarks(nodeCount, edges.getEdgeCount(), landmarkIds, fromLandmark, toLandmark);
+    }
+
+    /**
+     * Full Dijkstra search from a set of sources.
+     * @param reverse search along incoming edges?
+     * @param distances output array, infinity for unreachable nodes
+     */
+    private static void search(CSRGraph edges, int[] sources, boolean reverse, double[] distances,
+                               IndexedMinHeap queue) {
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        queue.clear();
+        for (int source : sources) {
+            distances[source] = 0;
+            queue.insertOrDecrease(source, 0);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            double distance = distances[node];
+            int begin = reverse ? edges.inBegin(node) : edges.outBegin(node);
+            int end = reverse ? edges.inEnd(node) : edges.outEnd(node);
+            for (int e = begin; e < end; e++) {
+                int neighbour = reverse ? edges.inSource(e) : edges.outTarget(e);
+                double alternative = distance + (reverse ? edges.inCost(e) : edges.outCost(e));
+                if (alternative < distances[neighbour]) {
+                    distances[neighbour] = alternative;
+                    queue.insertOrDecrease(neighbour, alternative);
+                }
+            }
+        }
+    }
+
+    private static int farthest(double[] distances) {
+        int farthest = 0;
+        for (int v = 1; v < distances.length; v++) {
+            if (distances[v] != Double.POSITIVE_INFINITY && distances[v] > distances[farthest]) {
+                farthest = v;
+            }
+        }
+        return farthest;
+    }
+
+    private static float[] roundDown(double[] distances) {
+        float[] rounded = new float[distances.length];
+        for (int v = 0; v < distances.length; v++) {
+            float value = (float) distances[v];
+            rounded[v] = (value > distances[v] ? Math.nextDown(value) : value);
+        }
+        return rounded;
+    }
+
+    /**
+     * Check whether these tables were computed for a graph with the given structure.
+     * @param g the graph to check
+     * @return true, if node and edge counts match
+     */
+    public boolean matches(Graph g) {
+        CSRGraph edges = g.getCSRGraph();
+        return edges.getNodeCount() == nodeCount && edges.getEdgeCount() == originalEdgeCount;
+    }
+
+    public int[] getLandmarkIds() {
+        return landmarkIds.clone();
+    }
+
+    /**
+     * Lower bound of the distance between two nodes by the triangle inequality.
+     * @param node the node to estimate the distance from
+     * @param target the node to estimate the distance to
+     * @return lower bound of d(node, target), infinity if the target is not reachable
+     */
+    public double lowerBound(int node, int target) {
+        double bound = 0;
+        for (int i = 0; i < landmarkIds.length; i++) {
+            // d(v, t) >= d(v, L) - d(t, L)
+            float targetToLandmark = toLandmark[i][target];
+            if (targetToLandmark != Float.POSITIVE_INFINITY) {
+                bound = Math.max(bound, (double) toLandmark[i][node] - Math.nextUp(targetToLandmark));
+            }
+            // d(v, t) >= d(L, t) - d(L, v)
+            float landmarkToNode = fromLandmark[i][node];
+            if (landmarkToNode != Float.POSITIVE_INFINITY) {
+                bound = Math.max(bound, (double) fromLandmark[i][target] - Math.nextUp(landmarkToNode));
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Store the landmark tables in a binary file.
+     * @param file the output file
+     * @throws IOException if writing fails
+     */
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(nodeCount);
+            out.writeInt(originalEdgeCount);
+            out.writeInt(landmarkIds.length);
+            for (int i = 0; i < landmarkIds.length; i++) {
+                out.writeInt(landmarkIds[i]);
+                for (int v = 0; v < nodeCount; v++) {
+                    out.writeFloat(fromLandmark[i][v]);
+                }
+                for (int v = 0; v < nodeCount; v++) {
+                    out.writeFloat(toLandmark[i][v]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load landmark tables from a binary file.
+     * @param file the input file
+     * @param graph the graph the tables were computed for
+     * @return the loaded tables
+     * @throws IOException if reading fails or the file does not belong to the graph
+     */
+    public static Landmarks read(File file, Graph graph) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a landmark file: " + file);
+            }
+            int nodeCount = in.readInt();
+            int originalEdgeCount = in.readInt();
+            CSRGraph edges = graph.getCSRGraph();
+            if (nodeCount != edges.getNodeCount() || originalEdgeCount != edges.getEdgeCount()) {
+                throw new IOException("Landmark file does not match the graph: " + file);
+            }
+            int count = in.readInt();
+            int[] landmarkIds = new int[count];
+            float[][] fromLandmark = new float[count][nodeCount];
+            float[][] toLandmark = new float[count][nodeCount];
+            for (int i = 0; i < count; i++) {
+                landmarkIds[i] = in.readInt();
+                for (int v = 0; v < nodeCount; v++) {
+                    fromLandmark[i][v] = in.readFloat();
+                }
+                for (int v = 0; v < nodeCount; v++) {
+                    toLandmark[i][v] = in.readFloat();
+                }
+            }
+            return new Landmarks(nodeCount, originalEdgeCount, landmarkIds, fromLandmark, toLandmark);
+        }
+    }
+}
@@ -9,10 +9,22 @@ public class Node {
 //    private String roadType;
 
     public Node(int id, double lat, double lon, String type) {
+        this(id, lat, lon, type, true);
+    }
+
+    private Node(int id, double lat, double lon, String type, boolean intern) {
         this.id = id;
         this.lat = lat;
         this.lon = lon;
-        this.type = (type == null ? null : type.intern());
+        this.type = (type == null || !intern ? type : type.intern());
+    }
+
+    /**
+     * Create a node whose class name is interned already, e.g. taken from the node store's class dictionary. Skips
+     * the string table lookup of the public constructor.
+     */
+    static Node withInternedType(int id, double lat, double lon, String type) {
+        return new Node(id, lat, lon, type, false);
     }
 
     /**
@@ -41,14 +53,21 @@ public class Node {
      * @return the Distance in meters between the nodes.
      */
     public double getDistance(Node n) {
+        return getDistance(lat, lon, n.lat, n.lon);
+    }
+
+    /**
+     * Computes the distance between two lat/lon pairs.
+     *
+     * @return the Distance in meters between the coordinates.
+     */
+    public static double getDistance(double lat1, double lon1, double lat2, double lon2) {
         final int R = 6371;  // earths radius
 
-        double lat2 = n.lat;
-        double lon2 = n.lon;
-        double latDistance = Math.toRadians(lat2 - lat);
-        double lonDistance = Math.toRadians(lon2 - lon);
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
         double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
-                + Math.cos(Math.toRadians(lat)) * Math.cos(Math.toRadians(lat2))
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
                 * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
         double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
 
@@ -0,0 +1,246 @@
+package eu.kickuth.mthesis.graph;
+
+/**
+ * Static k-d tree over graph nodes, to snap coordinates to the nearest road nodes.
+ *
+ * The tree is implicit in the node order: the median of each range splits it, alternating between latitude (even
+ * depths) and longitude (odd depths). Ranges of at most LEAF_SIZE nodes are scanned. Node IDs and coordinates are held
+ * in primitive arrays in tree order, so queries neither touch the node store nor create Node objects.
+ */
+final class NodeIndex {
+
+    private static final int LEAF_SIZE = 8;
+    private static final double EARTH_RADIUS = 6371_000;  // in meters, as used by Node.getDistance
+
+    private final int[] ids;
+    private final double[] lats;
+    private final double[] lons;
+
+    /**
+     * Build an index over all nodes of a frozen graph that have edges. Nodes without edges can not be routed from or
+     * to, e.g. nodes that were removed by an update.
+     * @param nodeStore the graph's nodes
+     * @param edges the graph's edges
+     */
+    NodeIndex(NodeStore nodeStore, CSRGraph edges) {
+        int count = 0;
+        for (int id = 0; id < nodeStore.size(); id++) {
+            if (edges.outDegree(id) > 0 || edges.inDegree(id) > 0) {
+                count++;
+            }
+        }
+        ids = new int[count];
+        lats = new double[count];
+        lons = new double[count];
+        int i = 0;
+        for (int id = 0; id < nodeStore.size(); id++) {
+            if (edges.outDegree(id) > 0 || edges.inDegree(id) > 0) {
+                ids[i] = id;
+                lats[i] = nodeStore.getLat(id);
+                lons[i] = nodeStore.getLon(id);
+                i++;
+            }
+        }
+        build(0, count, 0);
+    }
+
+    private void build(int from, int to, int depth) {
+        if (to - from <= LEAF_SIZE) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        select(from, to, mid, depth % 2 == 0 ? lats : lons);
+        build(from, mid, depth + 1);
+        build(mid + 1, to, depth + 1);
+    }
+
+    /**
+     * Reorder a range, so that position k holds the element it would have if the range was sorted by the given
+     * coordinate, with smaller or equal elements before and greater or equal elements after it (quickselect).
+     */
+    private void select(int from, int to, int k, double[] coordinates) {
+        int left = from, right = to - 1;
+        while (left < right) {
+            double pivot = coordinates[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (coordinates[i] < pivot) {
+                    i++;
+                }
+                while (coordinates[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        double lat = lats[a];
+        lats[a] = lats[b];
+        lats[b] = lat;
+        double lon = lons[a];
+        lons[a] = lons[b];
+        lons[b] = lon;
+    }
+
+    /**
+     * @return number of indexed nodes
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Find the nodes closest to a location.
+     * @param lat latitude of the location
+     * @param lon longitude of the location
+     * @param k number of nodes to find
+     * @return IDs of up to k nodes, ordered by increasing distance
+     */
+    int[] nearest(double lat, double lon, int k) {
+        Query query = new Query(lat, lon, Math.max(0, Math.min(k, ids.length)));
+        if (query.capacity > 0) {
+            search(0, ids.length, 0, query);
+        }
+        return query.sortedIds();
+    }
+
+    private void search(int from, int to, int depth, Query query) {
+        if (to - from <= LEAF_SIZE) {
+            for (int i = from; i < to; i++) {
+                query.offer(ids[i], Node.getDistance(query.lat, query.lon, lats[i], lons[i]));
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        query.offer(ids[mid], Node.getDistance(query.lat, query.lon, lats[mid], lons[mid]));
+
+        boolean latSplit = depth % 2 == 0;
+        double split = latSplit ? lats[mid] : lons[mid];
+        boolean lowerFirst = (latSplit ? query.lat : query.lon) < split;
+        if (lowerFirst) {
+            search(from, mid, depth + 1, query);
+        } else {
+            search(mid + 1, to, depth + 1, query);
+        }
+        if (!query.isFull() || splitDistance(query, latSplit, split) < query.maxDistance()) {
+            if (lowerFirst) {
+                search(mid + 1, to, depth + 1, query);
+            } else {
+                search(from, mid, depth + 1, query);
+            }
+        }
+    }
+
+    /**
+     * Lower bound for the distance between the query location and any point on the other side of a split: the
+     * distance to the parallel of a latitude split, or to the great circle through the meridian of a longitude split.
+     */
+    private static double splitDistance(Query query, boolean latSplit, double split) {
+        double angle;
+        if (latSplit) {
+            angle = Math.toRadians(Math.abs(query.lat - split));
+        } else {
+            double sinLonDistance = Math.abs(Math.sin(Math.toRadians(query.lon - split)));
+            angle = Math.asin(Math.min(1, sinLonDistance * Math.cos(Math.toRadians(query.lat))));
+        }
+        // slightly lower, so rounding errors never exceed the exact distance
+        return EARTH_RADIUS * angle * (1 - 1e-12);
+    }
+
+
+    /**
+     * State of a k nearest neighbour query: the closest nodes found so far, in a max heap by distance.
+     */
+    private static final class Query {
+
+        private final double lat;
+        private final double lon;
+        private final int capacity;
+        private final int[] heapIds;
+        private final double[] heapDistances;
+        private int size = 0;
+
+        private Query(double lat, double lon, int capacity) {
+            this.lat = lat;
+            this.lon = lon;
+            this.capacity = capacity;
+            heapIds = new int[capacity];
+            heapDistances = new double[capacity];
+        }
+
+        private boolean isFull() {
+            return size == capacity;
+        }
+
+        private double maxDistance() {
+            return heapDistances[0];
+        }
+
+        private void offer(int id, double distance) {
+            if (size < capacity) {
+                // sift up
+                int i = size++;
+                while (i > 0 && heapDistances[(i - 1) / 2] < distance) {
+                    heapIds[i] = heapIds[(i - 1) / 2];
+                    heapDistances[i] = heapDistances[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                heapIds[i] = id;
+                heapDistances[i] = distance;
+            } else if (distance < heapDistances[0]) {
+                replaceMax(id, distance);
+            }
+        }
+
+        /**
+         * Replace the farthest node and sift down.
+         */
+        private void replaceMax(int id, double distance) {
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heapDistances[child + 1] > heapDistances[child]) {
+                    child++;
+                }
+                if (heapDistances[child] <= distance) {
+                    break;
+                }
+                heapIds[i] = heapIds[child];
+                heapDistances[i] = heapDistances[child];
+                i = child;
+            }
+            heapIds[i] = id;
+            heapDistances[i] = distance;
+        }
+
+        /**
+         * Empty the heap.
+         * @return node IDs, ordered by increasing distance
+         */
+        private int[] sortedIds() {
+            int[] sorted = new int[size];
+            while (size > 0) {
+                sorted[size - 1] = heapIds[0];
+                size--;
+                if (size > 0) {
+                    replaceMax(heapIds[size], heapDistances[size]);
+                }
+            }
+            return sorted;
+        }
+    }
+}
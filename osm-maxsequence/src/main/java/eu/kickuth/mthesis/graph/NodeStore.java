@@ -0,0 +1,192 @@
+package eu.kickuth.mthesis.graph;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar node storage. Coordinates and POI classes are kept in primitive columns indexed by node id, POI class
+ * names are stored once in a dictionary and referenced by their class id.
+ *
+ * Columns are heap arrays for graphs built in memory, or read-only memory mapped regions of a graph snapshot, which keeps them off the JVM heap and shares them between processes through the page cache.
+ */
+public final class NodeStore {
+
+    public static final int NO_CLASS = -1;  // class id of nodes that are not a POI
+
+    private DoubleColumn lats;
+    private DoubleColumn lons;
+    private IntColumn classIds;
+    private int size = 0;
+
+    // class dictionary
+    private final List<String> classNames = new ArrayList<>();
+    private final Map<String, Integer> classNameToId = new HashMap<>();
+
+    NodeStore(int capacity) {
+        capacity = Math.max(16, capacity);
+        lats = DoubleColumn.wrap(new double[capacity]);
+        lons = DoubleColumn.wrap(new double[capacity]);
+        classIds = IntColumn.wrap(new int[capacity]);
+    }
+
+    /**
+     * Create a store from loaded columns.
+     */
+    private NodeStore(DoubleColumn lats, DoubleColumn lons, IntColumn classIds, List<String> classNames) {
+        this.lats = lats;
+        this.lons = lons;
+        this.classIds = classIds;
+        this.size = lats.size();
+        for (String className : classNames) {
+            getOrCreateClassId(className);
+        }
+    }
+
+    /**
+     * Append a node to the store.
+     * @param lat latitude
+     * @param lon longitude
+     * @param type POI class name, null or empty if the node is no POI
+     * @return the id of the added node
+     */
+    int add(double lat, double lon, String type) {
+        if (size == lats.size()) {
+            resize(size + (size >> 1));
+        }
+        lats.put(size, lat);
+        lons.put(size, lon);
+        classIds.put(size, (type == null || type.isEmpty() ? NO_CLASS : getOrCreateClassId(type)));
+        return size++;
+    }
+
+    private int getOrCreateClassId(String type) {
+        Integer classId = classNameToId.get(type);
+        if (classId == null) {
+            classId = classNames.size();
+            classNames.add(type.intern());
+            classNameToId.put(type, classId);
+        }
+        return classId;
+    }
+
+    /**
+     * Release unused capacity once all nodes are added.
+     */
+    void trimToSize() {
+        if (lats.size() != size) {
+            resize(size);
+        }
+    }
+
+    /**
+     * Copy the columns into new heap columns of the given capacity.
+     */
+    private void resize(int capacity) {
+        lats = lats.copyOf(capacity, size);
+        lons = lons.copyOf(capacity, size);
+        classIds = classIds.copyOf(capacity, size);
+    }
+
+    /**
+     * @return true, if the columns are stored outside the JVM heap (e.g. memory mapped)
+     */
+    public boolean isOffHeap() {
+        return lats.isDirect();
+    }
+
+    /**
+     * Write the class dictionary and node columns to a graph snapshot.
+     */
+    void writeTo(GraphSnapshot.Writer out) throws IOException {
+        out.putInt(size);
+        out.putInt(classNames.size());
+        for (String className : classNames) {
+            out.putString(className);
+        }
+        out.putDoubles(lats, size);
+        out.putDoubles(lons, size);
+        out.putInts(classIds, size);
+    }
+
+    /**
+     * Read a node store written by {@link #writeTo(GraphSnapshot.Writer)}.
+     */
+    static NodeStore readFrom(GraphSnapshot.Reader in) throws IOException {
+        int size = in.getInt();
+        int classCount = in.getInt();
+        List<String> classNames = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            classNames.add(in.getString());
+        }
+        return new NodeStore(in.getDoubles(size), in.getDoubles(size), in.getInts(size), classNames);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getLat(int id) {
+        return lats.get(id);
+    }
+
+    public double getLon(int id) {
+        return lons.get(id);
+    }
+
+    public int getClassId(int id) {
+        return classIds.get(id);
+    }
+
+    public boolean isPoi(int id) {
+        return classIds.get(id) != NO_CLASS;
+    }
+
+    /**
+     * Get the POI class name of a node.
+     * @param id the node's id
+     * @return class name, null if the node is no POI
+     */
+    public String getType(int id) {
+        int classId = classIds.get(id);
+        return (classId == NO_CLASS ? null : classNames.get(classId));
+    }
+
+    public String getClassName(int classId) {
+        return classNames.get(classId);
+    }
+
+    /**
+     * Get the id of a class name.
+     * @param className the name to look up
+     * @return class id, NO_CLASS if the class is unknown
+     */
+    public int getClassId(String className) {
+        return classNameToId.getOrDefault(className, NO_CLASS);
+    }
+
+    public int getClassCount() {
+        return classNames.size();
+    }
+
+    /**
+     * Create a Node object for the given id.
+     * @param id the node's id
+     * @return node view of the stored values
+     */
+    public Node getNode(int id) {
+        return Node.withInternedType(id, lats.get(id), lons.get(id), getType(id));
+    }
+
+    /**
+     * Computes the distance between two stored nodes without creating Node objects.
+     * @param a first node id
+     * @param b second node id
+     * @return the distance in meters between the nodes
+     */
+    public double getDistance(int a, int b) {
+        return Node.getDistance(lats.get(a), lons.get(a), lats.get(b), lons.get(b));
+    }
+}
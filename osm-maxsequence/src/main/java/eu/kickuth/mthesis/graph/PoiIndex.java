@@ -0,0 +1,240 @@
+package eu.kickuth.mthesis.graph;
+
+import java.util.*;
+
+/**
+ * Static R-tree over POIs, bulk loaded by sort-tile-recursive (STR) packing.
+ *
+ * POIs are sorted into vertical slices by longitude, and by latitude within each slice. Each leaf box covers up to
+ * NODE_CAPACITY consecutive POIs, each box of the levels above covers up to NODE_CAPACITY consecutive boxes of the
+ * level below. The tree is implicit: box i of a level has the boxes (or POIs) i * NODE_CAPACITY to
+ * (i + 1) * NODE_CAPACITY - 1 of the level below as children. Boxes adapt to the POI density, so dense cities get small
+ * boxes and sparse countryside large ones.
+ */
+final class PoiIndex {
+
+    private static final int NODE_CAPACITY = 16;
+    private static final double EARTH_RADIUS = 6371_000;  // in meters, as used by Node.getDistance
+
+    private final Node[] pois;  // in packed order
+    private final double[] lats;
+    private final double[] lons;
+
+    // bounding boxes by level, level 0 are the leaves. The top level has a single box.
+    private final double[][] minLats;
+    private final double[][] maxLats;
+    private final double[][] minLons;
+    private final double[][] maxLons;
+
+    /**
+     * Bulk load an index.
+     * @param poiCollection the POIs to index
+     */
+    PoiIndex(Collection<Node> poiCollection) {
+        pois = poiCollection.toArray(new Node[0]);
+        int leafCount = (pois.length + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int sliceSize = (int) Math.ceil(Math.sqrt(leafCount)) * NODE_CAPACITY;
+        Arrays.sort(pois, Comparator.comparingDouble(poi -> poi.lon));
+        for (int start = 0; start < pois.length; start += sliceSize) {
+            Arrays.sort(pois, start, Math.min(start + sliceSize, pois.length),
+                    Comparator.comparingDouble(poi -> poi.lat));
+        }
+        lats = new double[pois.length];
+        lons = new double[pois.length];
+        for (int i = 0; i < pois.length; i++) {
+            lats[i] = pois[i].lat;
+            lons[i] = pois[i].lon;
+        }
+
+        int levelCount = 0;
+        for (int size = leafCount; size > 0; size = size == 1 ? 0 : (size + NODE_CAPACITY - 1) / NODE_CAPACITY) {
+            levelCount++;
+        }
+        minLats = new double[levelCount][];
+        maxLats = new double[levelCount][];
+        minLons = new double[levelCount][];
+        maxLons = new double[levelCount][];
+        int childCount = pois.length;
+        for (int level = 0; level < levelCount; level++) {
+            int size = (childCount + NODE_CAPACITY - 1) / NODE_CAPACITY;
+            minLats[level] = new double[size];
+            maxLats[level] = new double[size];
+            minLons[level] = new double[size];
+            maxLons[level] = new double[size];
+            for (int box = 0; box < size; box++) {
+                double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+                double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+                int childEnd = Math.min((box + 1) * NODE_CAPACITY, childCount);
+                for (int child = box * NODE_CAPACITY; child < childEnd; child++) {
+                    if (level == 0) {
+                        minLat = Math.min(minLat, lats[child]);
+                        maxLat = Math.max(maxLat, lats[child]);
+                        minLon = Math.min(minLon, lons[child]);
+                        maxLon = Math.max(maxLon, lons[child]);
+                    } else {
+                        minLat = Math.min(minLat, minLats[level - 1][child]);
+                        maxLat = Math.max(maxLat, maxLats[level - 1][child]);
+                        minLon = Math.min(minLon, minLons[level - 1][child]);
+                        maxLon = Math.max(maxLon, maxLons[level - 1][child]);
+                    }
+                }
+                minLats[level][box] = minLat;
+                maxLats[level][box] = maxLat;
+                minLons[level][box] = minLon;
+                maxLons[level][box] = maxLon;
+            }
+            childCount = size;
+        }
+    }
+
+    /**
+     * Find all POIs inside an area.
+     * @param north northern border (latitude)
+     * @param south southern border (latitude)
+     * @param west western border (longitude)
+     * @param east eastern border (longitude)
+     * @return POIs inside the area, borders included
+     */
+    List<Node> range(double north, double south, double west, double east) {
+        List<Node> result = new ArrayList<>();
+        if (pois.length > 0) {
+            collectRange(minLats.length - 1, 0, north, south, west, east, result);
+        }
+        return result;
+    }
+
+    private void collectRange(int level, int box, double north, double south, double west, double east,
+                              List<Node> result) {
+        if (minLats[level][box] > north || maxLats[level][box] < south ||
+                minLons[level][box] > east || maxLons[level][box] < west) {
+            return;  // disjoint
+        }
+        if (minLats[level][box] >= south && maxLats[level][box] <= north &&
+                minLons[level][box] >= west && maxLons[level][box] <= east) {
+            // box is completely inside: take all POIs of its subtree, which are consecutive
+            int subtreeSize = (int) Math.pow(NODE_CAPACITY, level + 1);
+            result.addAll(Arrays.asList(pois).subList(box * subtreeSize,
+                    (int) Math.min((long) (box + 1) * subtreeSize, pois.length)));
+            return;
+        }
+        int from = box * NODE_CAPACITY;
+        if (level == 0) {
+            for (int i = from; i < Math.min(from + NODE_CAPACITY, pois.length); i++) {
+                if (lats[i] <= north && lats[i] >= south && lons[i] >= west && lons[i] <= east) {
+                    result.add(pois[i]);
+                }
+            }
+        } else {
+            for (int child = from; child < Math.min(from + NODE_CAPACITY, minLats[level - 1].length); child++) {
+                collectRange(level - 1, child, north, south, west, east, result);
+            }
+        }
+    }
+
+    /**
+     * Find the POIs closest to a location.
+     * @param lat latitude of the location
+     * @param lon longitude of the location
+     * @param k number of POIs to find
+     * @return up to k POIs, ordered by increasing distance
+     */
+    List<Node> nearest(double lat, double lon, int k) {
+        List<Node> result = new ArrayList<>(Math.min(k, pois.length));
+        if (pois.length == 0 || k <= 0) {
+            return result;
+        }
+        // best first search: boxes by lower distance bound, POIs (level -1) by distance
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        int top = minLats.length - 1;
+        queue.add(new Candidate(minDistance(lat, lon, top, 0), top, 0));
+        while (!queue.isEmpty() && result.size() < k) {
+            Candidate candidate = queue.poll();
+            if (candidate.level < 0) {
+                result.add(pois[candidate.index]);
+                continue;
+            }
+            int from = candidate.index * NODE_CAPACITY;
+            if (candidate.level == 0) {
+                for (int i = from; i < Math.min(from + NODE_CAPACITY, pois.length); i++) {
+                    queue.add(new Candidate(Node.getDistance(lat, lon, lats[i], lons[i]), -1, i));
+                }
+            } else {
+                int childLevel = candidate.level - 1;
+                for (int child = from; child < Math.min(from + NODE_CAPACITY, minLats[childLevel].length); child++) {
+                    queue.add(new Candidate(minDistance(lat, lon, childLevel, child), childLevel, child));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find all POIs within a distance of a location.
+     * @param lat latitude of the location
+     * @param lon longitude of the location
+     * @param radius maximum distance in meters
+     * @return POIs within the radius, in no particular order
+     */
+    List<Node> withinRadius(double lat, double lon, double radius) {
+        List<Node> result = new ArrayList<>();
+        if (pois.length > 0) {
+            collectRadius(minLats.length - 1, 0, lat, lon, radius, result);
+        }
+        return result;
+    }
+
+    private void collectRadius(int level, int box, double lat, double lon, double radius, List<Node> result) {
+        if (minDistance(lat, lon, level, box) > radius) {
+            return;
+        }
+        int from = box * NODE_CAPACITY;
+        if (level == 0) {
+            for (int i = from; i < Math.min(from + NODE_CAPACITY, pois.length); i++) {
+                if (Node.getDistance(lat, lon, lats[i], lons[i]) <= radius) {
+                    result.add(pois[i]);
+                }
+            }
+        } else {
+            for (int child = from; child < Math.min(from + NODE_CAPACITY, minLats[level - 1].length); child++) {
+                collectRadius(level - 1, child, lat, lon, radius, result);
+            }
+        }
+    }
+
+    /**
+     * Lower bound for the distance between a location and any point in a box.
+     *
+     * Uses the haversine formula hav(d) = hav(dLat) + cos(lat1) * cos(lat2) * hav(dLon), with the smallest latitude and
+     * longitude differences to the box, and the smallest cosine of latitudes in the box.
+     */
+    private double minDistance(double lat, double lon, int level, int box) {
+        double minLat = minLats[level][box], maxLat = maxLats[level][box];
+        double minLon = minLons[level][box], maxLon = maxLons[level][box];
+        double latDistance = Math.toRadians(lat < minLat ? minLat - lat : lat > maxLat ? lat - maxLat : 0);
+        double lonDistance = Math.toRadians(lon < minLon ? minLon - lon : lon > maxLon ? lon - maxLon : 0);
+        double minCos = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat)) * minCos * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        // slightly lower, so rounding errors never exceed the exact distance
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a))) * (1 - 1e-12);
+    }
+
+
+    private static final class Candidate implements Comparable<Candidate> {
+
+        private final double distance;
+        private final int level;  // -1 for POIs
+        private final int index;
+
+        private Candidate(double distance, int level, int index) {
+            this.distance = distance;
+            this.level = level;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+}
@@ -21,7 +21,6 @@ public class GASolver extends Solver {
     public Path solve() {
         logger.debug("Solving");
 
-        double[] forwardsCosts = dijkstra.getUpdateForwardCosts();
         Node latestPoi = this.getTarget();
 
         Path solutionPath = graph.new Path();
@@ -33,14 +32,15 @@ public class GASolver extends Solver {
 
         StringBuilder stuck = new StringBuilder();
         while (!poiCandidates.isEmpty()) {
+            checkCancelled();
             Path fromNewPoi = dijkstra.shortestPath(poiCandidates, latestPoi, true);
             Node newPoi = fromNewPoi.getFirst();
-            if (fromNewPoi.getPathCost() + solutionPath.getPathCost() + forwardsCosts[newPoi.id] <= maxDistance) {
+            if (fromNewPoi.getPathCost() + solutionPath.getPathCost() + dijkstra.getUpdateForwardCost(newPoi.id) <= maxDistance) {
                 latestPoi = newPoi;
-                solutionPath = fromNewPoi.append(solutionPath);
+                solutionPath.prepend(fromNewPoi);
                 // remove possible targets with the same class as the new node and too distant targets
                 double currentSolCost = solutionPath.getPathCost();
-                poiCandidates.removeIf(node -> node.type.equals(newPoi.type) || forwardsCosts[node.id] + currentSolCost > maxDistance);
+                poiCandidates.removeIf(node -> node.type.equals(newPoi.type) || dijkstra.getUpdateForwardCost(node.id) + currentSolCost > maxDistance);
 
                 setStatus(solutionPath.getPathCost()/maxDistance);
                 logger.trace(String.format("solving: %.2f%%, %d possible POIs left.", solutionPath.getPathCost()*100/maxDistance, poiCandidates.size()));
@@ -54,7 +54,7 @@ public class GASolver extends Solver {
             }
         }
 
-        solutionPath = dijkstra.shortestPath(this.getSource(), latestPoi, true).append(solutionPath);
+        solutionPath.prepend(dijkstra.shortestPath(this.getSource(), latestPoi, true));
         setStatus(0);
         return solutionPath;
     }
@@ -0,0 +1,142 @@
+package eu.kickuth.mthesis.solvers;
+
+import eu.kickuth.mthesis.graph.Graph;
+import eu.kickuth.mthesis.graph.Graph.Path;
+import eu.kickuth.mthesis.graph.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static eu.kickuth.mthesis.utils.Settings.*;
+
+/**
+ * Runs several solvers concurrently and returns the best of their paths: SmartSPE, SPE, GA and randomized SPE and
+ * SmartSPE variants (PORTFOLIO_RANDOMIZED_SOLVERS).
+ *
+ * Members take over the portfolio's update, so the shortest path, path candidates and corridor are computed once and
+ * shared. Each member leases its own Dijkstra instance and corridor distances. Members run on PORTFOLIO_THREADS threads
+ * shared by all portfolios, and members that did not finish within the time budget (PORTFOLIO_TIME_BUDGET_MS by
+ * default) are cancelled. The best path has the highest unique class score, ties go to the shorter path. The shortest
+ * path competes as well, so the portfolio still returns a feasible path if all members ran out of time.
+ */
+public class PortfolioSolver extends Solver {
+
+    private static final ExecutorService executor;
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(PORTFOLIO_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "portfolio-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final long timeBudgetMs;
+
+    public PortfolioSolver(Node source, Node target, double maxDistanceFactor, Graph graph) {
+        super(source, target, maxDistanceFactor, graph);
+        timeBudgetMs = PORTFOLIO_TIME_BUDGET_MS;
+    }
+
+    public PortfolioSolver(Graph g) {
+        this(g, PORTFOLIO_TIME_BUDGET_MS);
+    }
+
+    /**
+     * Create a portfolio with its own time budget.
+     * @param g the graph to search on
+     * @param timeBudgetMs time for the members to solve, in milliseconds. Members are cancelled afterwards.
+     */
+    public PortfolioSolver(Graph g, long timeBudgetMs) {
+        super(g);
+        if (timeBudgetMs < 0) {
+            throw new IllegalArgumentException("Negative time budget: " + timeBudgetMs);
+        }
+        this.timeBudgetMs = timeBudgetMs;
+    }
+
+    @Override
+    public Path solve() {
+        logger.debug("Solving");
+        List<Function<Graph, Solver>> members = new ArrayList<>();
+        members.add(SmartSPESolver::new);
+        members.add(SPESolver::new);
+        members.add(GASolver::new);
+        for (int i = 0; i < PORTFOLIO_RANDOMIZED_SOLVERS; i++) {
+            Random random = new Random(i);  // fixed seeds, so equal queries give equal results
+            members.add(i % 2 == 0 ? g -> new SmartSPESolver(g, random) : g -> new SPESolver(g, random));
+        }
+
+        // members are created on their threads, so waiting members do not lease a Dijkstra instance
+        List<Future<Path>> results = new ArrayList<>(members.size());
+        for (Function<Graph, Solver> member : members) {
+            results.add(executor.submit(() -> solveMember(member)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMs);
+        // the shortest path is known from the update, and is the result if no member finishes in time
+        Path bestPath = dijkstra.getShortestPath();
+        int bestScore = -1;
+        if (!bestPath.isEmpty() && bestPath.getPathCost() <= maxDistance) {
+            bestScore = uniqueClassScore(bestPath);
+        } else {
+            bestPath = graph.new Path();
+        }
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                Path path;
+                try {
+                    path = results.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    logger.debug("Portfolio member {} ran out of time.", i);
+                    continue;
+                } catch (ExecutionException e) {
+                    logger.error("Portfolio member {} failed", i, e.getCause());
+                    continue;
+                } finally {
+                    setStatus((i + 1.0) / results.size());
+                }
+                if (path.isEmpty() || path.getPathCost() > maxDistance) {
+                    continue;
+                }
+                int score = uniqueClassScore(path);
+                if (score > bestScore || (score == bestScore && path.getPathCost() < bestPath.getPathCost())) {
+                    bestScore = score;
+                    bestPath = path;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            checkCancelled();
+        } finally {
+            // stop members that ran out of time, or all members if solving was cancelled
+            results.forEach(result -> result.cancel(true));
+        }
+
+        setStatus(0.0);
+        if (bestPath.isEmpty()) {
+            logger.info("Target is not reachable!");
+        }
+        return bestPath;
+    }
+
+    /**
+     * Create a member solver, let it take over the portfolio's update and solve. Runs on a portfolio thread.
+     */
+    private Path solveMember(Function<Graph, Solver> member) {
+        try (Solver solver = member.apply(graph)) {
+            solver.update(this);
+            logger.trace("Solving with portfolio member {}", solver);
+            return solver.solve();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Portfolio Solver";
+    }
+}
@@ -1,22 +1,39 @@
 package eu.kickuth.mthesis.solvers;
 
+import eu.kickuth.mthesis.graph.CorridorDistances;
 import eu.kickuth.mthesis.graph.Graph;
 import eu.kickuth.mthesis.graph.Graph.Path;
 import eu.kickuth.mthesis.graph.Node;
 
 import java.util.HashSet;
-import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
+import static eu.kickuth.mthesis.utils.Settings.RANDOMIZED_SOLVER_SLACK;
+
 public class SPESolver extends Solver {
 
+    private final Random random;  // picks among nearly closest POIs, null to always take the closest
+
 
     public SPESolver(Node source, Node target, double maxDistance, Graph g) {
         super(source, target, maxDistance, g);
+        random = null;
     }
 
     public SPESolver(Graph g) {
+        this(g, null);
+    }
+
+    /**
+     * Instantiate a randomized solver, that adds one of the POIs at most RANDOMIZED_SOLVER_SLACK farther away than the
+     * closest POI in each step.
+     * @param g the graph to search on
+     * @param random random source, null to always add the closest POI
+     */
+    public SPESolver(Graph g, Random random) {
         super(g);
+        this.random = random;
     }
 
     public Path solve() {
@@ -38,10 +55,16 @@ public class SPESolver extends Solver {
             targets.removeIf(possibleTarget -> possibleTarget.type.equals(visitedPoi.type));
         }
 
+        // distances from the path to all nodes of the corridor, updated as detours are inserted
+        CorridorDistances corridorDistances = getCorridorDistances();
+        corridorDistances.setPath(solutionPath);
+
         // keep adding shortest paths to new classes until we would run over the maximal distance
         while (solutionPath.getPathCost() < maxDistance && !targets.isEmpty()) {
+            checkCancelled();
             // find a new node starting anywhere on our current path
-            Path pathToNewPoi = dijkstra.shortestPath(solutionPath.getNodes(), targets, false);
+            Path pathToNewPoi = random == null ? corridorDistances.pathToNearest(targets)
+                    : corridorDistances.pathToNear(targets, RANDOMIZED_SOLVER_SLACK, random);
             // stop if we can't find new POIs
             if (pathToNewPoi.isEmpty()) {
                 logger.trace("No new POI classes are reachable!");
@@ -68,9 +91,9 @@ public class SPESolver extends Solver {
             }
 
             // find index for insertion
-            int insertPoint = solutionPath.getNodes().indexOf(pathToNewPoi.getFirst());
+            int insertPoint = solutionPath.indexOf(pathToNewPoi.getFirst());
 
-            solutionPath.insert(pathToNewPoi, insertPoint, insertPoint);
+            corridorDistances.insert(pathToNewPoi, insertPoint, insertPoint);
 
             // print estimated progress
             setStatus(solutionPath.getPathCost()/maxDistance);
@@ -83,6 +106,6 @@ public class SPESolver extends Solver {
 
     @Override
     public String toString() {
-        return "SPE Solver";
+        return random == null ? "SPE Solver" : "Randomized SPE Solver";
     }
 }
@@ -17,7 +17,7 @@ public class SPSolver extends Solver {
 
     public Path solve() {
         logger.debug("Solving");
-        Path solutionPath = dijkstra.getShortestPath();
+        Path solutionPath = dijkstra.shortestPath(getSource(), getTarget(), false);
         setStatus(0.0);
         if (solutionPath.isEmpty() || solutionPath.getPathCost() > maxDistance) {
             logger.info("Target is not reachable!");
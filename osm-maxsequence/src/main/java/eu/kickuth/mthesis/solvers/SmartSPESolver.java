@@ -1,18 +1,35 @@
 package eu.kickuth.mthesis.solvers;
 
+import eu.kickuth.mthesis.graph.CorridorDistances;
 import eu.kickuth.mthesis.graph.Graph;
 import eu.kickuth.mthesis.graph.Node;
 
 import java.util.*;
 
+import static eu.kickuth.mthesis.utils.Settings.RANDOMIZED_SOLVER_SLACK;
+
 public class SmartSPESolver extends Solver {
 
+    private final Random random;  // picks among nearly closest POIs, null to always take the closest
+
     public SmartSPESolver(Node source, Node target, double maxDistanceFactor, Graph graph) {
         super(source, target, maxDistanceFactor, graph);
+        random = null;
     }
 
     public SmartSPESolver(Graph g) {
+        this(g, null);
+    }
+
+    /**
+     * Instantiate a randomized solver, that adds one of the POIs at most RANDOMIZED_SOLVER_SLACK farther away than the
+     * closest POI in each step.
+     * @param g the graph to search on
+     * @param random random source, null to always add the closest POI
+     */
+    public SmartSPESolver(Graph g, Random random) {
         super(g);
+        this.random = random;
     }
 
     @Override
@@ -47,17 +64,23 @@ public class SmartSPESolver extends Solver {
             targets.removeIf(possibleTarget -> possibleTarget.type.equals(visitedClass));
         }
 
+        // distances from the path to all nodes of the corridor, updated as detours are inserted
+        CorridorDistances corridorDistances = getCorridorDistances();
+        corridorDistances.setPath(solutionPath);
+
         // keep adding shortest paths to new classes until we run out of targets or would go over the maximal distance
         do {
+            checkCancelled();
             // get new POI closest to current path
-            Graph.Path pathToNewPoi = dijkstra.shortestPath(solutionPath.getNodes(), targets, false);
+            Graph.Path pathToNewPoi = random == null ? corridorDistances.pathToNearest(targets)
+                    : corridorDistances.pathToNear(targets, RANDOMIZED_SOLVER_SLACK, random);
             // stop if we can't find new POIs
             if (pathToNewPoi.isEmpty()) {
                 logger.debug("No new POI classes are reachable!");
                 break;
             }
             Node newPOI = pathToNewPoi.getLast();
-            LinkedList<Node> solutionNodes = solutionPath.getNodes();
+            List<Node> solutionNodes = solutionPath.getNodes();
             int insertStart = solutionNodes.indexOf(pathToNewPoi.getFirst());
 
             ListIterator<Node> fwdIter = solutionNodes.listIterator(insertStart);
@@ -110,7 +133,7 @@ public class SmartSPESolver extends Solver {
             currentPath = solutionPath.copy();
 
             // add newly encountered classes to our map or adjust their count, if already present
-            LinkedList<Node> newNodes = newPath.getNodes();
+            List<Node> newNodes = newPath.getNodes();
             ListIterator<Node> newPathIter = newNodes.listIterator(1);
             for (int i = 1; i < newNodes.size()-1; i++) {
                 Node newPathNode = newPathIter.next();
@@ -124,7 +147,7 @@ public class SmartSPESolver extends Solver {
                 }
             }
 
-            solutionPath.insert(newPath, insertStart, insertEnd);
+            corridorDistances.insert(newPath, insertStart, insertEnd);
 
             // print estimated progress
             setStatus(solutionPath.getPathCost()/maxDistance);
@@ -139,7 +162,7 @@ public class SmartSPESolver extends Solver {
 
     @Override
     public String toString() {
-        return "SmartSPE Solver";
+        return random == null ? "SmartSPE Solver" : "Randomized SmartSPE Solver";
     }
 
 }
@@ -1,17 +1,21 @@
 package eu.kickuth.mthesis.solvers;
 
+import eu.kickuth.mthesis.graph.Corridor;
+import eu.kickuth.mthesis.graph.CorridorDistances;
 import eu.kickuth.mthesis.graph.Dijkstra;
 import eu.kickuth.mthesis.graph.Graph;
 import eu.kickuth.mthesis.graph.Node;
-import org.apache.commons.lang3.StringUtils;
+import eu.kickuth.mthesis.graph.NodeStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.text.DecimalFormat;
+import java.util.BitSet;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Collectors;
 
-public abstract class Solver {
+public abstract class Solver implements AutoCloseable {
 
     final Logger logger = LogManager.getLogger(this.getClass().getName());
 
@@ -20,8 +24,11 @@ public abstract class Solver {
     private Node source;
     private Node target;
     Set<Node> reachablePois;
+    Corridor corridor;  // subgraph of the path candidates
+    private CorridorDistances corridorDistances;  // distances from a solution path, built on first use
     double maxDistance;
     private double maxDistanceFactor;
+    private boolean closed = false;
 
     // variable indicating the solvers progress. Should be within the interval [0, 1] and set to 0 when done solving.
     private volatile double status;
@@ -42,19 +49,46 @@ public abstract class Solver {
 
     /**
      * Instantiate a solver. Must be updated before solving.
+     * Solvers are not thread-safe, but each solver leases its own Dijkstra instance, so different solvers on the same
+     * graph can be used concurrently.
      * @param graph the graph to search on
      */
     Solver(Graph graph) {
         this.graph = graph;
-        dijkstra = Dijkstra.getInstance(this.graph);
+        dijkstra = Dijkstra.lease(this.graph);
+    }
+
+    /**
+     * Release the solver's Dijkstra instance. The solver can not be updated or solve after it was closed, but keeps
+     * its last query parameters.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            dijkstra.release();
+        }
     }
 
     /**
      * Compute path method.
      * @return The solution path
+     * @throws CancellationException if the solving thread was interrupted
      */
     public abstract Graph.Path solve();
 
+    /**
+     * Stop solving, if the solving thread was interrupted, e.g. because its solve job was cancelled. Solvers call this
+     * between steps.
+     * @throws CancellationException if the thread was interrupted
+     */
+    void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            setStatus(0);
+            throw new CancellationException(this + " was cancelled");
+        }
+    }
+
     public void update(Node source, Node target, double maxDistanceFactor) {
         logger.trace("Updating solver: source {}; target {}; maxDistanceFactor {}",
                 source.id, target.id, maxDistanceFactor);
@@ -63,13 +97,54 @@ public abstract class Solver {
         setMaxDistanceFactor(maxDistanceFactor);
 
         dijkstra.update(source, target, maxDistanceFactor);
+        // detours leaving the path candidates are too long anyway
+        dijkstra.setRestrictToCandidates(true);
 
         reachablePois = dijkstra.getPathCandidates().stream()
-                .filter(n -> !StringUtils.isEmpty(n.type)).collect(Collectors.toSet());
+                .filter(n -> graph.isPoi(n.id)).collect(Collectors.toSet());
+        corridor = new Corridor(graph, dijkstra.getPathCandidates());
+        corridorDistances = null;
         maxDistance = dijkstra.getShortestPathCost() * maxDistanceFactor;
         logger.trace("New maxDistance is {}", maxDistance);
     }
 
+    /**
+     * Update to the query of another solver on the same graph, taking over its results instead of searching again.
+     * The reachable POIs and the corridor are shared, solvers never modify them.
+     * @param other an updated solver. Is only read.
+     * @throws IllegalStateException if the other solver was closed, i.e. released its Dijkstra instance
+     */
+    void update(Solver other) {
+        // hold the other solver's lock, so it can not be closed meanwhile
+        synchronized (other) {
+            if (other.closed) {
+                throw new IllegalStateException("Can not take over the update of a closed solver!");
+            }
+            setSource(other.source);
+            setTarget(other.target);
+            setMaxDistanceFactor(other.maxDistanceFactor);
+
+            dijkstra.adoptUpdate(other.dijkstra);
+            reachablePois = other.reachablePois;
+            corridor = other.corridor;
+            maxDistance = other.maxDistance;
+        }
+        dijkstra.setRestrictToCandidates(true);
+        corridorDistances = null;
+    }
+
+    /**
+     * Get the distance labels of the current corridor. They are only allocated for solvers that use them, as they are
+     * as large as the corridor.
+     * @return the corridor distances of the last update
+     */
+    CorridorDistances getCorridorDistances() {
+        if (corridorDistances == null) {
+            corridorDistances = new CorridorDistances(corridor);
+        }
+        return corridorDistances;
+    }
+
     /**
      * Simple scoring for a path, that computes the number of unique classes visited
      * @param path The path to score
@@ -77,7 +152,15 @@ public abstract class Solver {
      */
     public int uniqueClassScore(Graph.Path path) {
 //        int roadTypesCount = Math.toIntExact(path.getNodes().stream().map(Node::getRoadType).distinct().count());
-        int poiTypesCount = Math.toIntExact(graph.getPoisOnPath(path).stream().map(node -> node.type).distinct().count());
+        NodeStore nodeStore = graph.getNodeStore();
+        BitSet poiTypes = new BitSet(nodeStore.getClassCount());
+        for (int i = 0; i < path.size(); i++) {
+            int classId = nodeStore.getClassId(path.getNodeId(i));
+            if (classId != NodeStore.NO_CLASS) {
+                poiTypes.set(classId);
+            }
+        }
+        int poiTypesCount = poiTypes.cardinality();
 //        int totalCount = roadTypesCount + poiTypesCount;
         logger.info("Unique class score: {}", poiTypesCount);
         return poiTypesCount;
@@ -106,7 +189,12 @@ public abstract class Solver {
     }
 
     public int getUpperBound() {
-        int distinctPoiCount = Math.toIntExact(reachablePois.stream().map(n -> n.type).distinct().count());
+        NodeStore nodeStore = graph.getNodeStore();
+        BitSet poiTypes = new BitSet(nodeStore.getClassCount());
+        for (Node poi : reachablePois) {
+            poiTypes.set(nodeStore.getClassId(poi.id));
+        }
+        int distinctPoiCount = poiTypes.cardinality();
 //        int distinctRoadCount = Math.max(Math.toIntExact(dijkstra.getPathCandidates().stream().map(Node::getRoadType).distinct().count()), 12);
 //        int totalCount = distinctPoiCount + distinctRoadCount;
         logger.info("Upper bound is: {}", distinctPoiCount);
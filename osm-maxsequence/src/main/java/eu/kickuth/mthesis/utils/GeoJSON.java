@@ -2,13 +2,16 @@ package eu.kickuth.mthesis.utils;
 
 import eu.kickuth.mthesis.graph.Graph;
 import eu.kickuth.mthesis.graph.Node;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.Map;
 
+/**
+ * Streaming GeoJSON encoder. Features are written straight to an output (e.g. the HTTP response), without building
+ * intermediate JSON object trees. The create* methods return the same output as a String.
+ */
 public class GeoJSON {
 
     /**
@@ -16,31 +19,83 @@ public class GeoJSON {
      * @param pois list of points to add
      */
     public static String createPOIList(Collection<Node> pois) {
+        StringBuilder json = new StringBuilder(pois.size() * 100);
         try {
-            JSONArray features = new JSONArray();
-            for (Node node : pois) {
-                JSONObject geometry = new JSONObject();
-                geometry.put("type", "Point");
-                // !! GeoJSON format is longitude then latitude !!
-                JSONArray coord = new JSONArray("["+node.lon+","+node.lat+"]");
-                geometry.put("coordinates", coord);
+            writePOIList(pois, json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder does not throw
+        }
+        return json.toString();
+    }
 
-                JSONObject properties = new JSONObject();
-                properties.put("name", node.type);
-                properties.put("id", node.id);
+    /**
+     * Write a JSON POI list
+     * @param pois list of points to add
+     * @param out output to write to
+     */
+    public static void writePOIList(Collection<Node> pois, Appendable out) throws IOException {
+        writePOIClusterList(pois, null, out);
+    }
 
-                JSONObject poi = new JSONObject();
-                poi.put("type", "Feature");
-                poi.put("geometry", geometry);
-                poi.put("properties", properties);
+    /**
+     * Create a JSON list of POIs and POI clusters
+     * @param pois single POIs to add
+     * @param clusters clusters to add, as latitude, longitude and POI count
+     */
+    public static String createPOIClusterList(Collection<Node> pois, Collection<double[]> clusters) {
+        StringBuilder json = new StringBuilder((pois.size() + clusters.size()) * 100);
+        try {
+            writePOIClusterList(pois, clusters, json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder does not throw
+        }
+        return json.toString();
+    }
 
-                features.put(poi);
+    /**
+     * Write a JSON list of POIs and POI clusters
+     * @param pois single POIs to add
+     * @param clusters clusters to add, as latitude, longitude and POI count. May be null.
+     * @param out output to write to
+     */
+    public static void writePOIClusterList(Collection<Node> pois, Collection<double[]> clusters, Appendable out)
+            throws IOException {
+        out.append('[');
+        boolean first = true;
+        for (Node node : pois) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            writePointFeature(node.lat, node.lon, out);
+            out.append("\"properties\":{");
+            if (node.type != null) {  // null classes are left out, like JSONObject does
+                out.append("\"name\":");
+                writeString(node.type, out);
+                out.append(',');
             }
-            return features.toString();
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return "";
+            out.append("\"id\":").append(String.valueOf(node.id)).append("}}");
         }
+        if (clusters != null) {
+            for (double[] cluster : clusters) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writePointFeature(cluster[0], cluster[1], out);
+                out.append("\"properties\":{\"count\":").append(String.valueOf((int) cluster[2])).append("}}");
+            }
+        }
+        out.append(']');
+    }
+
+    /**
+     * Write the start of a point feature, up to its properties.
+     */
+    private static void writePointFeature(double lat, double lon, Appendable out) throws IOException {
+        // !! GeoJSON format is longitude then latitude !!
+        out.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                .append(String.valueOf(lon)).append(',').append(String.valueOf(lat)).append("]},");
     }
 
     /**
@@ -48,29 +103,120 @@ public class GeoJSON {
      * @param path List of coordinates in lat,lon format
      */
     public static String createPath(Graph.Path path, Map<String,String> args) {
+        return createPath(path, args, false);
+    }
+
+    /**
+     * create a JSON path object: a GeoJSON LineString, or an encoded polyline.
+     * @param path the path
+     * @param args further string fields of the object
+     * @param encoded create an encoded polyline instead of a coordinate list, see writePath
+     */
+    public static String createPath(Graph.Path path, Map<String,String> args, boolean encoded) {
+        StringBuilder json = new StringBuilder(path.size() * 40);
         try {
-            JSONArray coordinates = new JSONArray();
-            for (Node node : path.getNodes()) {
+            writePath(path, args, encoded, json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // StringBuilder does not throw
+        }
+        return json.toString();
+    }
+
+    /**
+     * Write a JSON path object: a GeoJSON LineString, or an encoded polyline.
+     * @param path the path to write
+     * @param args further string fields of the object
+     * @param encoded write an encoded polyline (Google polyline algorithm, precision 5) in a "polyline" field,
+     *                instead of a GeoJSON coordinate list
+     * @param out output to write to
+     */
+    public static void writePath(Graph.Path path, Map<String,String> args, boolean encoded, Appendable out)
+            throws IOException {
+        if (encoded) {
+            out.append("{\"polyline\":");
+            writeString(encodePolyline(path), out);
+        } else {
+            out.append("{\"type\":\"LineString\",\"coordinates\":[");
+            for (int i = 0; i < path.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
                 // ! geoJSON works with lon,lat !
-                double[] lonLat = new double[] {node.lon, node.lat};
-                // add coordinate
-                JSONArray coordinate = new JSONArray(lonLat);
-                coordinates.put(coordinate);
+                out.append('[').append(String.valueOf(path.getLon(i))).append(',')
+                        .append(String.valueOf(path.getLat(i))).append(']');
             }
+            out.append(']');
+        }
+        out.append(",\"length\":").append(String.valueOf(Math.floor(path.getPathCost())/1000));
+        for (Map.Entry<String, String> arg : args.entrySet()) {
+            out.append(',');
+            writeString(arg.getKey(), out);
+            out.append(':');
+            writeString(arg.getValue(), out);
+        }
+        out.append('}');
+    }
 
-            // create path and add it to the feature object
-            JSONObject jsonPath = new JSONObject();
-            jsonPath.put("type", "LineString");
-            jsonPath.put("length", Math.floor(path.getPathCost())/1000);
-            jsonPath.put("coordinates", coordinates);
-            for (Map.Entry<String, String> arg : args.entrySet()) {
-                jsonPath.put(arg.getKey(), arg.getValue());
-            }
+    /**
+     * Encode a path with the Google polyline algorithm: coordinates in 1e-5 degrees, as deltas to the previous node.
+     * @param path the path to encode
+     * @return the encoded polyline, in lat,lon order
+     */
+    public static String encodePolyline(Graph.Path path) {
+        StringBuilder polyline = new StringBuilder(path.size() * 6);
+        long previousLat = 0;
+        long previousLon = 0;
+        for (int i = 0; i < path.size(); i++) {
+            long lat = Math.round(path.getLat(i) * 1e5);
+            long lon = Math.round(path.getLon(i) * 1e5);
+            encodePolylineValue(lat - previousLat, polyline);
+            encodePolylineValue(lon - previousLon, polyline);
+            previousLat = lat;
+            previousLon = lon;
+        }
+        return polyline.toString();
+    }
+
+    private static void encodePolylineValue(long value, StringBuilder polyline) {
+        value = value < 0 ? ~(value << 1) : value << 1;
+        while (value >= 0x20) {
+            polyline.append((char) ((0x20 | (value & 0x1f)) + 63));
+            value >>= 5;
+        }
+        polyline.append((char) (value + 63));
+    }
 
-            return jsonPath.toString();
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return "";
+    /**
+     * Write a JSON string literal, escaping quotes, backslashes and control characters.
+     */
+    private static void writeString(String value, Appendable out) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
         }
+        out.append('"');
     }
 }
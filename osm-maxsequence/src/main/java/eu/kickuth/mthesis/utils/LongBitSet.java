@@ -0,0 +1,82 @@
+package eu.kickuth.mthesis.utils;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-negative long ids (e.g. OSM ids), stored as a bitset of lazily allocated pages.
+ *
+ * OSM ids are clustered: extracts use scattered id ranges, but ids within a range are dense. Pages cover 2^16
+ * consecutive ids each and are only allocated once one of their ids is added, so memory stays at about one bit per id
+ * in the used ranges, instead of dozens of bytes per boxed Long in a HashSet.
+ */
+public final class LongBitSet {
+
+    private static final int PAGE_BITS = 16;  // ids per page: 2^16
+    private static final int WORDS_PER_PAGE = (1 << PAGE_BITS) / Long.SIZE;
+    private static final int MAX_PAGES = Integer.MAX_VALUE - 8;  // largest array length, ids below 2^47 are supported
+
+    private long[][] pages = new long[1024][];
+    private long size = 0;
+
+    /**
+     * Add an id to the set.
+     * @param id non-negative id
+     * @return true, if the id was not yet contained
+     * @throws IllegalArgumentException if the id is negative or too large
+     */
+    public boolean add(long id) {
+        long[] page = getPage(id, true);
+        int word = (int) (id >>> 6) & (WORDS_PER_PAGE - 1);
+        long mask = 1L << id;  // shifts use the lower 6 bits only
+        if ((page[word] & mask) != 0) {
+            return false;
+        }
+        page[word] |= mask;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param id any id
+     * @return true, if the id was added. Always false for negative ids.
+     */
+    public boolean contains(long id) {
+        if (id < 0) {
+            return false;
+        }
+        long[] page = getPage(id, false);
+        if (page == null) {
+            return false;
+        }
+        return (page[(int) (id >>> 6) & (WORDS_PER_PAGE - 1)] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return number of ids in the set
+     */
+    public long size() {
+        return size;
+    }
+
+    private long[] getPage(long id, boolean create) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative id: " + id);
+        }
+        long pageIndex = id >>> PAGE_BITS;
+        if (pageIndex >= pages.length) {
+            if (!create) {
+                return null;
+            }
+            if (pageIndex >= MAX_PAGES) {
+                throw new IllegalArgumentException("Id too large: " + id);
+            }
+            pages = Arrays.copyOf(pages, (int) Math.min(Math.max(pageIndex + 1, pages.length * 2L), MAX_PAGES));
+        }
+        long[] page = pages[(int) pageIndex];
+        if (page == null && create) {
+            page = new long[WORDS_PER_PAGE];
+            pages[(int) pageIndex] = page;
+        }
+        return page;
+    }
+}
@@ -0,0 +1,120 @@
+package eu.kickuth.mthesis.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys (e.g. OSM ids) to int values, without boxing. Uses linear probing on
+ * primitive arrays, i.e. about 12 bytes per slot instead of a HashMap entry with a boxed Long and Integer.
+ */
+public final class LongIntHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;  // marks free slots, can not be used as key
+    private static final double MAX_LOAD = 0.6;
+    private static final int MAX_CAPACITY = 1 << 30;  // largest power of two array length
+    private static final int MAX_SIZE = (int) (MAX_CAPACITY * MAX_LOAD);  // about 644M keys
+
+    private long[] keys;
+    private int[] values;
+    private int mask;  // capacity - 1, capacity is a power of two
+    private int size = 0;
+    private int resizeThreshold;
+
+    /**
+     * Create a map.
+     * @param expectedSize number of keys to reserve space for
+     * @throws IllegalArgumentException if the map can not hold that many keys
+     */
+    public LongIntHashMap(int expectedSize) {
+        if (expectedSize < 0 || expectedSize > MAX_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Can not reserve space for %d keys, at most %d keys are supported.", expectedSize, MAX_SIZE));
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, (int) Math.ceil(expectedSize / MAX_LOAD)) - 1) << 1;
+        allocate(Math.min(capacity, MAX_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * MAX_LOAD);
+    }
+
+    /**
+     * Associate a value with a key, replacing any previous value.
+     * @param key the key, must not be Long.MIN_VALUE
+     * @param value the value
+     * @throws IllegalStateException if the key is new, but the map already holds the maximum number of keys
+     */
+    public void put(long key, int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Unsupported key: " + key);
+        }
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            if (size == resizeThreshold) {
+                // grow before inserting, so a full map is left unchanged
+                rehash();
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Get the value of a key.
+     * @param key the key
+     * @param defaultValue value to return for missing keys
+     * @return the key's value, or the default value if the key is not present
+     */
+    public int get(long key, int defaultValue) {
+        int slot = slot(key);
+        return keys[slot] == EMPTY ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(long key) {
+        return keys[slot(key)] != EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the slot of a key, or the free slot it would be inserted at.
+     */
+    private int slot(long key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        if (keys.length == MAX_CAPACITY) {
+            throw new IllegalStateException(String.format("Map is full, at most %d keys are supported.", MAX_SIZE));
+        }
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Spread key bits, as consecutive ids would otherwise fill consecutive slots.
+     */
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,234 @@
+package eu.kickuth.mthesis.utils;
+
+import eu.kickuth.mthesis.graph.Graph;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openstreetmap.osmosis.core.container.v0_6.*;
+import org.openstreetmap.osmosis.core.domain.v0_6.*;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+
+import java.util.*;
+
+import static eu.kickuth.mthesis.utils.Settings.GENERATE_FAKE_SIGNS;
+
+/**
+ * Applies OSM change data (e.g. a daily .osc diff) to a processed graph, using the road index kept while preprocessing.
+ *
+ * Changed road nodes move, and get their new signs unless fake signs are used. Created, modified and deleted roads
+ * are added to or removed from the index. Only affected ways are simplified again: changed roads, and roads through
+ * nodes that moved, or became or ceased to be junctions or signs. Newly kept nodes become new graph nodes. Nodes that
+ * are no longer kept stay in the graph without edges and class, so that existing node IDs remain valid.
+ *
+ * Changed roads may reference nodes that are not on a road yet. Their coordinates come from the index's spare nodes,
+ * which are kept up to date with the changes. If a road references a node the index does not know at all (e.g. a
+ * building's outline tagged as road), the update fails, and the changed extract must be preprocessed instead.
+ */
+public class OSMChangeUpdater implements ChangeSink {
+
+    private static final Logger logger = LogManager.getLogger(OSMChangeUpdater.class);
+
+    private final RoadIndex roadIndex;
+    private final Graph graph;  // the graph before the update
+    private final boolean fakeSigns;  // does the graph have fake signs, which are not part of the change data?
+    private Graph updatedGraph;
+
+    // changes are collected first, as ways may reference nodes that appear later in the change data
+    private final Map<Long, ChangeContainer> nodeChanges = new HashMap<>();  // by OSM ID, last change wins
+    private final List<ChangeContainer> wayChanges = new ArrayList<>();
+    private final Set<Long> changedHighwayNodes = new HashSet<>();  // OSM IDs of nodes on changed highways
+
+    // new sign types of changed nodes, by node index (null for nodes that lost their sign)
+    private final Map<Integer, String> signChanges = new HashMap<>();
+    private final Random random = new Random(0);
+
+    /**
+     * Create an updater.
+     * @param roadIndex road index of the graph. Is updated in place.
+     * @param graph the graph to update
+     */
+    public OSMChangeUpdater(RoadIndex roadIndex, Graph graph) {
+        this(roadIndex, graph, GENERATE_FAKE_SIGNS);
+    }
+
+    /**
+     * Create an updater.
+     * @param roadIndex road index of the graph. Is updated in place.
+     * @param graph the graph to update
+     * @param fakeSigns was the graph preprocessed with fake signs?
+     */
+    OSMChangeUpdater(RoadIndex roadIndex, Graph graph, boolean fakeSigns) {
+        if (!roadIndex.matches(graph)) {
+            throw new IllegalArgumentException("Road index does not belong to the graph!");
+        }
+        this.roadIndex = roadIndex;
+        this.graph = graph;
+        this.fakeSigns = fakeSigns;
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+
+    }
+
+    @Override
+    public void process(ChangeContainer change) {
+        EntityContainer container = change.getEntityContainer();
+        if (container instanceof NodeContainer) {
+            nodeChanges.put(container.getEntity().getId(), change);
+
+        } else if (container instanceof WayContainer) {
+            wayChanges.add(change);
+            Way osmWay = (Way) container.getEntity();
+            if (change.getAction() != ChangeAction.Delete && OSMNodesOnPathReader.isHighway(osmWay)) {
+                osmWay.getWayNodes().forEach(wayNode -> changedHighwayNodes.add(wayNode.getNodeId()));
+            }
+
+        }
+        // We don't process relations
+    }
+
+    /**
+     * This method is called, once the change data has been completely read.
+     * @throws IllegalStateException if a changed road references a node unknown to the road index
+     */
+    @Override
+    public void complete() {
+        long startTime = System.currentTimeMillis();
+        nodeChanges.values().forEach(this::applyNodeChange);
+        wayChanges.forEach(this::applyWayChange);
+        roadIndex.simplifyWays();
+
+        // POI classes by graph ID: changed signs, or unchanged from the current graph
+        Map<Integer, String> types = new HashMap<>();
+        signChanges.forEach((node, type) -> types.put(roadIndex.getGraphId(node), type));
+        updatedGraph = roadIndex.createGraph(graph.getBounds(), id -> types.containsKey(id) ? types.get(id) :
+                id < graph.nodes.size() ? graph.nodes.get(id).type : null);
+        logger.info("Applied {} node and {} way changes in {}ms.", nodeChanges.size(), wayChanges.size(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Move a road node and update its sign. Nodes that are not on a road yet are only added once a way references them,
+     * until then they are kept as spare nodes if they are on a highway.
+     */
+    private void applyNodeChange(ChangeContainer change) {
+        Node osmNode = (Node) change.getEntityContainer().getEntity();
+        long osmId = osmNode.getId();
+        int node = roadIndex.findNode(osmId);
+        if (node == RoadIndex.NONE) {
+            if (roadIndex.findSpareNode(osmId) != RoadIndex.NONE || changedHighwayNodes.contains(osmId)) {
+                if (change.getAction() == ChangeAction.Delete) {
+                    roadIndex.setSpareNode(osmId, Double.NaN, Double.NaN, null);
+                } else {
+                    roadIndex.setSpareNode(osmId, osmNode.getLatitude(), osmNode.getLongitude(),
+                            OSMPreprocessor.getTrafficSignTag(osmNode.getTags()));
+                }
+            }
+            return;
+        }
+        if (change.getAction() == ChangeAction.Delete) {
+            // roads through deleted nodes are changed as well
+            return;
+        }
+        roadIndex.setCoordinates(node, osmNode.getLatitude(), osmNode.getLongitude());
+        updateSign(node, osmNode.getTags());
+    }
+
+    private void updateSign(int node, Collection<Tag> tags) {
+        if (fakeSigns) {
+            return;  // fake signs are not part of the change data
+        }
+        List<String> signs = OSMPreprocessor.getTrafficSigns(tags, random);
+        String type = signs.isEmpty() ? null : signs.get(0);
+        roadIndex.setSign(node, type != null);
+        signChanges.put(node, type);
+    }
+
+    /**
+     * Remove the previous version of a way, and add the new one if it is a road.
+     */
+    private void applyWayChange(ChangeContainer change) {
+        Way osmWay = (Way) change.getEntityContainer().getEntity();
+        int oldWay = roadIndex.findWay(osmWay.getId());
+        if (oldWay != RoadIndex.NONE) {
+            roadIndex.removeWay(oldWay);
+        }
+        if (change.getAction() == ChangeAction.Delete || !OSMNodesOnPathReader.isDrivable(osmWay)) {
+            return;
+        }
+
+        int[] nodes = new int[osmWay.getWayNodes().size()];
+        int nodeCount = 0;
+        for (WayNode wayNode : osmWay.getWayNodes()) {
+            int node = roadIndex.findNode(wayNode.getNodeId());
+            if (node == RoadIndex.NONE) {
+                node = addRoadNode(osmWay, wayNode.getNodeId());
+                if (node == RoadIndex.NONE) {
+                    continue;
+                }
+            }
+            nodes[nodeCount++] = node;
+        }
+        roadIndex.addWay(osmWay.getId(), isOneWay(osmWay), Arrays.copyOf(nodes, nodeCount));
+    }
+
+    /**
+     * Add a spare node to the road network, as a changed road references it.
+     * @param osmWay the changed road
+     * @param osmId OSM ID of the node
+     * @return index of the new road node, NONE if the node is missing from the extract
+     * @throws IllegalStateException if the node's coordinates are unknown
+     */
+    private int addRoadNode(Way osmWay, long osmId) {
+        int spare = roadIndex.findSpareNode(osmId);
+        if (spare == RoadIndex.NONE) {
+            // skipping the node would join its neighbours on the road, which are not adjacent
+            throw new IllegalStateException("Way " + osmWay.getId() + " references node " + osmId + ", which is " +
+                    "neither on a highway nor in the changes. Preprocess the changed extract instead.");
+        }
+        int node = roadIndex.addSpareNode(spare);
+        if (node == RoadIndex.NONE) {
+            // e.g. cut off at the extract border, preprocessing skips it as well
+            logger.debug("Way {} references missing node {}. Skipping node.", osmWay.getId(), osmId);
+            return RoadIndex.NONE;
+        }
+        String sign = roadIndex.getSpareSign(spare);
+        updateSign(node, sign == null ? Collections.emptyList() :
+                Collections.singletonList(new Tag("traffic_sign", sign)));
+        return node;
+    }
+
+    /**
+     * Check if a way is one directional, like OSMPreprocessor does.
+     */
+    private static boolean isOneWay(Way osmWay) {
+        for (Tag wayTag : osmWay.getTags()) {
+            switch (wayTag.getKey().toLowerCase(Locale.ENGLISH)) {
+                case "oneway":  // is it explicitly one directional?
+                    if ("yes".equalsIgnoreCase(wayTag.getValue())) {
+                        return true;
+                    }
+                    break;
+                case "junction":  // is it a roundabout (implies one directional)?
+                    if ("roundabout".equalsIgnoreCase(wayTag.getValue())) {
+                        return true;
+                    }
+                    break;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    /**
+     * @return the updated graph, once all changes were processed
+     */
+    public Graph getUpdatedGraph() {
+        return updatedGraph;
+    }
+}
@@ -4,16 +4,22 @@ import org.openstreetmap.osmosis.core.container.v0_6.*;
 import org.openstreetmap.osmosis.core.domain.v0_6.*;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class OSMNodesOnPathReader implements Sink {
 
-    private Set<Long> nodes;
-    private Set<Long> junctions;
+    private LongBitSet nodes;
+    private LongBitSet junctions;
+    private LongBitSet otherHighwayNodes;  // null, if not collected
 
-    OSMNodesOnPathReader() {
-        nodes = new HashSet<>();
-        junctions = new HashSet<>();
+    /**
+     * Create a reader.
+     * @param collectOtherHighways also collect the nodes of highways that are not drivable (e.g. tracks), which
+     *                             changes may turn into roads?
+     */
+    OSMNodesOnPathReader(boolean collectOtherHighways) {
+        nodes = new LongBitSet();
+        junctions = new LongBitSet();
+        otherHighwayNodes = collectOtherHighways ? new LongBitSet() : null;
     }
 
     @Override
@@ -30,10 +36,43 @@ public class OSMNodesOnPathReader implements Sink {
     }
 
     /**
-     * Check if a way is considered drivable and if so, remember all node IDs on it.
+     * Remember all node IDs on drivable ways.
      * @param osmWay the currently processed way
      */
     private void processWay(Way osmWay) {
+        if (isDrivable(osmWay)) {
+            for (WayNode wayNode : osmWay.getWayNodes()) {
+                if (!nodes.add(wayNode.getNodeId())) {
+                    junctions.add(wayNode.getNodeId());
+                }
+            }
+        } else if (otherHighwayNodes != null && isHighway(osmWay)) {
+            for (WayNode wayNode : osmWay.getWayNodes()) {
+                otherHighwayNodes.add(wayNode.getNodeId());
+            }
+        }
+    }
+
+    /**
+     * Check if a way is a highway of any type, including ones that are not drivable.
+     * @param osmWay an OSM way
+     * @return true, if the way has a highway tag
+     */
+    static boolean isHighway(Way osmWay) {
+        for (Tag wayTag : osmWay.getTags()) {
+            if ("highway".equalsIgnoreCase(wayTag.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a way is considered drivable.
+     * @param osmWay an OSM way
+     * @return true, if the way is an accessible road of a drivable type
+     */
+    static boolean isDrivable(Way osmWay) {
         boolean isHighway = false;  // is road drivable?
 
         for (Tag wayTag : osmWay.getTags()) {
@@ -43,38 +82,40 @@ public class OSMNodesOnPathReader implements Sink {
                     if (!(rt.startsWith("motorway") || rt.startsWith("trunk") ||
                             rt.startsWith("primary") || rt.startsWith("secondary") || rt.startsWith("tertiary") ||
                             rt.equals("unclassified") || rt.equals("residential"))) {
-                        return;
+                        return false;
                     }
                     isHighway = true;
                     break;
                 case "access":  // can we access the road?
                     if ("no".equalsIgnoreCase(wayTag.getValue()) || "private".equalsIgnoreCase(wayTag.getValue())) {
-                        return;
+                        return false;
                     }
                     break;
             }
         }
-        if (isHighway) {
-            for (Long nodeID : osmWay.getWayNodes().stream().map(WayNode::getNodeId).collect(Collectors.toList())) {
-                if (!nodes.add(nodeID)) {
-                    junctions.add(nodeID);
-                }
-            }
-        }
+        return isHighway;
     }
 
     /**
      * Retrieve the set of node IDs that lie on drivable roads.
      * @return ID set of nodes on roads
      */
-    public Set<Long> getNodeIDs() {
+    public LongBitSet getNodeIDs() {
         return nodes;
     }
 
-    public Set<Long> getJunctionIDs() {
+    public LongBitSet getJunctionIDs() {
         return junctions;
     }
 
+    /**
+     * Retrieve the node IDs of highways that are not drivable. Includes nodes that are also on roads.
+     * @return ID set of nodes on other highways, null if they were not collected
+     */
+    LongBitSet getOtherHighwayNodeIDs() {
+        return otherHighwayNodes;
+    }
+
     @Override
     public void complete() {
 
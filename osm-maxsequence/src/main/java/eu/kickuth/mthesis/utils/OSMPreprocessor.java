@@ -1,6 +1,5 @@
 package eu.kickuth.mthesis.utils;
 
-import crosby.binary.osmosis.OsmosisReader;
 import crosby.binary.osmosis.OsmosisSerializer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -9,6 +8,7 @@ import org.openstreetmap.osmosis.core.domain.v0_6.*;
 import org.openstreetmap.osmosis.core.task.v0_6.Sink;
 import org.openstreetmap.osmosis.core.task.v0_6.Source;
 import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+import org.openstreetmap.osmosis.pbf2.v0_6.PbfReader;
 //import org.openstreetmap.osmosis.xml.v0_6.XmlWriter;
 
 import java.io.*;
@@ -16,7 +16,6 @@ import java.util.*;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static eu.kickuth.mthesis.utils.Settings.*;
 
@@ -25,7 +24,7 @@ public class OSMPreprocessor implements Sink, Source {
     private static final Logger logger = LogManager.getLogger(OSMPreprocessor.class);
 
     // pattern to recognize real road signs
-    private final Pattern roadSignPattern = Pattern.compile("(DE:\\d+)|(city_limit)");
+    private static final Pattern roadSignPattern = Pattern.compile("(DE:\\d+)|(city_limit)");
 
     // default user and date for processed OSM file
     private static final OsmUser user = new OsmUser(0, "");
@@ -33,36 +32,79 @@ public class OSMPreprocessor implements Sink, Source {
 
     // repeatable random numbers for fake (and augmented) classes
     private final Random random = new Random(0);
+    private final boolean fakeSigns;  // generate fake signs, instead of using the (augmented) real ones
 
     // data writer
     private Sink sink;
 
-    private final Set<Long> nodesOnRoads;
-    private final Set<Long> nodesOnJunctions;
+    private final LongBitSet nodesOnRoads;
+    private final LongBitSet nodesOnJunctions;
+    private final LongBitSet nodesOnOtherHighways;  // kept as spare nodes in the road index, null if it is not kept
 
     // node distribution (used as input for fake traffic sign generation)
     private int[][] nodesDistribution = null;
     private long nodesWeightedTotal = 0;  // used for clustered distribution
-    private ArrayList<Node> processQueue = new ArrayList<>();
+    // road nodes waiting for fake sign generation, by dense ID. Value is 1 for junctions, 0 otherwise.
+    private final SpillableNodeStore processQueue = new SpillableNodeStore("preprocessor");
     private double[] bounds;
 
-    private final Map<Long, Integer> idMap;
+    private final LongIntHashMap idMap;  // OSM id -> dense id of nodes on roads
     private int mappedID = 0;
 
-    private final File outputFile;
+    private final File outputFile;  // null, if entities are passed to a downstream sink instead
 
+    // road network for later incremental updates, null if not kept
+    private final RoadIndex roadIndex;
+    private final File roadIndexFile;
 
+
+    /**
+     * Create a preprocessor writing its result to file.
+     * @param outputFile PBF file for the preprocessed data
+     * @throws FileNotFoundException if the OSM dump does not exist
+     */
     public OSMPreprocessor(final File outputFile) throws FileNotFoundException {
+        this(OSM_DUMP, outputFile, null, KEEP_ROAD_INDEX ? ROAD_INDEX_FILE : null, GENERATE_FAKE_SIGNS);
+    }
+
+    /**
+     * Create a preprocessor passing its result directly to another sink (e.g. road simplification), without writing
+     * and re-reading an intermediate file.
+     * @param downstream sink for the preprocessed entities
+     * @throws FileNotFoundException if the OSM dump does not exist
+     */
+    public OSMPreprocessor(final Sink downstream) throws FileNotFoundException {
+        this(OSM_DUMP, null, downstream, KEEP_ROAD_INDEX ? ROAD_INDEX_FILE : null, GENERATE_FAKE_SIGNS);
+    }
+
+    /**
+     * Create a preprocessor for any OSM dump.
+     * @param dump OSM dump to be preprocessed. It is read once here, and once more by the caller.
+     * @param outputFile PBF file for the preprocessed data, null to pass entities to downstream instead
+     * @param downstream sink for the preprocessed entities, null to write them to outputFile instead
+     * @param roadIndexFile file for the road index, null to not keep one
+     * @param fakeSigns generate fake signs, instead of using the (augmented) real ones?
+     * @throws FileNotFoundException if the OSM dump does not exist
+     */
+    OSMPreprocessor(final File dump, final File outputFile, final Sink downstream, final File roadIndexFile,
+                    final boolean fakeSigns) throws FileNotFoundException {
         logger.trace("First run: Finding node IDs on paths");
         this.outputFile = outputFile;
-        OSMNodesOnPathReader nodesReader = new OSMNodesOnPathReader();
-        InputStream inputStream = new FileInputStream(OSM_DUMP);
-        OsmosisReader reader = new OsmosisReader(inputStream);
+        this.sink = downstream;
+        this.roadIndexFile = roadIndexFile;
+        this.roadIndex = roadIndexFile == null ? null : new RoadIndex();
+        this.fakeSigns = fakeSigns;
+        if (!dump.isFile()) {
+            throw new FileNotFoundException(dump.getPath());
+        }
+        OSMNodesOnPathReader nodesReader = new OSMNodesOnPathReader(roadIndex != null);
+        PbfReader reader = new PbfReader(dump, PREPROCESSING_THREADS);
         reader.setSink(nodesReader);
         reader.run();
         nodesOnRoads = nodesReader.getNodeIDs();
         nodesOnJunctions = nodesReader.getJunctionIDs();
-        idMap = new HashMap<>((nodesOnRoads.size() * 4) / 3);
+        nodesOnOtherHighways = nodesReader.getOtherHighwayNodeIDs();
+        idMap = new LongIntHashMap(Math.toIntExact(nodesOnRoads.size()));
     }
 
 
@@ -74,10 +116,16 @@ public class OSMPreprocessor implements Sink, Source {
     @Override
     public void initialize(Map<String, Object> metaData) {
         logger.trace("Second run: Preprocessing");
+        if (outputFile == null) {
+            sink.initialize(metaData);
+            return;
+        }
         // initialise writer
         try {
 //            setSink(new XmlWriter(new BufferedWriter(new FileWriter(outputFile))));  // xml writer
-            setSink(new OsmosisSerializer(new BlockOutputStream(new FileOutputStream(outputFile))));  // pbf writer
+            // pbf writer, encoding on its own thread
+            setSink(new PipelinedSink(new OsmosisSerializer(new BlockOutputStream(new FileOutputStream(outputFile))),
+                    "preprocessor-writer"));
         } catch (FileNotFoundException e) {
             logger.fatal("Could not find File!", e);
 //        } catch (IOException e) {  // for FileWriter in XmlWriter
@@ -102,7 +150,7 @@ public class OSMPreprocessor implements Sink, Source {
             // If we are generating fake traffic signs based on density, we initialise the node distribution array
 
             // skip node distribution array initialisation if not needed for fake classes
-            if (!GENERATE_FAKE_SIGNS) {
+            if (!fakeSigns) {
                 return;
             }
 
@@ -128,15 +176,23 @@ public class OSMPreprocessor implements Sink, Source {
     }
 
     private void processNode(Node osmNode) {
-        Long nodeID = osmNode.getId();
+        long nodeID = osmNode.getId();
         if (!nodesOnRoads.contains(nodeID)) {
+            if (nodesOnOtherHighways != null && nodesOnOtherHighways.contains(nodeID)) {
+                // not on a road, but a change may turn its highway into one
+                roadIndex.setSpareNode(nodeID, osmNode.getLatitude(), osmNode.getLongitude(),
+                        getTrafficSignTag(osmNode.getTags()));
+            }
             // continue if id was not present
             return;
         }
         idMap.put(nodeID, mappedID);  // store node id mapping for later WayNode lookups
+        if (roadIndex != null) {
+            roadIndex.addNode(nodeID, osmNode.getLatitude(), osmNode.getLongitude());
+        }
+        boolean isJunction = nodesOnJunctions.contains(nodeID);
 
-        Collection<Tag> tags = new ArrayList<>(1);
-        if (GENERATE_FAKE_SIGNS) {
+        if (fakeSigns) {
             // increment correct location in node distribution array, generate sign after all nodes are processed
 
             // use min/max to "clamp to bounds" in case the node is outside the bounds
@@ -147,47 +203,91 @@ public class OSMPreprocessor implements Sink, Source {
             int we = (int) Math.floor(west / NODE_DISTRIBUTION_GRID_FIDELITY);
             nodesDistribution[ns][we]++;
             nodesWeightedTotal += nodesDistribution[ns][we] * 2 - 1;
-        } else {
-            // process real (but augmented) traffic sign
-            for (Tag tag : osmNode.getTags()) {
-                if ("traffic_sign".equalsIgnoreCase(tag.getKey())) {
-//                    Pattern roadSignPattern = Pattern.compile("(DE:\\d+)");
-                    Matcher matcher = roadSignPattern.matcher(tag.getValue());
-                    if (matcher.find()) {
-                        String type = matcher.group(0);
-                        // we use some of the city_limit POIs as fake classes and ignore the others.
-                        if (type.equals("city_limit")) {
-                            // get a random number, between 0 and 90
-                            int randomInt = random.nextInt(91);
-                            if (randomInt >= 65) {  // A=65 to Z=90
-                                type = String.valueOf((char) randomInt);
-                            } else {
-                                // the dice have rolled and this is a sign we will not replace (and not keep)
-                                continue;
-                            }
-                        }
-                        tags.add(new Tag("traffic_sign", type));
-                    }
-                    while (matcher.find()) {
-                        // TODO do not ignore? extend regex?
-                        logger.info("Ignoring additional sign: {}", matcher.group(0));
-                    }
-                }
-            }
+
+            // queue node, signs are generated once all nodes are known
+            processQueue.set(mappedID++, osmNode.getLatitude(), osmNode.getLongitude(), isJunction ? 1 : 0);
+            return;
+        }
+
+        // process real (but augmented) traffic sign
+        Collection<Tag> tags = new ArrayList<>(1);
+        for (String type : getTrafficSigns(osmNode.getTags(), random)) {
+            tags.add(new Tag("traffic_sign", type));
         }
 
         // check whether the node is a junction and hence should be tagged as such
-        if (nodesOnJunctions.contains(nodeID)) {
+        if (isJunction) {
             tags.add(new Tag("is_junction", "yes"));
         }
 
-        // add updated node to process queue
-        processQueue.add(new Node(new CommonEntityData(
+        // nodes precede ways in the input, so real signs can be written right away
+        writeNode(new Node(new CommonEntityData(
                 mappedID++, 1, date, user, 0, tags),
                 osmNode.getLatitude(), osmNode.getLongitude()
         ));
     }
 
+    /**
+     * Get the real (but augmented) traffic signs of a node.
+     * @param tags tags of an OSM node
+     * @param random random numbers to select the city limit signs used as classes
+     * @return the node's sign types
+     */
+    static List<String> getTrafficSigns(Collection<Tag> tags, Random random) {
+        List<String> types = new ArrayList<>(1);
+        for (Tag tag : tags) {
+            if ("traffic_sign".equalsIgnoreCase(tag.getKey())) {
+//                Pattern roadSignPattern = Pattern.compile("(DE:\\d+)");
+                Matcher matcher = roadSignPattern.matcher(tag.getValue());
+                if (matcher.find()) {
+                    String type = matcher.group(0);
+                    // we use some of the city_limit POIs as fake classes and ignore the others.
+                    if (type.equals("city_limit")) {
+                        // get a random number, between 0 and 90
+                        int randomInt = random.nextInt(91);
+                        if (randomInt >= 65) {  // A=65 to Z=90
+                            type = String.valueOf((char) randomInt);
+                        } else {
+                            // the dice have rolled and this is a sign we will not replace (and not keep)
+                            continue;
+                        }
+                    }
+                    types.add(type);
+                }
+                while (matcher.find()) {
+                    // TODO do not ignore? extend regex?
+                    logger.info("Ignoring additional sign: {}", matcher.group(0));
+                }
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Get the raw traffic sign tag of a node, from which getTrafficSigns derives its sign types.
+     * @param tags tags of an OSM node
+     * @return value of the traffic_sign tag, null if there is none
+     */
+    static String getTrafficSignTag(Collection<Tag> tags) {
+        for (Tag tag : tags) {
+            if ("traffic_sign".equalsIgnoreCase(tag.getKey())) {
+                return tag.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pass a processed node on. Nodes kept by road simplification get their graph IDs in this order.
+     */
+    private void writeNode(Node node) {
+        if (roadIndex != null && OSMRoadSimplification.isKept(node)) {
+            boolean sign = node.getTags().stream().anyMatch(tag -> "traffic_sign".equals(tag.getKey()));
+            roadIndex.keepNode((int) node.getId(), sign);
+        }
+        sink.process(new NodeContainer(node));
+    }
+
     private boolean isFirstWay = true;
     private void processWay(Way osmWay) {
         if (isFirstWay) {  // true: we have just finished reading nodes
@@ -197,6 +297,16 @@ public class OSMPreprocessor implements Sink, Source {
             writeNodes();
         }
 
+        if (roadIndex != null && OSMNodesOnPathReader.isHighway(osmWay) && !OSMNodesOnPathReader.isDrivable(osmWay)) {
+            // a change may turn the highway into a road, so its nodes missing from the dump must be known
+            for (WayNode n : osmWay.getWayNodes()) {
+                if (!nodesOnRoads.contains(n.getNodeId())) {
+                    addMissingNode(n.getNodeId());
+                }
+            }
+            return;
+        }
+
         boolean isHighway = false;  // is road drivable?
         boolean isOneWay = false;
         Collection<Tag> newTags = new ArrayList<>();
@@ -241,18 +351,43 @@ public class OSMPreprocessor implements Sink, Source {
             return;
         }
 
-        List<WayNode> newWayNodes = osmWay.getWayNodes().stream().map(
-                // note that the library only stores WayNode IDs and getLatitude, getLongitude will always return 0...
-                n -> new WayNode(idMap.get(n.getNodeId()), n.getLatitude(), n.getLongitude())
-        ).collect(Collectors.toList());
+        List<WayNode> newWayNodes = new ArrayList<>(osmWay.getWayNodes().size());
+        for (WayNode n : osmWay.getWayNodes()) {
+            int id = idMap.get(n.getNodeId(), -1);
+            if (id < 0) {
+                // way references a node missing from the dump (e.g. cut off at the extract border)
+                logger.debug("Way {} references missing node {}. Skipping node.", osmWay.getId(), n.getNodeId());
+                if (roadIndex != null) {
+                    addMissingNode(n.getNodeId());
+                }
+                continue;
+            }
+            // note that the library only stores WayNode IDs and getLatitude, getLongitude will always return 0...
+            newWayNodes.add(new WayNode(id, n.getLatitude(), n.getLongitude()));
+        }
+
+        if (roadIndex != null) {
+            roadIndex.addWay(osmWay.getId(), isOneWay, newWayNodes.stream().mapToInt(n -> (int) n.getNodeId()).toArray());
+        }
 
         Way newWay = new Way(new CommonEntityData(osmWay.getId(), 1, date, user, 0, newTags), newWayNodes);
 
         sink.process(new WayContainer(newWay));
     }
 
+    /**
+     * Remember a node that a highway references, but that is missing from the dump. Updates skip it, like we do.
+     * @param osmId OSM ID of the node
+     */
+    private void addMissingNode(long osmId) {
+        if (roadIndex.findSpareNode(osmId) == RoadIndex.NONE) {
+            roadIndex.setSpareNode(osmId, Double.NaN, Double.NaN, null);
+        }
+    }
+
     private void writeNodes() {
-        if (GENERATE_FAKE_SIGNS) {
+        if (fakeSigns) {
+            int nodeCount = mappedID;
             // log POI distribution grid
             logger.trace("Road distribution for POI class generation grid:\n" +
                     Arrays.deepToString(nodesDistribution)
@@ -261,28 +396,24 @@ public class OSMPreprocessor implements Sink, Source {
                     "{}x{} node cells\n" +
                     "{} nodes total\n" +
                     "{} possible fake classes\n" +
-                    "{} expected POIs", nodesDistribution.length, nodesDistribution[0].length, processQueue.size(), EXPECTED_DISTINCT_CLASSES, EXPECTED_TOTAL_POIS);
+                    "{} expected POIs", nodesDistribution.length, nodesDistribution[0].length, nodeCount, EXPECTED_DISTINCT_CLASSES, EXPECTED_TOTAL_POIS);
 
-            // determine and process nodes that will not get a traffic sign
-            int nodeCount = processQueue.size();
-            if (CLUSTERED_DISTRIBUTION) {
-                processQueue.removeIf(osmNode -> {
+            // determine and process nodes that will not get a traffic sign, keep the IDs of the others
+            List<Integer> pois = new ArrayList<>();
+            for (int id = 0; id < nodeCount; id++) {
+                double poiChance;
+                if (CLUSTERED_DISTRIBUTION) {
                     // nodes in dense regions are more likely to be a POI
-                    if (random.nextDouble() > ((double) EXPECTED_TOTAL_POIS) * getCellCount(osmNode) / nodesWeightedTotal) {
-                        sink.process(new NodeContainer(osmNode));
-                        return true;
-                    }
-                    return false;
-                });
-            } else {
-                processQueue.removeIf(osmNode -> {
+                    poiChance = ((double) EXPECTED_TOTAL_POIS) * getCellCount(id) / nodesWeightedTotal;
+                } else {
                     // uniformly distributed POI chance per node
-                    if (random.nextDouble() > EXPECTED_TOTAL_POIS / (double) nodeCount) {
-                        sink.process(new NodeContainer(osmNode));
-                        return true;
-                    }
-                    return false;
-                });
+                    poiChance = EXPECTED_TOTAL_POIS / (double) nodeCount;
+                }
+                if (random.nextDouble() > poiChance) {
+                    writeNode(getQueuedNode(id));
+                } else {
+                    pois.add(id);
+                }
             }
 
             // TODO instead of filtering nodes, it would be nice to shuffle them here, accounting for their clustered distribution property
@@ -292,11 +423,12 @@ public class OSMPreprocessor implements Sink, Source {
 //                processQueue.sort(Comparator.comparingDouble(n -> random.nextDouble() + EXPECTED_TOTAL_POIS * getCellCount(n) / (double) nodesWeightedTotal));
 //            }
 
-            int actualTotalPois = processQueue.size();
+            int actualTotalPois = pois.size();
             logger.info("Actual number of POIs: {}", actualTotalPois);
 
             // shuffle list, so that we can just pick the first n elements as a random, unique subset
-            Collections.shuffle(processQueue);//, new SecureRandom());  // secure random for more possible permutations
+            // seeded like the other samples, so preprocessing the same dump always yields the same classes
+            Collections.shuffle(pois, random);
 
             // set correct sampling function
             Function<Void, Integer> randDistr = null;
@@ -342,11 +474,11 @@ public class OSMPreprocessor implements Sink, Source {
                     break;
                 default:
                     logger.error("Unknown POI distribution: {}. Not generating signs.", POI_DISTRIBUTION);
-                    processQueue.forEach(osmNode -> sink.process(new NodeContainer(osmNode)));
+                    pois.forEach(id -> writeNode(getQueuedNode(id)));
             }
 
             // assign POIs until none are left
-            ListIterator<Node> queueIterator = processQueue.listIterator();
+            ListIterator<Integer> queueIterator = pois.listIterator();
             int remainingPois = actualTotalPois;
             int currentclass = 1;
             do {
@@ -358,23 +490,36 @@ public class OSMPreprocessor implements Sink, Source {
                 }
 
                 for (int i = 0; i < poisNextClass; i++) {
-                    Node current = queueIterator.next();
+                    Node current = getQueuedNode(queueIterator.next());
 
                     current.getTags().add(new Tag("traffic_sign", "FC " + String.format("%03d", currentclass)));
-                    sink.process(new NodeContainer(current));
+                    writeNode(current);
                 }
                 currentclass++;
             } while (remainingPois > 0);
-        } else {
-            processQueue.forEach(osmNode -> sink.process(new NodeContainer(osmNode)));
         }
+        // real signs were written while reading nodes
+        processQueue.close();
+    }
 
+    /**
+     * Create a node from the process queue.
+     * @param id dense ID of the node
+     * @return the node, tagged as junction if applicable
+     */
+    private Node getQueuedNode(int id) {
+        Collection<Tag> tags = new ArrayList<>(2);
+        if (processQueue.getValue(id) == 1) {
+            tags.add(new Tag("is_junction", "yes"));
+        }
+        return new Node(new CommonEntityData(id, 1, date, user, 0, tags),
+                processQueue.getLat(id), processQueue.getLon(id));
     }
 
-    private int getCellCount(Node osmNode) {
+    private int getCellCount(int id) {
         // use min/max to "clamp to bounds" in case the node is outside the bounds
-        double south = Math.min(Math.max(osmNode.getLatitude() - bounds[1], 0), bounds[0] - bounds[1]);
-        double west = Math.min(Math.max(osmNode.getLongitude() - bounds[2], 0), bounds[3] - bounds[2]);
+        double south = Math.min(Math.max(processQueue.getLat(id) - bounds[1], 0), bounds[0] - bounds[1]);
+        double west = Math.min(Math.max(processQueue.getLon(id) - bounds[2], 0), bounds[3] - bounds[2]);
 
         int ns = (int) Math.floor(south / NODE_DISTRIBUTION_GRID_FIDELITY);
         int we = (int) Math.floor(west / NODE_DISTRIBUTION_GRID_FIDELITY);
@@ -387,6 +532,13 @@ public class OSMPreprocessor implements Sink, Source {
     @Override
     public void complete() {
         sink.complete();  // write out remaining output buffer
+        if (roadIndex != null) {
+            try {
+                roadIndex.write(roadIndexFile);
+            } catch (IOException e) {
+                logger.error("Failed to store road index!", e);
+            }
+        }
     }
 
     @Override
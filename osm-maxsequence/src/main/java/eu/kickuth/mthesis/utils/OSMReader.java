@@ -1,5 +1,6 @@
 package eu.kickuth.mthesis.utils;
 
+import eu.kickuth.mthesis.graph.CSRGraph;
 import eu.kickuth.mthesis.graph.Edge;
 import eu.kickuth.mthesis.graph.Graph;
 import org.apache.logging.log4j.LogManager;
@@ -147,9 +148,12 @@ public class OSMReader implements Sink {
     @Override
     public void complete() {
         // TODO postprocess: Remove nodes without neighbours and dead ends?
+        // all nodes and edges are read, so convert the graph to its compact representation
+        osmGraph.freeze();
+        CSRGraph edges = osmGraph.getCSRGraph();
         int deadEndCount = 0;
-        for (var e : osmGraph.adjList) {
-            if (e.isEmpty()) {
+        for (int v = 0; v < edges.getNodeCount(); v++) {
+            if (edges.outDegree(v) == 0) {
                 deadEndCount++;
             }
         }
@@ -163,10 +167,8 @@ public class OSMReader implements Sink {
 
     public Graph getOsmGraph() {
 //        long edges = 0;
-//        long nodes = osmGraph.adjList.size();
-//        for (var list : osmGraph.adjList) {
-//            edges += list.size();
-//        }
+//        long nodes = osmGraph.nodes.size();
+//        edges = osmGraph.getCSRGraph().getEdgeCount();
 //        System.out.println("+++++++++++++++++++++++++++++++");
 //        System.out.println("Nodes: " + nodes);
 //        System.out.println("Edges: " + edges);
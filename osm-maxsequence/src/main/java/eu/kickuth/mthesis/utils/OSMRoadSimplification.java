@@ -28,13 +28,13 @@ public class OSMRoadSimplification implements Sink, Source {
     private Sink sink;
     private final File outputFile;
 
-    // these are the nodes we want to keep with a new ID counting from 0.
-    private final Map<Long, Integer> junctionIDMap = new HashMap<>(100_000);
+    // Input node IDs are dense, as assigned by OSMPreprocessor. Hence, node data is stored in columns indexed by ID.
+    // Because WayNodes do not get lon/lat from file, we store the coordinates of all nodes. The value of each node is
+    // its new ID + 1 for nodes we want to keep (new IDs counting from 0), and NOT_KEPT for all other nodes.
+    private final SpillableNodeStore nodes = new SpillableNodeStore("simplification");
+    private static final int NOT_KEPT = 0;
     private int mappedID = 0;
 
-    // Because WayNodes do not get lon/lat from file, we store a map of IDs to newly created WayNodes
-    private final Map<Long, WayNode> idToLatLon = new HashMap<>(1_000_000);
-
     // default user and date for processed OSM file
     private static final OsmUser user = new OsmUser(0, "");
     private static final Date date = new Date(0L);
@@ -45,7 +45,9 @@ public class OSMRoadSimplification implements Sink, Source {
         // initialise writer
         try {
 //            setSink(new XmlWriter(new BufferedWriter(new FileWriter(outputFile))));  // xml writer
-            setSink(new OsmosisSerializer(new BlockOutputStream(new FileOutputStream(outputFile))));  // pbf writer
+            // pbf writer, encoding on its own thread
+            setSink(new PipelinedSink(new OsmosisSerializer(new BlockOutputStream(new FileOutputStream(outputFile))),
+                    "simplification-writer"));
         } catch (FileNotFoundException e) {
             logger.fatal("Could not find File!", e);
 //        } catch (IOException e) {  // for FileWriter in XmlWriter
@@ -74,46 +76,54 @@ public class OSMRoadSimplification implements Sink, Source {
 
     private void processNode(Node osmNode) {
 
-        long nodeID = osmNode.getId();
+        int nodeID = Math.toIntExact(osmNode.getId());
 
         /*
-        Because WayNodes do not get lon/lat from file (hence are always 0), we store a map of IDs to WayNodes here
+        Because WayNodes do not get lon/lat from file (hence are always 0), we store the coordinates here
          */
-        idToLatLon.put(nodeID, new WayNode(nodeID, osmNode.getLatitude(), osmNode.getLongitude()));
+        nodes.set(nodeID, osmNode.getLatitude(), osmNode.getLongitude(), NOT_KEPT);
 
-        boolean keep = false;
-        for (Tag tag : osmNode.getTags()) {
-            String key = tag.getKey();
-            if ("traffic_sign".equals(key) || "is_junction".equals(key)) {
-                keep = true;
-                break;
-            }
-        }
-
-        if (keep) {
+        if (isKept(osmNode)) {
             // store old ID to node mapping, to compute distances in ways
-            Collection<Tag> nodeTags = osmNode.getTags();
+            // copy tags: decoded entities may be shared or read-only
+            Collection<Tag> nodeTags = new ArrayList<>(osmNode.getTags());
             nodeTags.removeIf(tag -> tag.getKey().equals("is_junction"));
             osmNode = new Node(new CommonEntityData(mappedID, 1, date, user, 0,
                     nodeTags), osmNode.getLatitude(), osmNode.getLongitude()
             );
-            junctionIDMap.put(nodeID, mappedID++);
+            nodes.set(nodeID, osmNode.getLatitude(), osmNode.getLongitude(), mappedID + 1);
+            mappedID++;
 
 
             sink.process(new NodeContainer(osmNode));
         }
     }
 
+    /**
+     * Check if a node is kept, i.e. if it is a junction or has a traffic sign.
+     * @param osmNode a preprocessed node
+     * @return true, if the node is kept
+     */
+    static boolean isKept(Node osmNode) {
+        for (Tag tag : osmNode.getTags()) {
+            String key = tag.getKey();
+            if ("traffic_sign".equals(key) || "is_junction".equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void processWay(Way osmWay) {
-        WayNode currentNode = null;
-        Integer junctionID;
+        int currentNode = -1;
+        int junctionID;
         List<WayNode> keepers = new ArrayList<>();
         ListIterator<WayNode> wayNodes = osmWay.getWayNodes().listIterator();
         // get the first junction/sign node (and hence discard anything before it)
         while (wayNodes.hasNext()) {
-            currentNode = idToLatLon.get(wayNodes.next().getNodeId());
-            if ((junctionID = junctionIDMap.get(currentNode.getNodeId())) != null) {
-                keepers.add(new WayNode(junctionID, currentNode.getLatitude(), currentNode.getLongitude()));
+            currentNode = (int) wayNodes.next().getNodeId();
+            if ((junctionID = nodes.getValue(currentNode)) != NOT_KEPT) {
+                keepers.add(new WayNode(junctionID - 1, nodes.getLat(currentNode), nodes.getLon(currentNode)));
                 break;
             }
         }
@@ -122,14 +132,14 @@ public class OSMRoadSimplification implements Sink, Source {
         StringBuilder distanceList = new StringBuilder();
         // now go through all other nodes, computing nodes we want to keep and distances between them
         while (wayNodes.hasNext()) {
-            WayNode nextNode = idToLatLon.get(wayNodes.next().getNodeId());
+            int nextNode = (int) wayNodes.next().getNodeId();
             nextNodeDistanceSum += distance(currentNode, nextNode);
 
             // are we at a junction or road sign?
-            if ((junctionID = junctionIDMap.get(nextNode.getNodeId())) != null) {
+            if ((junctionID = nodes.getValue(nextNode)) != NOT_KEPT) {
                 distanceList.append(nextNodeDistanceSum).append(";");
                 nextNodeDistanceSum = 0;
-                keepers.add(new WayNode(junctionID, nextNode.getLatitude(), nextNode.getLongitude()));
+                keepers.add(new WayNode(junctionID - 1, nodes.getLat(nextNode), nodes.getLon(nextNode)));
             }
 
             currentNode = nextNode;
@@ -140,7 +150,7 @@ public class OSMRoadSimplification implements Sink, Source {
             return;
         }
 
-        Collection<Tag> tags = osmWay.getTags();
+        Collection<Tag> tags = new ArrayList<>(osmWay.getTags());
         tags.add(new Tag("distance_list", distanceList.toString()));
 
         sink.process(new WayContainer(new Way(
@@ -155,6 +165,7 @@ public class OSMRoadSimplification implements Sink, Source {
     @Override
     public void complete() {
         sink.complete();  // write remaining output buffer to file
+        nodes.close();
     }
 
     @Override
@@ -177,12 +188,12 @@ public class OSMRoadSimplification implements Sink, Source {
      *
      * @return the distance in meters
      */
-    private static double distance(WayNode fst, WayNode snd) {
+    private double distance(int fst, int snd) {
 
-        double lat1 = fst.getLatitude();
-        double lon1 = fst.getLongitude();
-        double lat2 = snd.getLatitude();
-        double lon2 = snd.getLongitude();
+        double lat1 = nodes.getLat(fst);
+        double lon1 = nodes.getLon(fst);
+        double lat2 = nodes.getLat(snd);
+        double lon2 = nodes.getLon(snd);
 
         final int R = 6371; // Radius of the earth
 
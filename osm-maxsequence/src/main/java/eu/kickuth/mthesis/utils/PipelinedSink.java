@@ -0,0 +1,140 @@
+package eu.kickuth.mthesis.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Sink that hands entities to a downstream sink on a separate thread, so that e.g. PBF encoding and writing overlap
+ * with the processing that produces the entities. Entities are passed on in batches and keep their order, so the
+ * output does not depend on thread timing.
+ */
+class PipelinedSink implements Sink {
+
+    private static final Logger logger = LogManager.getLogger(PipelinedSink.class);
+
+    private static final int BATCH_SIZE = 4096;  // entities per hand-over
+    private static final int QUEUE_CAPACITY = 32;  // batches in flight
+    private static final List<EntityContainer> END = new ArrayList<>(0);  // marks the end of the input
+
+    private final Sink downstream;
+    private final BlockingQueue<List<EntityContainer>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread worker;
+    private volatile RuntimeException failure;
+
+    private List<EntityContainer> batch = new ArrayList<>(BATCH_SIZE);
+
+    /**
+     * Start a pipeline stage.
+     * @param downstream sink to be fed by the stage's thread
+     * @param name name of the stage's thread
+     */
+    PipelinedSink(Sink downstream, String name) {
+        this.downstream = downstream;
+        worker = new Thread(this::drain, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void initialize(Map<String, Object> metaData) {
+        // the queue hand-over makes the initialisation visible to the worker thread
+        downstream.initialize(metaData);
+    }
+
+    @Override
+    public void process(EntityContainer entityContainer) {
+        batch.add(entityContainer);
+        if (batch.size() == BATCH_SIZE) {
+            handOver(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Pass on all remaining entities and wait until the downstream sink completed.
+     */
+    @Override
+    public void complete() {
+        if (!batch.isEmpty()) {
+            handOver(batch);
+            batch = new ArrayList<>(0);
+        }
+        handOver(END);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for pipeline stage " + worker.getName(), e);
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close() {
+        downstream.close();
+    }
+
+    private void handOver(List<EntityContainer> entities) {
+        checkFailure();
+        try {
+            queue.put(entities);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while passing entities to " + worker.getName(), e);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Worker loop: feed batches to the downstream sink until the end marker arrives.
+     */
+    private void drain() {
+        try {
+            List<EntityContainer> entities;
+            while ((entities = queue.take()) != END) {
+                if (failure != null) {
+                    continue;  // keep taking batches, so the producer does not block
+                }
+                try {
+                    entities.forEach(downstream::process);
+                } catch (Throwable e) {
+                    logger.error("Pipeline stage {} failed!", worker.getName(), e);
+                    failure = wrap(e);
+                }
+            }
+            if (failure == null) {
+                downstream.complete();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IllegalStateException("Pipeline stage " + worker.getName() + " was interrupted", e);
+        } catch (Throwable e) {
+            logger.error("Pipeline stage {} failed!", worker.getName(), e);
+            failure = wrap(e);
+        }
+    }
+
+    /**
+     * Wrap errors, so that they can be rethrown to the producer. Any failure must be recorded: the producer would
+     * block forever on a dead worker.
+     */
+    private RuntimeException wrap(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new IllegalStateException("Pipeline stage " + worker.getName() + " failed", e);
+    }
+}
@@ -0,0 +1,530 @@
+package eu.kickuth.mthesis.utils;
+
+import eu.kickuth.mthesis.graph.Edge;
+import eu.kickuth.mthesis.graph.Graph;
+import eu.kickuth.mthesis.graph.Node;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+/**
+ * Road network behind the processed graph, kept to apply OSM change files without preprocessing from scratch.
+ *
+ * Nodes are all nodes on roads, with their OSM ID, coordinates and, once road simplification kept them, the ID of their
+ * graph node. Ways are all roads with their nodes and their simplified segments: the kept nodes along the way and the
+ * distances between them, i.e. the edges the way contributes to the graph. Updates only simplify the ways they affect
+ * again, all other ways keep their segments.
+ *
+ * Spare nodes are nodes off the roads that changed ways may still reference: nodes of highways that are not drivable,
+ * which a tag change can turn into roads, and nodes that ways reference but that are missing from the extract.
+ */
+public final class RoadIndex {
+
+    private static final int FILE_MAGIC = 0x52490002;  // "RI", format version 2
+    static final int NONE = -1;
+
+    // nodes, by index
+    private int nodeCount = 0;
+    private long[] osmNodeIds = new long[1024];
+    private double[] lats = new double[1024];
+    private double[] lons = new double[1024];
+    private int[] graphIds = new int[1024];  // NONE, if the node was never kept
+    private int[] references = new int[1024];  // occurrences in ways, nodes referenced twice are junctions
+    private final BitSet signs = new BitSet();  // nodes with a traffic sign
+    private final BitSet changedNodes = new BitSet();  // moved, or kept status changed since the last simplification
+    private LongIntHashMap nodeIndex;  // OSM ID -> index, created on first lookup
+    private int graphNodeCount = 0;
+
+    // ways, by index. Ways are only appended, changed ways are marked as removed and added again.
+    private int wayCount = 0;
+    private long[] osmWayIds = new long[1024];
+    private final BitSet oneWays = new BitSet();
+    private final BitSet removedWays = new BitSet();
+    private int[] wayOffsets = new int[1025];  // nodes of way w are at wayOffsets[w] until wayOffsets[w + 1]
+    private int[] wayNodes = new int[4096];
+    private LongIntHashMap wayIndex;  // OSM ID -> index of the current version, created on first lookup
+
+    // spare nodes, by spare index. Coordinates are NaN for nodes missing from the extract.
+    private int spareCount = 0;
+    private long[] spareOsmIds = new long[1024];
+    private double[] spareLats = new double[1024];
+    private double[] spareLons = new double[1024];
+    private String[] spareSigns = new String[1024];  // value of the traffic_sign tag, null for nodes without
+    private final LongIntHashMap spareIndex = new LongIntHashMap(0);  // OSM ID -> spare index
+
+    // segments of ways below simplifiedWayCount: graph IDs of kept nodes and distances from the preceding one
+    private int simplifiedWayCount = 0;
+    private int[] segmentOffsets = new int[1025];
+    private int[] segmentNodes = new int[1024];
+    private double[] segmentDistances = new double[1024];
+
+
+    /**
+     * Add a road node.
+     * @param osmId OSM ID of the node
+     * @param lat latitude
+     * @param lon longitude
+     * @return index of the node
+     */
+    int addNode(long osmId, double lat, double lon) {
+        if (nodeCount == osmNodeIds.length) {
+            int newCapacity = nodeCount + (nodeCount >> 1);
+            osmNodeIds = Arrays.copyOf(osmNodeIds, newCapacity);
+            lats = Arrays.copyOf(lats, newCapacity);
+            lons = Arrays.copyOf(lons, newCapacity);
+            graphIds = Arrays.copyOf(graphIds, newCapacity);
+            references = Arrays.copyOf(references, newCapacity);
+        }
+        osmNodeIds[nodeCount] = osmId;
+        lats[nodeCount] = lat;
+        lons[nodeCount] = lon;
+        graphIds[nodeCount] = NONE;
+        if (nodeIndex != null) {
+            nodeIndex.put(osmId, nodeCount);
+        }
+        return nodeCount++;
+    }
+
+    /**
+     * Add a spare node, or update it.
+     * @param osmId OSM ID of the node
+     * @param lat latitude, NaN if the node is missing from the extract
+     * @param lon longitude, NaN if the node is missing from the extract
+     * @param sign value of the node's traffic_sign tag, null if it has none
+     */
+    void setSpareNode(long osmId, double lat, double lon, String sign) {
+        int spare = spareIndex.get(osmId, NONE);
+        if (spare == NONE) {
+            if (spareCount == spareOsmIds.length) {
+                int newCapacity = spareCount + (spareCount >> 1);
+                spareOsmIds = Arrays.copyOf(spareOsmIds, newCapacity);
+                spareLats = Arrays.copyOf(spareLats, newCapacity);
+                spareLons = Arrays.copyOf(spareLons, newCapacity);
+                spareSigns = Arrays.copyOf(spareSigns, newCapacity);
+            }
+            spare = spareCount++;
+            spareOsmIds[spare] = osmId;
+            spareIndex.put(osmId, spare);
+        }
+        spareLats[spare] = lat;
+        spareLons[spare] = lon;
+        spareSigns[spare] = sign;
+    }
+
+    /**
+     * @param osmId OSM ID of a node
+     * @return spare index of the node, NONE if it is no spare node
+     */
+    int findSpareNode(long osmId) {
+        return spareIndex.get(osmId, NONE);
+    }
+
+    /**
+     * @param spare spare index of a node
+     * @return value of the node's traffic_sign tag, null if it has none
+     */
+    String getSpareSign(int spare) {
+        return spareSigns[spare];
+    }
+
+    /**
+     * Add a spare node to the road nodes, e.g. because a changed way made it a road node.
+     * @param spare spare index of the node
+     * @return index of the new road node, NONE if the node is missing from the extract
+     */
+    int addSpareNode(int spare) {
+        if (Double.isNaN(spareLats[spare])) {
+            return NONE;
+        }
+        return addNode(spareOsmIds[spare], spareLats[spare], spareLons[spare]);
+    }
+
+    /**
+     * Assign the next graph ID to a node. Used while preprocessing, in the order road simplification keeps nodes.
+     * @param node index of the node
+     * @param sign does the node have a traffic sign?
+     */
+    void keepNode(int node, boolean sign) {
+        graphIds[node] = graphNodeCount++;
+        signs.set(node, sign);
+    }
+
+    /**
+     * @param osmId OSM ID of a node
+     * @return index of the node, NONE if it is not on a road
+     */
+    int findNode(long osmId) {
+        if (nodeIndex == null) {
+            nodeIndex = new LongIntHashMap(nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                nodeIndex.put(osmNodeIds[node], node);
+            }
+        }
+        return nodeIndex.get(osmId, NONE);
+    }
+
+    /**
+     * Move a node.
+     * @param node index of the node
+     * @param lat new latitude
+     * @param lon new longitude
+     */
+    void setCoordinates(int node, double lat, double lon) {
+        if (lats[node] != lat || lons[node] != lon) {
+            lats[node] = lat;
+            lons[node] = lon;
+            changedNodes.set(node);
+        }
+    }
+
+    /**
+     * Set whether a node has a traffic sign. Nodes with signs are kept by road simplification.
+     * @param node index of the node
+     * @param sign does the node have a sign?
+     */
+    void setSign(int node, boolean sign) {
+        boolean kept = isKept(node);
+        signs.set(node, sign);
+        if (kept != isKept(node)) {
+            changedNodes.set(node);
+        }
+    }
+
+    /**
+     * Is a node kept by road simplification, i.e. is it a junction or a sign on a road?
+     * @param node index of the node
+     */
+    boolean isKept(int node) {
+        return references[node] >= 2 || (references[node] == 1 && signs.get(node));
+    }
+
+    /**
+     * @param node index of the node
+     * @return ID of the node's graph node, NONE if it was never kept
+     */
+    int getGraphId(int node) {
+        return graphIds[node];
+    }
+
+    /**
+     * Add a road. Its segments are computed by the next call to simplifyWays.
+     * @param osmId OSM ID of the way
+     * @param oneWay can the road only be used in the direction of its nodes?
+     * @param nodes indices of the way's nodes
+     */
+    void addWay(long osmId, boolean oneWay, int[] nodes) {
+        int way = appendWay(osmId, oneWay, nodes, 0, nodes.length);
+        for (int node : nodes) {
+            reference(node, 1);
+        }
+        if (wayIndex != null) {
+            wayIndex.put(osmId, way);
+        }
+    }
+
+    /**
+     * @param osmId OSM ID of a way
+     * @return index of the way's current version, NONE if it is no road
+     */
+    int findWay(long osmId) {
+        if (wayIndex == null) {
+            wayIndex = new LongIntHashMap(wayCount);
+            for (int way = 0; way < wayCount; way++) {
+                if (!removedWays.get(way)) {
+                    wayIndex.put(osmWayIds[way], way);
+                }
+            }
+        }
+        int way = wayIndex.get(osmId, NONE);
+        return way == NONE || removedWays.get(way) ? NONE : way;
+    }
+
+    /**
+     * Remove a road, its segments no longer contribute to the graph.
+     * @param way index of the way
+     */
+    void removeWay(int way) {
+        removedWays.set(way);
+        for (int i = wayOffsets[way]; i < wayOffsets[way + 1]; i++) {
+            reference(wayNodes[i], -1);
+        }
+    }
+
+    private void reference(int node, int delta) {
+        boolean kept = isKept(node);
+        references[node] += delta;
+        if (kept != isKept(node)) {
+            changedNodes.set(node);
+        }
+    }
+
+    private int appendWay(long osmId, boolean oneWay, int[] nodes, int from, int to) {
+        if (wayCount == osmWayIds.length) {
+            int newCapacity = wayCount + (wayCount >> 1);
+            osmWayIds = Arrays.copyOf(osmWayIds, newCapacity);
+            wayOffsets = Arrays.copyOf(wayOffsets, newCapacity + 1);
+            segmentOffsets = Arrays.copyOf(segmentOffsets, newCapacity + 1);
+        }
+        int offset = wayOffsets[wayCount];
+        if (offset + (to - from) > wayNodes.length) {
+            wayNodes = Arrays.copyOf(wayNodes, Math.max(offset + (to - from), wayNodes.length + (wayNodes.length >> 1)));
+        }
+        System.arraycopy(nodes, from, wayNodes, offset, to - from);
+        osmWayIds[wayCount] = osmId;
+        oneWays.set(wayCount, oneWay);
+        wayOffsets[wayCount + 1] = offset + (to - from);
+        return wayCount++;
+    }
+
+    /**
+     * Simplify all ways that were added since the last call, and all ways through changed nodes. Nodes that are kept
+     * for the first time get new graph IDs.
+     */
+    void simplifyWays() {
+        if (!changedNodes.isEmpty()) {
+            // append affected ways again, so their segments can be replaced
+            int oldWayCount = simplifiedWayCount;
+            for (int way = 0; way < oldWayCount; way++) {
+                if (!removedWays.get(way) && containsChangedNode(way)) {
+                    int copy = appendWay(osmWayIds[way], oneWays.get(way), wayNodes, wayOffsets[way],
+                            wayOffsets[way + 1]);
+                    removedWays.set(way);
+                    if (wayIndex != null) {
+                        wayIndex.put(osmWayIds[way], copy);
+                    }
+                }
+            }
+            changedNodes.clear();
+        }
+        for (; simplifiedWayCount < wayCount; simplifiedWayCount++) {
+            simplifyWay(simplifiedWayCount);
+        }
+    }
+
+    private boolean containsChangedNode(int way) {
+        for (int i = wayOffsets[way]; i < wayOffsets[way + 1]; i++) {
+            if (changedNodes.get(wayNodes[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compute the segments of a way, like OSMRoadSimplification does: nodes before the first and after the last kept
+     * node are dropped, distances between kept nodes are summed up along the way.
+     */
+    private void simplifyWay(int way) {
+        int start = segmentOffsets[way];
+        int segmentCount = start;
+        int end = wayOffsets[way + 1];
+        int i = wayOffsets[way];
+        // get the first kept node (and hence discard anything before it)
+        while (i < end && !isKept(wayNodes[i])) {
+            i++;
+        }
+        if (i < end) {
+            int current = wayNodes[i];
+            segmentCount = addSegment(segmentCount, current, 0);
+            double distance = 0;
+            for (i++; i < end; i++) {
+                int next = wayNodes[i];
+                distance += Node.getDistance(lats[current], lons[current], lats[next], lons[next]);
+                if (isKept(next)) {
+                    segmentCount = addSegment(segmentCount, next, distance);
+                    distance = 0;
+                }
+                current = next;
+            }
+        }
+        if (segmentCount - start <= 1) {
+            segmentCount = start;  // no edges
+        }
+        segmentOffsets[way + 1] = segmentCount;
+    }
+
+    private int addSegment(int segmentCount, int node, double distance) {
+        if (graphIds[node] == NONE) {
+            graphIds[node] = graphNodeCount++;
+        }
+        if (segmentCount == segmentNodes.length) {
+            int newCapacity = segmentCount + (segmentCount >> 1);
+            segmentNodes = Arrays.copyOf(segmentNodes, newCapacity);
+            segmentDistances = Arrays.copyOf(segmentDistances, newCapacity);
+        }
+        segmentNodes[segmentCount] = graphIds[node];
+        segmentDistances[segmentCount] = distance;
+        return segmentCount + 1;
+    }
+
+    /**
+     * Does this index describe the given graph?
+     * @param graph a graph
+     * @return true, if node and edge counts match
+     */
+    public boolean matches(Graph graph) {
+        simplifyWays();
+        long edgeCount = 0;
+        for (int way = 0; way < wayCount; way++) {
+            if (!removedWays.get(way) && segmentOffsets[way + 1] > segmentOffsets[way]) {
+                int edges = segmentOffsets[way + 1] - segmentOffsets[way] - 1;
+                edgeCount += oneWays.get(way) ? edges : 2L * edges;
+            }
+        }
+        return graph.nodes.size() == graphNodeCount && graph.getCSRGraph().getEdgeCount() == edgeCount;
+    }
+
+    /**
+     * Create the graph described by this index. Graph nodes that are no longer kept have no edges and no type.
+     * @param bounds graph bounds: top/N, bottom/S, left/W, right/E
+     * @param types POI class of each graph ID, null for nodes without class
+     * @return the frozen graph
+     */
+    Graph createGraph(double[] bounds, IntFunction<String> types) {
+        simplifyWays();
+        int[] nodesByGraphId = new int[graphNodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            if (graphIds[node] != NONE) {
+                nodesByGraphId[graphIds[node]] = node;
+            }
+        }
+        Graph graph = new Graph(bounds, graphNodeCount);
+        for (int id = 0; id < graphNodeCount; id++) {
+            int node = nodesByGraphId[id];
+            String type = isKept(node) ? types.apply(id) : null;
+            graph.addNode(new Node(id, lats[node], lons[node], type));
+        }
+        for (int way = 0; way < wayCount; way++) {
+            if (removedWays.get(way)) {
+                continue;
+            }
+            for (int i = segmentOffsets[way] + 1; i < segmentOffsets[way + 1]; i++) {
+                Node current = graph.getNode(segmentNodes[i - 1]);
+                Node next = graph.getNode(segmentNodes[i]);
+                graph.addEdge(new Edge(current, next, segmentDistances[i]));
+                if (!oneWays.get(way)) {
+                    graph.addEdge(new Edge(next, current, segmentDistances[i]));
+                }
+            }
+        }
+        graph.freeze();
+        return graph;
+    }
+
+    /**
+     * Store the index in a binary file. Removed ways, and spare nodes that became road nodes, are dropped.
+     * @param file the output file
+     * @throws IOException if writing fails
+     */
+    public void write(File file) throws IOException {
+        simplifyWays();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(nodeCount);
+            out.writeInt(graphNodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                out.writeLong(osmNodeIds[node]);
+                out.writeDouble(lats[node]);
+                out.writeDouble(lons[node]);
+                out.writeInt(graphIds[node]);
+                out.writeBoolean(signs.get(node));
+            }
+            out.writeInt(wayCount - removedWays.cardinality());
+            for (int way = 0; way < wayCount; way++) {
+                if (removedWays.get(way)) {
+                    continue;
+                }
+                out.writeLong(osmWayIds[way]);
+                out.writeBoolean(oneWays.get(way));
+                out.writeInt(wayOffsets[way + 1] - wayOffsets[way]);
+                for (int i = wayOffsets[way]; i < wayOffsets[way + 1]; i++) {
+                    out.writeInt(wayNodes[i]);
+                }
+                out.writeInt(segmentOffsets[way + 1] - segmentOffsets[way]);
+                for (int i = segmentOffsets[way]; i < segmentOffsets[way + 1]; i++) {
+                    out.writeInt(segmentNodes[i]);
+                    out.writeDouble(segmentDistances[i]);
+                }
+            }
+            int[] spares = new int[spareCount];
+            int liveSpareCount = 0;
+            for (int spare = 0; spare < spareCount; spare++) {
+                if (findNode(spareOsmIds[spare]) == NONE) {
+                    spares[liveSpareCount++] = spare;
+                }
+            }
+            out.writeInt(liveSpareCount);
+            for (int i = 0; i < liveSpareCount; i++) {
+                int spare = spares[i];
+                out.writeLong(spareOsmIds[spare]);
+                out.writeDouble(spareLats[spare]);
+                out.writeDouble(spareLons[spare]);
+                out.writeBoolean(spareSigns[spare] != null);
+                if (spareSigns[spare] != null) {
+                    out.writeUTF(spareSigns[spare]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load an index from a binary file.
+     * @param file the input file
+     * @return the loaded index
+     * @throws IOException if reading fails or the file is no road index
+     */
+    public static RoadIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a road index file, or one of an older format: " + file);
+            }
+            RoadIndex index = new RoadIndex();
+            int nodeCount = in.readInt();
+            index.graphNodeCount = in.readInt();
+            for (int i = 0; i < nodeCount; i++) {
+                int node = index.addNode(in.readLong(), in.readDouble(), in.readDouble());
+                index.graphIds[node] = in.readInt();
+                index.signs.set(node, in.readBoolean());
+            }
+            int wayCount = in.readInt();
+            int[] nodes = new int[16];
+            for (int i = 0; i < wayCount; i++) {
+                long osmId = in.readLong();
+                boolean oneWay = in.readBoolean();
+                int length = in.readInt();
+                if (length > nodes.length) {
+                    nodes = new int[Math.max(length, nodes.length * 2)];
+                }
+                for (int j = 0; j < length; j++) {
+                    nodes[j] = in.readInt();
+                    index.references[nodes[j]]++;
+                }
+                int way = index.appendWay(osmId, oneWay, nodes, 0, length);
+                int segmentCount = index.segmentOffsets[way];
+                int segmentLength = in.readInt();
+                for (int j = 0; j < segmentLength; j++) {
+                    if (segmentCount == index.segmentNodes.length) {
+                        int newCapacity = segmentCount + (segmentCount >> 1);
+                        index.segmentNodes = Arrays.copyOf(index.segmentNodes, newCapacity);
+                        index.segmentDistances = Arrays.copyOf(index.segmentDistances, newCapacity);
+                    }
+                    index.segmentNodes[segmentCount] = in.readInt();
+                    index.segmentDistances[segmentCount] = in.readDouble();
+                    segmentCount++;
+                }
+                index.segmentOffsets[way + 1] = segmentCount;
+            }
+            index.simplifiedWayCount = index.wayCount;
+            int spareCount = in.readInt();
+            for (int i = 0; i < spareCount; i++) {
+                long osmId = in.readLong();
+                double lat = in.readDouble();
+                double lon = in.readDouble();
+                index.setSpareNode(osmId, lat, lon, in.readBoolean() ? in.readUTF() : null);
+            }
+            return index;
+        }
+    }
+}
@@ -5,8 +5,32 @@ import java.io.File;
 public final class Settings {
 
     public static final int  PORT = 4567;  // Webserver port
-
-    public static final double POI_GRID_FIDELITY = 0.1;  // size (lat/lon) of a cell in POI grid
+    public static final int POI_TILE_CACHE_SIZE = 4096;  // number of serialised POI tiles kept
+    public static final int POI_TILE_CLUSTER_ZOOM = 13;  // POI tiles below this zoom level show clusters
+    public static final int POI_TILE_CLUSTER_CELLS = 32;  // clusters per tile side
+    // solve jobs running concurrently. Each solver is single threaded.
+    public static final int SOLVER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int SOLVER_QUEUE_SIZE = 32;  // solve jobs waiting for a thread, before requests are rejected
+    public static final long SOLVE_JOB_RETENTION_MS = 10 * 60 * 1000;  // keep finished jobs' results for 10 minutes
+    // request threads waiting for the result of a synchronous path request, before further ones are rejected
+    public static final int PATH_REQUESTS_WAITING = 8;
+    // fork-join threads computing distance matrices. Without a hierarchy, each thread leases a Dijkstra instance.
+    public static final int MATRIX_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int MATRIX_MAX_NODES = 256;  // nodes per distance matrix request
+    // portfolio solver: threads running member solvers (each leases a Dijkstra instance), and time budget per query
+    public static final int PORTFOLIO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final long PORTFOLIO_TIME_BUDGET_MS = 10_000;
+    public static final int PORTFOLIO_RANDOMIZED_SOLVERS = 4;  // randomized SPE and SmartSPE runs, besides the others
+    public static final double RANDOMIZED_SOLVER_SLACK = 0.2;  // randomized solvers pick POIs up to 20% farther away
+    // web queries other than solving (max distances, distance matrices): threads, and requests waiting for a thread
+    public static final int QUERY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int QUERY_QUEUE_SIZE = 32;
+    public static final int MAX_DIST_CACHE_SIZE = 1024;  // shortest path costs kept for max distance requests
+    // Dijkstra instances leased at a time per graph: one per solver, portfolio, matrix and query thread, and some spare
+    // for other threads. Further leases wait for a release, and fail after the timeout.
+    public static final int DIJKSTRA_MAX_INSTANCES =
+            SOLVER_THREADS + PORTFOLIO_THREADS + MATRIX_THREADS + QUERY_THREADS + 4;
+    public static final long DIJKSTRA_LEASE_TIMEOUT_MS = 60_000;
 
 
 
@@ -18,10 +42,25 @@ public final class Settings {
 //    public static final File OSM_DUMP = new File("src/main/resources/osm_data/de_linear.osm.pbf");  // DE (preprocessed) linear/uniform
 
     public static final File OSM_DUMP_PROCESSED = new File(OSM_DUMP.getPath().replace(".osm.pbf", "_processed.osm.pbf"));  // preprocessed OSM data file
+    public static final File GRAPH_SNAPSHOT = new File(OSM_DUMP.getPath().replace(".osm.pbf", "_processed.graph"));  // binary snapshot of the preprocessed graph
+    public static final File CH_FILE = new File(OSM_DUMP.getPath().replace(".osm.pbf", "_processed.ch"));  // contraction hierarchy of the preprocessed graph
+    public static final File LANDMARK_FILE = new File(OSM_DUMP.getPath().replace(".osm.pbf", "_processed.landmarks"));  // ALT landmark tables
+    public static final File ROAD_INDEX_FILE = new File(OSM_DUMP.getPath().replace(".osm.pbf", "_processed.roads"));  // road network for incremental updates
 
 
     // PREPROCESSING
     public static final boolean FORCE_PREPROCESS = false;  // preprocess the .pbf file, even if preprocessed version exists?
+    public static final boolean FUSED_PREPROCESSING = true;  // simplify roads in memory, without an intermediate file?
+    public static final boolean KEEP_ROAD_INDEX = false;  // store the road network, to apply OSM change files later?
+    public static final int PREPROCESSING_THREADS = Runtime.getRuntime().availableProcessors();  // PBF decoding threads
+    // heap for preprocessing node data. Nodes beyond it are kept in memory mapped temporary files in the spill dir.
+    public static final long PREPROCESSING_MEMORY_BUDGET_MB = 2048;
+    public static final File PREPROCESSING_SPILL_DIR = OSM_DUMP.getAbsoluteFile().getParentFile();
+    public static final boolean MEMORY_MAPPED_GRAPH = true;  // keep the graph snapshot mapped off-heap instead of copying it?
+    public static final boolean USE_CONTRACTION_HIERARCHY = true;  // speed up point-to-point queries with a CH?
+    // search for point-to-point queries without CH
+    public static final String POINT_TO_POINT_SEARCH = "astar";  // "astar", "bidirectional", "dijkstra"
+    public static final int LANDMARK_COUNT = 16;  // landmarks for ALT, only computed for "astar". 0 to disable.
 
     // FAKE CLASSES
     // use (augmented) traffic signs from file, or generate completely fake ones?
@@ -0,0 +1,180 @@
+package eu.kickuth.mthesis.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static eu.kickuth.mthesis.utils.Settings.PREPROCESSING_MEMORY_BUDGET_MB;
+import static eu.kickuth.mthesis.utils.Settings.PREPROCESSING_SPILL_DIR;
+
+/**
+ * Node columns (latitude, longitude and an int value) indexed by dense node ID, used while preprocessing.
+ *
+ * Nodes are stored in fixed size chunks. Chunks are allocated on the heap as long as the preprocessing memory budget
+ * (shared by all open stores) allows. Further chunks are memory mapped regions of a temporary file, which the OS pages
+ * to disk as needed, so extracts larger than the heap can be preprocessed. Entries that were never set are 0.
+ */
+final class SpillableNodeStore implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(SpillableNodeStore.class);
+
+    private static final int CHUNK_BITS = 20;  // nodes per chunk: 2^20
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final long CHUNK_BYTES = (long) CHUNK_SIZE * (2 * Double.BYTES + Integer.BYTES);
+
+    // heap bytes used by all open stores
+    private static final AtomicLong heapInUse = new AtomicLong();
+    // heap bytes available to all open stores, and where chunks beyond them are spilled to
+    private static volatile long memoryBudget = PREPROCESSING_MEMORY_BUDGET_MB * (1L << 20);
+    private static volatile File spillDir = PREPROCESSING_SPILL_DIR;
+
+    private final String name;
+    private DoubleBuffer[] lats = new DoubleBuffer[16];
+    private DoubleBuffer[] lons = new DoubleBuffer[16];
+    private IntBuffer[] values = new IntBuffer[16];
+    private long heapBytes = 0;  // heap bytes used by this store
+
+    // temporary file for chunks exceeding the memory budget, created on first use
+    private File spillFile;
+    private FileChannel spillChannel;
+    private long spilledBytes = 0;
+
+    /**
+     * Create an empty store.
+     * @param name name for log messages and the temporary file
+     */
+    SpillableNodeStore(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Store the data of a node.
+     * @param id dense node ID
+     * @param lat latitude
+     * @param lon longitude
+     * @param value int value of the node
+     */
+    void set(int id, double lat, double lon, int value) {
+        int chunk = id >>> CHUNK_BITS;
+        if (chunk >= lats.length || lats[chunk] == null) {
+            allocateChunk(chunk);
+        }
+        int offset = id & (CHUNK_SIZE - 1);
+        lats[chunk].put(offset, lat);
+        lons[chunk].put(offset, lon);
+        values[chunk].put(offset, value);
+    }
+
+    double getLat(int id) {
+        DoubleBuffer chunk = getChunk(lats, id);
+        return chunk == null ? 0 : chunk.get(id & (CHUNK_SIZE - 1));
+    }
+
+    double getLon(int id) {
+        DoubleBuffer chunk = getChunk(lons, id);
+        return chunk == null ? 0 : chunk.get(id & (CHUNK_SIZE - 1));
+    }
+
+    int getValue(int id) {
+        IntBuffer chunk = getChunk(values, id);
+        return chunk == null ? 0 : chunk.get(id & (CHUNK_SIZE - 1));
+    }
+
+    private static <T> T getChunk(T[] chunks, int id) {
+        int chunk = id >>> CHUNK_BITS;
+        return chunk < chunks.length ? chunks[chunk] : null;
+    }
+
+    private void allocateChunk(int chunk) {
+        if (chunk >= lats.length) {
+            int newLength = Math.max(chunk + 1, lats.length * 2);
+            lats = Arrays.copyOf(lats, newLength);
+            lons = Arrays.copyOf(lons, newLength);
+            values = Arrays.copyOf(values, newLength);
+        }
+        ByteBuffer bytes;
+        if (heapInUse.addAndGet(CHUNK_BYTES) <= memoryBudget) {
+            heapBytes += CHUNK_BYTES;
+            bytes = ByteBuffer.allocate((int) CHUNK_BYTES);
+        } else {
+            heapInUse.addAndGet(-CHUNK_BYTES);
+            bytes = mapChunk();
+        }
+        bytes.order(ByteOrder.nativeOrder());
+        lats[chunk] = slice(bytes, 0, CHUNK_SIZE * Double.BYTES).asDoubleBuffer();
+        lons[chunk] = slice(bytes, CHUNK_SIZE * Double.BYTES, CHUNK_SIZE * Double.BYTES).asDoubleBuffer();
+        values[chunk] = slice(bytes, 2 * CHUNK_SIZE * Double.BYTES, CHUNK_SIZE * Integer.BYTES).asIntBuffer();
+    }
+
+    /**
+     * Map a new chunk at the end of the temporary file.
+     */
+    private ByteBuffer mapChunk() {
+        try {
+            if (spillChannel == null) {
+                spillFile = File.createTempFile(name + "-", ".spill", spillDir);
+                spillFile.deleteOnExit();
+                spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                logger.info("Memory budget exhausted. Spilling {} nodes to {}", name, spillFile);
+            }
+            ByteBuffer mapped = spillChannel.map(FileChannel.MapMode.READ_WRITE, spilledBytes, CHUNK_BYTES);
+            spilledBytes += CHUNK_BYTES;
+            return mapped;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill " + name + " nodes to disk", e);
+        }
+    }
+
+    /**
+     * Change the memory budget for chunks allocated from now on, e.g. to make tests spill small inputs.
+     * @param budgetBytes heap bytes available to all open stores
+     * @param dir directory for the temporary files of chunks beyond the budget
+     */
+    static void setMemoryBudget(long budgetBytes, File dir) {
+        memoryBudget = budgetBytes;
+        spillDir = dir;
+    }
+
+    private static ByteBuffer slice(ByteBuffer bytes, int from, int length) {
+        ByteBuffer view = bytes.duplicate();
+        view.position(from);
+        view.limit(from + length);
+        return view.slice().order(bytes.order());
+    }
+
+    /**
+     * Release the heap budget and delete the temporary file. The store must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        heapInUse.addAndGet(-heapBytes);
+        heapBytes = 0;
+        lats = lons = null;
+        values = null;
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+                logger.warn("Could not close {}", spillFile, e);
+            }
+            // fails on systems that do not allow deleting mapped files, deleteOnExit catches those
+            if (!spillFile.delete()) {
+                logger.debug("Could not delete {} yet.", spillFile);
+            }
+            spillChannel = null;
+        }
+    }
+}
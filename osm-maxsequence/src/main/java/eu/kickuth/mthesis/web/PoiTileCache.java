@@ -0,0 +1,166 @@
+package eu.kickuth.mthesis.web;
+
+import eu.kickuth.mthesis.graph.Graph;
+import eu.kickuth.mthesis.graph.Node;
+import eu.kickuth.mthesis.utils.GeoJSON;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+
+import static eu.kickuth.mthesis.utils.Settings.*;
+
+/**
+ * GeoJSON responses for POI map tiles, addressed like map tiles (zoom z, column x, row y in Web Mercator).
+ *
+ * From POI_TILE_CLUSTER_ZOOM on, a tile lists all POIs inside it. Below that zoom, POIs are aggregated on a grid of
+ * POI_TILE_CLUSTER_CELLS x POI_TILE_CLUSTER_CELLS cells per tile: cells with a single POI list it, cells with more POIs
+ * become one cluster at their centroid with a POI count. Tiles are serialised on first request and the most recently
+ * used POI_TILE_CACHE_SIZE tiles are kept. The graph is frozen, so cached tiles never go stale.
+ */
+final class PoiTileCache {
+
+    private static final Logger logger = LogManager.getLogger(PoiTileCache.class);
+
+    static final int MAX_ZOOM = 22;
+
+    private final Graph graph;
+    private final Map<Long, Tile> tiles;
+
+    PoiTileCache(Graph graph) {
+        this(graph, POI_TILE_CACHE_SIZE);
+    }
+
+    /**
+     * @param graph graph to take the POIs from
+     * @param capacity number of tiles kept
+     */
+    PoiTileCache(Graph graph, int capacity) {
+        this.graph = graph;
+        tiles = new LinkedHashMap<>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get a tile, from cache if possible.
+     * @param z zoom level, 0 to MAX_ZOOM
+     * @param x column, 0 to 2^z - 1
+     * @param y row, 0 to 2^z - 1
+     * @return the tile
+     */
+    Tile getTile(int z, int x, int y) {
+        if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) {
+            throw new IllegalArgumentException("Invalid tile " + z + "/" + x + "/" + y);
+        }
+        long key = ((long) z << 58) | ((long) x << 29) | y;
+        synchronized (tiles) {
+            Tile tile = tiles.get(key);
+            if (tile != null) {
+                return tile;
+            }
+        }
+        // serialise outside the lock, so slow tiles do not block cached ones. Concurrent misses create equal tiles.
+        long startTime = System.currentTimeMillis();
+        Tile tile = createTile(z, x, y);
+        logger.trace("Created POI tile {}/{}/{} in {}ms.", z, x, y, System.currentTimeMillis() - startTime);
+        synchronized (tiles) {
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    private Tile createTile(int z, int x, int y) {
+        double tileCount = 1 << z;
+        double[] area = {tileLat(y, tileCount), tileLat(y + 1, tileCount), x / tileCount * 360 - 180,
+                (x + 1) / tileCount * 360 - 180};
+        Collection<Node> pois = graph.getPois(area);
+        if (z >= POI_TILE_CLUSTER_ZOOM) {
+            return new Tile(GeoJSON.createPOIList(pois));
+        }
+
+        // aggregate POIs by grid cell: count, latitude sum, longitude sum and the POI, if it is the only one
+        int cells = POI_TILE_CLUSTER_CELLS;
+        int[] counts = new int[cells * cells];
+        double[] latSums = new double[cells * cells];
+        double[] lonSums = new double[cells * cells];
+        Node[] singles = new Node[cells * cells];
+        for (Node poi : pois) {
+            int column = cell((poi.lon + 180) / 360 * tileCount - x, cells);
+            int row = cell(mercatorY(poi.lat) * tileCount - y, cells);
+            int cell = row * cells + column;
+            counts[cell]++;
+            latSums[cell] += poi.lat;
+            lonSums[cell] += poi.lon;
+            singles[cell] = poi;
+        }
+        List<Node> singlePois = new ArrayList<>();
+        List<double[]> clusters = new ArrayList<>();
+        for (int cell = 0; cell < counts.length; cell++) {
+            if (counts[cell] == 1) {
+                singlePois.add(singles[cell]);
+            } else if (counts[cell] > 1) {
+                clusters.add(new double[]{latSums[cell] / counts[cell], lonSums[cell] / counts[cell], counts[cell]});
+            }
+        }
+        return new Tile(GeoJSON.createPOIClusterList(singlePois, clusters));
+    }
+
+    /**
+     * @return northern latitude of a tile row
+     */
+    private static double tileLat(int y, double tileCount) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y / tileCount))));
+    }
+
+    /**
+     * @return Web Mercator y coordinate of a latitude, from 0 (north) to 1 (south)
+     */
+    private static double mercatorY(double lat) {
+        double phi = Math.toRadians(lat);
+        return (1 - Math.log(Math.tan(phi) + 1 / Math.cos(phi)) / Math.PI) / 2;
+    }
+
+    private static int cell(double tileFraction, int cells) {
+        return Math.max(0, Math.min(cells - 1, (int) (tileFraction * cells)));
+    }
+
+
+    /**
+     * A serialised tile and its entity tag, for conditional requests.
+     */
+    static final class Tile {
+
+        final String json;
+        final String etag;
+
+        private Tile(String json) {
+            this.json = json;
+            etag = '"' + Integer.toHexString(json.hashCode()) + Integer.toHexString(json.length()) + '"';
+        }
+
+        /**
+         * Check a conditional request against this tile.
+         * @param ifNoneMatch value of the If-None-Match header: "*" or a list of entity tags. May be null.
+         * @return true, if the client's copy is current
+         */
+        boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);  // If-None-Match uses weak comparison
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
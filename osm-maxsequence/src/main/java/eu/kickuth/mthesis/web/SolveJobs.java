@@ -0,0 +1,192 @@
+package eu.kickuth.mthesis.web;
+
+import eu.kickuth.mthesis.solvers.Solver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static eu.kickuth.mthesis.utils.Settings.*;
+
+/**
+ * Runs solve requests as jobs on a bounded pool of solver threads.
+ *
+ * Submitting returns a job at once. Its state and progress can be polled, and its result fetched once it is done.
+ * At most SOLVER_THREADS jobs run at a time and at most SOLVER_QUEUE_SIZE wait, further submissions are rejected.
+ * Cancelling a running job interrupts its thread, which the solvers check between steps. Finished jobs are kept for
+ * SOLVE_JOB_RETENTION_MS, so their results can be fetched.
+ */
+final class SolveJobs<T> {
+
+    private static final Logger logger = LogManager.getLogger(SolveJobs.class);
+
+    enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+        boolean isFinished() {
+            return this == DONE || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Job<T>> jobs = new ConcurrentHashMap<>();
+    private final long retentionMs;
+
+    SolveJobs() {
+        this(SOLVER_THREADS, SOLVER_QUEUE_SIZE, SOLVE_JOB_RETENTION_MS);
+    }
+
+    /**
+     * Create a job pool of a custom size.
+     * @param threads jobs running concurrently
+     * @param queueSize jobs waiting for a thread, before submissions are rejected
+     * @param retentionMs time to keep finished jobs, in milliseconds
+     */
+    SolveJobs(int threads, int queueSize, long retentionMs) {
+        this.retentionMs = retentionMs;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "solver-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Submit a job.
+     * @param solverFactory creates the solver, once the job starts. Solvers lease search state as large as the graph,
+     *                      so waiting jobs do not hold one. The solver is closed once the job finished.
+     * @param task solves with the solver and returns the result. Results are kept until the job expires.
+     * @return the new job
+     * @throws RejectedExecutionException if too many jobs are waiting
+     */
+    Job<T> submit(Supplier<Solver> solverFactory, Function<Solver, T> task) {
+        removeExpiredJobs();
+        Job<T> job = new Job<>();
+        jobs.put(job.id, job);
+        try {
+            job.future = executor.submit(() -> job.run(solverFactory, task));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            throw e;
+        }
+        logger.debug("Submitted job {}", job.id);
+        return job;
+    }
+
+    /**
+     * @param id job ID
+     * @return the job, null if there is no such job (anymore)
+     */
+    Job<T> getJob(String id) {
+        return jobs.get(id);
+    }
+
+    private void removeExpiredJobs() {
+        long expired = System.currentTimeMillis() - retentionMs;
+        jobs.values().removeIf(job -> job.getState().isFinished() && job.finishedAt < expired);
+    }
+
+
+    static final class Job<T> {
+
+        final String id = UUID.randomUUID().toString();
+        private volatile Solver solver;  // set once the job runs
+        private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+        private volatile Future<T> future;
+        private volatile T result;
+        private volatile long finishedAt;
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private T run(Supplier<Solver> solverFactory, Function<Solver, T> task) {
+            if (!state.compareAndSet(State.QUEUED, State.RUNNING)) {
+                return null;  // cancelled while queued
+            }
+            try (Solver jobSolver = solverFactory.get()) {
+                solver = jobSolver;
+                result = task.apply(jobSolver);
+                finish(State.DONE);
+            } catch (CancellationException e) {
+                logger.debug("Cancelled job {}", id);
+                finish(State.CANCELLED);
+            } catch (RuntimeException e) {
+                logger.error("Job {} failed", id, e);
+                finish(State.FAILED);
+            } catch (Error e) {
+                // e.g. out of memory on a huge corridor: the job still fails, so it expires and clients stop polling
+                logger.error("Job {} failed", id, e);
+                finish(State.FAILED);
+                throw e;
+            }
+            return result;
+        }
+
+        private void finish(State finalState) {
+            solver = null;  // kept jobs only hold their result, not the solver's corridor
+            finishedAt = System.currentTimeMillis();
+            state.set(finalState);
+            finished.countDown();
+        }
+
+        /**
+         * Cancel the job. Queued jobs never run, running jobs are interrupted.
+         * @return true, if the job was not finished yet
+         */
+        boolean cancel() {
+            if (state.compareAndSet(State.QUEUED, State.CANCELLED)) {
+                finishedAt = System.currentTimeMillis();
+                finished.countDown();
+                future.cancel(false);
+                return true;
+            }
+            if (state.get() == State.RUNNING) {
+                future.cancel(true);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Wait for the job to finish. Cancelled running jobs finish once their solver noticed the interruption.
+         * @return the result, null if the job failed or was cancelled
+         * @throws InterruptedException if the waiting thread was interrupted
+         */
+        T awaitResult() throws InterruptedException {
+            finished.await();
+            return getState() == State.DONE ? result : null;
+        }
+
+        State getState() {
+            return state.get();
+        }
+
+        /**
+         * @return progress from 0 to 1
+         */
+        double getProgress() {
+            switch (getState()) {
+                case DONE:
+                    return 1;
+                case RUNNING:
+                    Solver runningSolver = solver;
+                    return runningSolver == null ? 0 : runningSolver.getStatus();
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * @return the result, null unless the job is done
+         */
+        T getResult() {
+            return result;
+        }
+    }
+}
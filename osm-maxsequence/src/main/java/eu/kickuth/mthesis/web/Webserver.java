@@ -1,5 +1,7 @@
 package eu.kickuth.mthesis.web;
 
+import eu.kickuth.mthesis.graph.Dijkstra;
+import eu.kickuth.mthesis.graph.DistanceMatrix;
 import eu.kickuth.mthesis.graph.Graph;
 import eu.kickuth.mthesis.graph.Node;
 import eu.kickuth.mthesis.solvers.*;
@@ -16,11 +18,12 @@ import org.json.JSONObject;
 import spark.Request;
 import spark.Response;
 
-import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static eu.kickuth.mthesis.utils.Settings.*;
@@ -31,11 +34,26 @@ public class Webserver {
     private static final Logger logger = LogManager.getLogger(Webserver.class);
 
     private final Graph graph;
-    private Solver currentSolver;
-    private final HashMap<String, Solver> solvers = new HashMap<>(5);
+    // most recently updated solver. Provides the parameters shown on the map page, and defaults for path requests.
+    private volatile Solver currentSolver;
+    // every path request gets its own solver, so concurrent requests do not share search state
+    private final HashMap<String, Function<Graph, Solver>> solvers = new HashMap<>(5);
 
     private static final VelocityEngine ve = new VelocityEngine();  // web server
-    private final String poiJSON;
+    private volatile String poiJSON;  // POIs transmitted on page load, serialised on first page load
+    private final PoiTileCache poiTiles;
+    private final SolveJobs<SolvedPath> solveJobs = new SolveJobs<>();
+    // request threads that may block in synchronous path requests, so they can not exhaust the server's threads
+    private final Semaphore waitingPathRequests = new Semaphore(PATH_REQUESTS_WAITING);
+    // runs searches of other requests, so at most QUERY_THREADS run and QUERY_QUEUE_SIZE requests wait for them
+    private final ThreadPoolExecutor queryExecutor;
+    // shortest path costs of recent max distance requests, by source (high bits) and target (low bits)
+    private final Map<Long, Double> shortestPathCosts = new LinkedHashMap<>(MAX_DIST_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+            return size() > MAX_DIST_CACHE_SIZE;
+        }
+    };
 
     // uncomment here (and in start()) for Cross-Origin Resource Sharing
 //    private static final HashMap<String, String> corsHeaders = new HashMap<>();
@@ -50,32 +68,40 @@ public class Webserver {
         logger.trace("Initialising solvers");
         graph = g;
         currentSolver = new SmartSPESolver(defaultSource, defaultTarget, defaultMaxDistFactor, graph);
-        solvers.put("sspe", currentSolver);
-        solvers.put("spe", new SPESolver(defaultSource, defaultTarget, defaultMaxDistFactor, graph));
-        solvers.put("ga", new GASolver(defaultSource, defaultTarget, defaultMaxDistFactor, graph));
-        solvers.put("sp", new SPSolver(defaultSource, defaultTarget, defaultMaxDistFactor, graph));
-
-        // get names of common POI classes. We will load these ad hoc close up, instead of transmitting them on page load
-        // this is to avoid transmitting too much data
-        String[] commonPOIClasses = g.poiClassesToCount.entrySet().stream().filter(
-                entry -> entry.getValue() < 100  // TODO hard coded
-        ).map(Map.Entry::getKey).toArray(String[]::new);
-
-        // POIs transmitted on page load
-        poiJSON = GeoJSON.createPOIList(
-                graph.pois.stream().filter(
-                        node -> {
-                            for (String commonClass : commonPOIClasses) {
-                                if (node.type.equals(commonClass)) {
-                                    return true;
-                                }
-                            }
-                            return false;
-                        }).collect(Collectors.toList())
-        );
+        currentSolver.close();  // only holds the default parameters
+        solvers.put("sspe", SmartSPESolver::new);
+        solvers.put("spe", SPESolver::new);
+        solvers.put("ga", GASolver::new);
+        solvers.put("sp", SPSolver::new);
+        solvers.put("portfolio", PortfolioSolver::new);
+
+        poiTiles = new PoiTileCache(graph);
+        AtomicInteger threadCount = new AtomicInteger();
+        queryExecutor = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUERY_QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "query-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
         start();
     }
 
+    private String getPoiJSON() {
+        String json = poiJSON;
+        if (json == null) {
+            // get names of common POI classes. We will load these ad hoc close up, instead of transmitting them on
+            // page load. This is to avoid transmitting too much data
+            Set<String> commonPOIClasses = graph.poiClassesToCount.entrySet().stream().filter(
+                    entry -> entry.getValue() < 100  // TODO hard coded
+            ).map(Map.Entry::getKey).collect(Collectors.toSet());
+
+            json = GeoJSON.createPOIList(graph.pois.stream().filter(
+                    node -> commonPOIClasses.contains(node.type)).collect(Collectors.toList()));
+            poiJSON = json;  // concurrent first loads may serialise twice, but store equal strings
+        }
+        return json;
+    }
+
     /**
      * Boot up the web-server. Will keep the thread alive and handle requests in new threads.
      */
@@ -94,74 +120,432 @@ public class Webserver {
         // setup request handlers
         get("/", "application/json", this::renderMap);
         get("/path", "application/json", this::computePath);
+        post("/jobs", "application/json", this::submitJob);
+        get("/jobs/:id", "application/json", this::getJobStatus);
+        get("/jobs/:id/result", "application/json", this::getJobResult);
+        delete("/jobs/:id", "application/json", this::cancelJob);
         get("/status", "application/json", this::getSolverProgress);
         get("/maxdist", "application/json", this::updateMaxDist);
         post("/pois", "application/json", this::getPoisInWindow);
+        get("/pois/:z/:x/:y", "application/json", this::getPoiTile);
+        get("/snap", "application/json", this::snapToNodes);
+        get("/matrix", "application/json", this::computeDistanceMatrix);
+        post("/matrix", "application/json", this::computeDistanceMatrix);
 
         logger.info("Started web-server: http://[::1]:{}/", PORT);
     }
 
-    private String getPoisInWindow(Request req, Response res) {
+    private String getPoisInWindow(Request req, Response res) throws IOException {
         String body = req.body();
         logger.trace("Requested POIs for {}", body);
         JSONObject data = new JSONObject(body);  // available fields: north, east, south, west, zoom
         double[] area = {(double) data.get("north"), (double) data.get("south"), (double) data.get("west"), (double) data.get("east")};
-        return GeoJSON.createPOIList(graph.getPois(area));
+        return streamJson(res, out -> GeoJSON.writePOIList(graph.getPois(area), out));
     }
 
-    private String updateMaxDist(Request req, Response res) {
-        return String.format("{ \"maxdist\":%f }",
-                (currentSolver.getMaxDistance() / currentSolver.getMaxDistanceFactor())
-                        * Double.parseDouble(req.queryParams("newfactor")));
+    /**
+     * Serve a POI tile, or 304 Not Modified if the client's copy (If-None-Match) is current.
+     */
+    private String getPoiTile(Request req, Response res) {
+        PoiTileCache.Tile tile;
+        try {
+            tile = poiTiles.getTile(Integer.parseInt(req.params("z")), Integer.parseInt(req.params("x")),
+                    Integer.parseInt(req.params("y")));
+        } catch (IllegalArgumentException e) {  // includes NumberFormatException
+            logger.error("Invalid POI tile requested: {}/{}/{}", req.params("z"), req.params("x"), req.params("y"));
+            res.status(400);
+            return "[]";
+        }
+        res.header("ETag", tile.etag);
+        res.header("Cache-Control", "no-cache");  // clients may store tiles, but revalidate them
+        if (tile.matches(req.headers("If-None-Match"))) {
+            res.status(304);
+            return "";
+        }
+        return tile.json;
     }
 
+    /**
+     * Compute the max distance (in meters) of a query: the shortest path distance from source to sink, times the
+     * factor newfactor. Source and sink are given like for /path. The max distance is null, if the sink is not
+     * reachable. Shortest path costs are cached, as clients change the factor more often than source and sink.
+     */
+    private String updateMaxDist(Request req, Response res) throws InterruptedException {
+        Node source;
+        Node target;
+        double factor;
+        try {
+            source = Objects.requireNonNull(getRequestedNode(req, "source"));
+            target = Objects.requireNonNull(getRequestedNode(req, "sink"));
+            factor = Double.parseDouble(req.queryParams("newfactor"));
+        } catch (NumberFormatException | NullPointerException e) {
+            logger.error("Invalid max distance request: '{}'", req.queryString());
+            res.status(400);
+            return "{}";
+        }
+        long key = ((long) source.id << 32) | target.id;
+        Double shortestPathCost;
+        synchronized (shortestPathCosts) {
+            shortestPathCost = shortestPathCosts.get(key);
+        }
+        if (shortestPathCost == null) {
+            try {
+                shortestPathCost = runQuery(() -> {
+                    Dijkstra dijkstra = Dijkstra.lease(graph);
+                    try {
+                        Graph.Path shortestPath = dijkstra.shortestPath(source, target, false);
+                        return shortestPath.isEmpty() ? Double.POSITIVE_INFINITY : shortestPath.getPathCost();
+                    } finally {
+                        dijkstra.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.warn("Too many queries, rejecting max distance request.");
+                res.status(503);
+                return "{}";
+            } catch (ExecutionException e) {
+                logger.error("Max distance request failed", e.getCause());
+                res.status(500);
+                return "{}";
+            }
+            synchronized (shortestPathCosts) {
+                shortestPathCosts.put(key, shortestPathCost);
+            }
+        }
+        if (shortestPathCost == Double.POSITIVE_INFINITY) {
+            return "{ \"maxdist\":null }";
+        }
+        return String.format("{ \"maxdist\":%f }", shortestPathCost * factor);
+    }
+
+    /**
+     * Run a search on the query threads and wait for its result.
+     * @throws RejectedExecutionException if too many queries are waiting
+     * @throws ExecutionException if the search failed
+     */
+    private <T> T runQuery(Callable<T> query) throws InterruptedException, ExecutionException {
+        Future<T> future = queryExecutor.submit(query);
+        try {
+            return future.get();
+        } finally {
+            future.cancel(true);  // stops the search, if the request thread was interrupted while waiting
+        }
+    }
+
+    /**
+     * Get state and progress (in percent) of the job given by the query parameter job, like /jobs/:id.
+     */
     private String getSolverProgress(Request req, Response res) {
-        return String.format("{ \"progress\":%d }", (int) (currentSolver.getStatus() * 100));
+        return writeJobStatus(req.queryParams("job"), res);
+    }
+
+    /**
+     * Solve a path request and wait for the result. The path is returned as GeoJSON LineString, or as encoded polyline
+     * with format=polyline. Solving runs as a job on the solver threads, like submitted jobs. At most
+     * PATH_REQUESTS_WAITING requests wait at a time, further ones get 503; clients should prefer /jobs.
+     */
+    private String computePath(Request req, Response res) throws InterruptedException, IOException {
+        if (!waitingPathRequests.tryAcquire()) {
+            logger.warn("Too many waiting path requests, rejecting path request.");
+            res.status(503);
+            return "{}";
+        }
+        SolvedPath result;
+        try {
+            SolveJobs.Job<SolvedPath> job;
+            try {
+                job = submitSolveJob(req);
+            } catch (RejectedExecutionException e) {
+                logger.warn("Too many solve jobs, rejecting path request.");
+                res.status(503);
+                return "{}";
+            }
+            try {
+                result = job.awaitResult();
+            } catch (InterruptedException e) {
+                job.cancel();  // nobody waits for the result anymore
+                throw e;
+            }
+        } finally {
+            waitingPathRequests.release();
+        }
+        if (result == null) {
+            res.status(500);
+            return "{}";
+        }
+        return streamJson(res, result::write);
+    }
+
+    /**
+     * Submit a solve job with the parameters of /path. Responds with the job ID, or 503 if too many jobs are waiting.
+     */
+    private String submitJob(Request req, Response res) {
+        try {
+            SolveJobs.Job<SolvedPath> job = submitSolveJob(req);
+            res.status(202);
+            return String.format("{ \"job\":\"%s\" }", job.id);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many solve jobs, rejecting job.");
+            res.status(503);
+            return "{}";
+        }
+    }
+
+    /**
+     * Get state and progress (in percent) of a job.
+     */
+    private String getJobStatus(Request req, Response res) {
+        return writeJobStatus(req.params("id"), res);
+    }
+
+    private String writeJobStatus(String id, Response res) {
+        SolveJobs.Job<SolvedPath> job = id == null ? null : solveJobs.getJob(id);
+        if (job == null) {
+            res.status(404);
+            return "{}";
+        }
+        return String.format("{ \"state\":\"%s\", \"progress\":%d }",
+                job.getState().name().toLowerCase(Locale.ENGLISH), (int) (job.getProgress() * 100));
+    }
+
+    /**
+     * Get the path of a finished job, like /path returns it. Unfinished jobs respond with 202 and their status,
+     * failed or cancelled jobs with 410.
+     */
+    private String getJobResult(Request req, Response res) throws IOException {
+        SolveJobs.Job<SolvedPath> job = solveJobs.getJob(req.params("id"));
+        if (job == null) {
+            res.status(404);
+            return "{}";
+        }
+        if (job.getState() == SolveJobs.State.DONE) {
+            return streamJson(res, job.getResult()::write);
+        }
+        res.status(job.getState().isFinished() ? 410 : 202);
+        return getJobStatus(req, res);
     }
 
-    private String computePath(Request req, Response res) {
+    private String cancelJob(Request req, Response res) {
+        SolveJobs.Job<SolvedPath> job = solveJobs.getJob(req.params("id"));
+        if (job == null) {
+            res.status(404);
+            return "{}";
+        }
+        job.cancel();
+        return getJobStatus(req, res);
+    }
+
+    /**
+     * Create a solver for the path request's parameters and submit a job with it.
+     * @throws RejectedExecutionException if too many jobs are waiting
+     */
+    private SolveJobs.Job<SolvedPath> submitSolveJob(Request req) {
         String reqAlgo = req.queryParams("algo");
-        if (solvers.containsKey(reqAlgo)) {
-            currentSolver = solvers.get(reqAlgo);
-            logger.debug("Current solver set to {}", currentSolver);
-        } else {
+        Function<Graph, Solver> solverFactory = solvers.get(reqAlgo);
+        if (solverFactory == null) {
             logger.warn("Ignoring requested solver/algorithm: " + reqAlgo);
+            solverFactory = solvers.get("sspe");
         }
 
-        // TODO check/rework code block
-        String reqSource = req.queryParams("source");
-        String reqTarget = req.queryParams("sink");
+        // fall back to the previous query, if parameters are missing or invalid
+        Solver previousSolver = currentSolver;
+        Node source = previousSolver.getSource();
+        Node target = previousSolver.getTarget();
+        double relativeMaxDistance = previousSolver.getMaxDistanceFactor();
+
+        // source and sink are given as node IDs, or as coordinates that are snapped to the closest road node
         String reqMaxDistance = req.queryParams("max_dist");
-        if (reqSource != null && reqTarget != null && reqMaxDistance != null) {
+        if (isNodeRequested(req, "source") && isNodeRequested(req, "sink") && reqMaxDistance != null) {
             try {
-                int newSourceId = Integer.parseInt(reqSource);
-                int newTargetId = Integer.parseInt(reqTarget);
+                Node newSource = getRequestedNode(req, "source");
+                Node newTarget = getRequestedNode(req, "sink");
                 double newRelativeMaxDistance = Double.parseDouble(reqMaxDistance);
-                Node newSource = graph.getNode(newSourceId);
-                Node newTarget = graph.getNode(newTargetId);
                 if (newSource == null || newTarget == null) {
                     logger.error("Invalid source or sink/target requested!");
                 } else {
-                    currentSolver.update(newSource, newTarget, newRelativeMaxDistance);
+                    source = newSource;
+                    target = newTarget;
+                    relativeMaxDistance = newRelativeMaxDistance;
                 }
             } catch (NumberFormatException e) {
-                logger.error("Failed to convert user input to long:\nsource: '{}'\ntarget: '{}'\nmax distance: '{}'",
-                        reqSource, reqTarget, reqMaxDistance);
-
+                logger.error("Failed to convert user input to numbers: '{}'", req.queryString());
             }
         }
 
-        Graph.Path path = currentSolver.solve();
+        Node jobSource = source;
+        Node jobTarget = target;
+        double jobRelativeMaxDistance = relativeMaxDistance;
+        boolean encoded = "polyline".equals(req.queryParams("format"));
+        Function<Graph, Solver> jobSolverFactory = solverFactory;
+        return solveJobs.submit(() -> jobSolverFactory.apply(graph),
+                solver -> solvePath(solver, jobSource, jobTarget, jobRelativeMaxDistance, encoded));
+    }
+
+    /**
+     * Solve a path query, on a solver thread.
+     * @return the path and its properties, serialised when the result is requested
+     */
+    private SolvedPath solvePath(Solver solver, Node source, Node target, double relativeMaxDistance,
+                                 boolean encoded) {
+        logger.debug("Solving with {}", solver);
+        solver.update(source, target, relativeMaxDistance);
+        currentSolver = solver;
+
+        Graph.Path path = solver.solve();
 
         Set<Node> pathPois = graph.getPoisOnPath(path);
 
         Map<String, String> jsonArgs = new HashMap<>();
         jsonArgs.put("pathPois", GeoJSON.createPOIList(pathPois));
-        jsonArgs.put("score", String.valueOf(currentSolver.uniqueClassScore(path)));
-        jsonArgs.put("uBound", String.valueOf(currentSolver.getUpperBound()));
+        jsonArgs.put("score", String.valueOf(solver.uniqueClassScore(path)));
+        jsonArgs.put("uBound", String.valueOf(solver.getUpperBound()));
         jsonArgs.put("shortestpathdist", String.valueOf(
-                currentSolver.getMaxDistance()/currentSolver.getMaxDistanceFactor()));
-        return GeoJSON.createPath(path, jsonArgs);
+                solver.getMaxDistance()/solver.getMaxDistanceFactor()));
+        return new SolvedPath(path, jsonArgs, encoded);
+    }
+
+    /**
+     * Result of a solve job: the path and the few fields sent along with it. The path is kept unserialised, and
+     * streamed to the client when the result is requested.
+     */
+    private static final class SolvedPath {
+
+        private final Graph.Path path;
+        private final Map<String, String> args;
+        private final boolean encoded;
+
+        private SolvedPath(Graph.Path path, Map<String, String> args, boolean encoded) {
+            this.path = path;
+            this.args = args;
+            this.encoded = encoded;
+        }
+
+        private void write(Appendable out) throws IOException {
+            GeoJSON.writePath(path, args, encoded, out);
+        }
+    }
+
+    /**
+     * Check if a request contains a node, either by ID ("name") or by coordinates ("name_lat" and "name_lon").
+     */
+    private static boolean isNodeRequested(Request req, String name) {
+        return req.queryParams(name) != null ||
+                (req.queryParams(name + "_lat") != null && req.queryParams(name + "_lon") != null);
+    }
+
+    /**
+     * Get a requested node. Coordinates take precedence over an ID, and are snapped to the closest road node.
+     * @return the requested node, null if there is no such node
+     * @throws NumberFormatException if the request contains malformed numbers
+     */
+    private Node getRequestedNode(Request req, String name) {
+        String lat = req.queryParams(name + "_lat");
+        String lon = req.queryParams(name + "_lon");
+        if (lat != null && lon != null) {
+            return graph.getNearestNode(Double.parseDouble(lat), Double.parseDouble(lon));
+        }
+        return graph.getNode(Integer.parseInt(req.queryParams(name)));
+    }
+
+    /**
+     * Snap coordinates to the closest road nodes.
+     * Query parameters: lat, lon and optionally k, the number of nodes (default 1).
+     */
+    private String snapToNodes(Request req, Response res) throws IOException {
+        try {
+            double lat = Double.parseDouble(req.queryParams("lat"));
+            double lon = Double.parseDouble(req.queryParams("lon"));
+            String reqCount = req.queryParams("k");
+            int k = reqCount == null ? 1 : Integer.parseInt(reqCount);
+            List<Node> nodes = graph.getNearestNodes(lat, lon, k);
+            return streamJson(res, out -> GeoJSON.writePOIList(nodes, out));
+        } catch (NumberFormatException | NullPointerException e) {
+            logger.error("Invalid snapping request: '{}'", req.queryString());
+            res.status(400);
+            return "[]";
+        }
+    }
+
+    /**
+     * Compute the distances (in meters) between all pairs of nodes.
+     * Query or form parameter: nodes, a comma separated list of node IDs. Unreachable pairs are null.
+     * The matrix is computed on the query threads.
+     */
+    private String computeDistanceMatrix(Request req, Response res) throws IOException, InterruptedException {
+        String reqNodes = req.queryParams("nodes");
+        if (reqNodes == null) {
+            logger.error("Distance matrix request without nodes.");
+            res.status(400);
+            return "{}";
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (String id : StringUtils.split(reqNodes, ',')) {
+            Node node;
+            try {
+                node = graph.getNode(Integer.parseInt(id.trim()));
+            } catch (NumberFormatException e) {
+                node = null;
+            }
+            if (node == null) {
+                logger.error("Invalid distance matrix request: '{}'", reqNodes);
+                res.status(400);
+                return "{}";
+            }
+            nodes.add(node);
+        }
+        if (nodes.isEmpty() || nodes.size() > MATRIX_MAX_NODES) {
+            logger.error("Distance matrix requests need 1 to {} nodes, got {}.", MATRIX_MAX_NODES, nodes.size());
+            res.status(400);
+            return "{}";
+        }
+
+        DistanceMatrix matrix;
+        try {
+            matrix = runQuery(() -> DistanceMatrix.compute(graph, nodes));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many queries, rejecting distance matrix request.");
+            res.status(503);
+            return "{}";
+        } catch (ExecutionException e) {
+            logger.error("Distance matrix request failed", e.getCause());
+            res.status(500);
+            return "{}";
+        }
+        return streamJson(res, out -> {
+            out.append("{\"nodes\":[");
+            for (int i = 0; i < matrix.size(); i++) {
+                out.append(i == 0 ? "" : ",").append(String.valueOf(nodes.get(i).id));
+            }
+            out.append("],\"distances\":[");
+            for (int from = 0; from < matrix.size(); from++) {
+                out.append(from == 0 ? "[" : ",[");
+                for (int to = 0; to < matrix.size(); to++) {
+                    double distance = matrix.get(from, to);
+                    out.append(to == 0 ? "" : ",")
+                            .append(distance == Double.POSITIVE_INFINITY ? "null" : String.valueOf(distance));
+                }
+                out.append(']');
+            }
+            out.append("]}");
+        });
+    }
+
+    /**
+     * Write a JSON response body directly to the client, instead of returning it as one String.
+     * @param body writes the JSON
+     * @return empty String, to return from the request handler
+     */
+    private static String streamJson(Response res, JsonBody body) throws IOException {
+        res.type("application/json");
+        Writer out = new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8));
+        body.write(out);
+        out.flush();  // the servlet container closes the stream
+        return "";
+    }
+
+    @FunctionalInterface
+    private interface JsonBody {
+        void write(Appendable out) throws IOException;
     }
 
     private String renderMap(Request req, Response res) {
@@ -173,7 +557,7 @@ public class Webserver {
         VelocityContext htmlContext = new VelocityContext();
 
         // populate html template fields
-        htmlContext.put("poiGeoJSON", poiJSON);
+        htmlContext.put("poiGeoJSON", getPoiJSON());
         htmlContext.put("solver", currentSolver);
 
         // render template
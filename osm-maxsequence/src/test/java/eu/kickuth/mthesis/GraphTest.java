@@ -6,11 +6,20 @@ import org.apache.logging.log4j.Logger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Collectors;
 import eu.kickuth.mthesis.graph.Graph.Path;
 
+import static eu.kickuth.mthesis.utils.Settings.DIJKSTRA_MAX_INSTANCES;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class GraphTest {
 
@@ -51,7 +60,7 @@ class GraphTest {
         g.addEdge(new Edge(n5, n4));
         g.addEdge(new Edge(n6, n3));
 
-        dijkstra = Dijkstra.getInstance(g);
+        dijkstra = Dijkstra.lease(g);
     }
 
     @Test
@@ -75,8 +84,8 @@ class GraphTest {
         q.append(p);
         assertEquals(addedCost, q.getPathCost(), EPSILON);
 
-        LinkedList<Node> pNodes = p.getNodes();
-        pNodes.removeFirst();
+        List<Node> pNodes = new LinkedList<>(p.getNodes());
+        pNodes.remove(0);
         qNodesTest.addAll(pNodes);
 
         assertEquals(qNodesTest, q.getNodes());
@@ -103,6 +112,407 @@ class GraphTest {
         logger.trace("Testpath after insert: {}", a);
     }
 
+    @Test
+    void pathSplicingTest() {
+        // prepending builds the same path as appending
+        Path appended = getShortestPath(4, 1).copy().append(getShortestPath(1, 6)).append(getShortestPath(6, 3));
+        Path prepended = getShortestPath(6, 3).copy().prepend(getShortestPath(1, 6)).prepend(getShortestPath(4, 1));
+        assertEquals(appended.getNodes(), prepended.getNodes());
+        for (int i = 0; i < appended.size(); i++) {
+            assertEquals(appended.getCost(i), prepended.getCost(i), EPSILON);
+        }
+
+        // replace 1 -> 6 in 4, 1, 6, 3 by the detour 1 -> 0 -> 1 -> 6
+        Path detour = getShortestPath(1, 0).copy().append(getShortestPath(0, 1)).append(getShortestPath(1, 6));
+        Path expected = getShortestPath(4, 1).copy().append(detour).append(getShortestPath(6, 3));
+        prepended.insert(detour, 1, 2);
+        assertEquals(expected.getNodes(), prepended.getNodes());
+        assertEquals(prepended.size() - 1, prepended.getNodes().indexOf(g.getNode(3)));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getCost(i), prepended.getCost(i), EPSILON);
+        }
+        assertEquals(expected.getPathCost(), prepended.getPathCost(), EPSILON);
+    }
+
+    @Test
+    void corridorDistancesTest() {
+        // corridor without node 5
+        Set<Node> corridor = new HashSet<>(g.nodes);
+        corridor.remove(g.getNode(5));
+        CorridorDistances distances = new CorridorDistances(new Corridor(g, corridor));
+        assertEquals(6, distances.getCorridor().size());
+
+        // 4, 1, 0, 1, 6: node 2 is closest to 0
+        Path path = getShortestPath(4, 1).copy().append(getShortestPath(1, 0)).append(getShortestPath(0, 1))
+                .append(getShortestPath(1, 6));
+        distances.setPath(path);
+        assertCorridorDistances(distances, path);
+        Path toNearest = distances.pathToNearest(Arrays.asList(g.getNode(2), g.getNode(5)));
+        assertEquals(Arrays.asList(g.getNode(0), g.getNode(2)), toNearest.getNodes());
+
+        // remove the loop 1, 0, 1: labels rooted in node 0 are repaired
+        distances.insert(getShortestPath(1, 6), 1, 4);
+        assertEquals(Arrays.asList(g.getNode(4), g.getNode(1), g.getNode(6)), path.getNodes());
+        assertCorridorDistances(distances, path);
+
+        // add the loop 6, 3, 2, 0, 1, 6
+        Path loop = getShortestPath(6, 0).copy().append(getShortestPath(0, 6));
+        distances.insert(loop, 2, 2);
+        assertCorridorDistances(distances, path);
+        assertEquals(0, distances.pathToNearest(Collections.singletonList(g.getNode(2))).getPathCost(), EPSILON);
+
+        // path nodes outside of the corridor are rejected, and the tracked path is left unchanged
+        List<Node> before = new ArrayList<>(path.getNodes());
+        Path outside = getShortestPath(6, 5).copy().append(getShortestPath(5, 6));
+        assertThrows(IllegalArgumentException.class, () -> distances.insert(outside, 2, 2));
+        assertEquals(before, path.getNodes());
+        assertThrows(IllegalArgumentException.class, () -> distances.setPath(getShortestPath(4, 5)));
+    }
+
+    private void assertCorridorDistances(CorridorDistances distances, Path path) {
+        List<Node> pathNodes = new ArrayList<>(path.getNodes());
+        for (Node node : g.nodes) {
+            if (node.id == 5) {
+                assertEquals(Double.POSITIVE_INFINITY, distances.getDistance(node));
+            } else {
+                Path expected = dijkstra.shortestPath(pathNodes, Collections.singletonList(node), false);
+                assertEquals(expected.getPathCost(), distances.getDistance(node), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    void csrEdgesTest() {
+        CSRGraph edges = g.getCSRGraph();
+        assertEquals(7, edges.getNodeCount());
+        assertEquals(12, edges.getEdgeCount());
+
+        // outgoing edges keep insertion order
+        assertEquals(3, edges.outDegree(1));
+        assertEquals(0, edges.outTarget(edges.outBegin(1)));
+        assertEquals(4, edges.outTarget(edges.outBegin(1) + 1));
+        assertEquals(6, edges.outTarget(edges.outBegin(1) + 2));
+
+        // incoming edges of node 5 come from 3 and 4
+        assertEquals(2, edges.inDegree(5));
+        assertEquals(3, edges.inSource(edges.inBegin(5)));
+        assertEquals(4, edges.inSource(edges.inBegin(5) + 1));
+        assertEquals(g.getNode(4).getDistance(g.getNode(5)), edges.inCost(edges.inBegin(5) + 1), EPSILON);
+
+        assertThrows(IllegalStateException.class, () -> g.addNode(new Node(7, 0, 0, null)));
+    }
+
+    @Test
+    void nodeStoreTest() {
+        NodeStore nodeStore = g.getNodeStore();
+        assertEquals(7, nodeStore.size());
+        assertEquals(30.5, nodeStore.getLat(6), EPSILON);
+        assertEquals(30.5, nodeStore.getLon(6), EPSILON);
+
+        // nodes 1 and 6 share the same class
+        assertEquals(nodeStore.getClassId(1), nodeStore.getClassId(6));
+        assertEquals("01", nodeStore.getType(6));
+        assertEquals(6, nodeStore.getClassCount());
+        assertEquals(nodeStore.getClassId(6), nodeStore.getClassId("01"));
+
+        assertEquals(g.getNode(0).getDistance(g.getNode(5)), g.getDistance(0, 5), EPSILON);
+        assertEquals(g.getNode(3), g.nodes.get(3));
+        // created nodes share the dictionary's class name
+        assertSame(g.getNode(1).type, g.getNode(6).type);
+        assertSame(new String("01").intern(), g.getNode(6).type);
+
+        // path coordinates are read from the store
+        Path path = getShortestPath(0, 3);
+        for (int i = 0; i < path.size(); i++) {
+            assertEquals(path.get(i).lat, path.getLat(i));
+            assertEquals(path.get(i).lon, path.getLon(i));
+        }
+    }
+
+    @Test
+    void indexedMinHeapTest() {
+        IndexedMinHeap heap = new IndexedMinHeap(5);
+        heap.insertOrDecrease(0, 5);
+        heap.insertOrDecrease(1, 3);
+        heap.insertOrDecrease(2, 4);
+        heap.insertOrDecrease(3, 1);
+        heap.insertOrDecrease(0, 0.5);  // decrease key
+        heap.insertOrDecrease(3, 7);  // keys are never increased
+        assertEquals(4, heap.size());
+
+        assertEquals(0, heap.poll());
+        assertEquals(3, heap.poll());
+        assertEquals(1, heap.poll());
+        heap.insertOrDecrease(4, 2);
+        assertEquals(4, heap.poll());
+        assertEquals(2, heap.poll());
+        assertEquals(true, heap.isEmpty());
+
+        heap.insertOrDecrease(1, 1);
+        heap.clear();
+        assertEquals(false, heap.contains(1));
+    }
+
+    @Test
+    void dijkstraPoolTest() {
+        Dijkstra other = Dijkstra.lease(g);
+        assertNotSame(dijkstra, other);
+
+        // released instances are reused
+        other.release();
+        Dijkstra reused = Dijkstra.lease(g);
+        assertSame(other, reused);
+
+        reused.release();
+        assertThrows(IllegalStateException.class, reused::release);
+    }
+
+    @Test
+    void dijkstraPoolBoundTest() throws InterruptedException {
+        List<Dijkstra> leased = new ArrayList<>();
+        for (int i = 1; i < DIJKSTRA_MAX_INSTANCES; i++) {
+            leased.add(Dijkstra.lease(g));
+        }
+
+        // all instances are leased: the next lease waits for a release
+        Dijkstra[] waiting = new Dijkstra[1];
+        Thread thread = new Thread(() -> waiting[0] = Dijkstra.lease(g));
+        thread.start();
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        assertTrue(thread.isAlive());
+        leased.get(0).release();
+        thread.join();
+        assertSame(leased.get(0), waiting[0]);
+
+        // interrupted leases give up
+        Thread.currentThread().interrupt();
+        assertThrows(CancellationException.class, () -> Dijkstra.lease(g));
+        assertTrue(Thread.interrupted());
+    }
+
+    @Test
+    void contractionHierarchyTest() {
+        // compare all pairs against plain Dijkstra
+        Path[][] expected = new Path[g.nodes.size()][g.nodes.size()];
+        for (int s = 0; s < g.nodes.size(); s++) {
+            for (int t = 0; t < g.nodes.size(); t++) {
+                expected[s][t] = getPlainShortestPath(s, t).copy();
+            }
+        }
+
+        g.setContractionHierarchy(ContractionHierarchy.build(g));
+        for (int s = 0; s < g.nodes.size(); s++) {
+            for (int t = 0; t < g.nodes.size(); t++) {
+                Path chPath = getShortestPath(s, t);
+                assertEquals(expected[s][t].getPathCost(), chPath.getPathCost(), EPSILON);
+                assertEquals(expected[s][t].getNodes(), chPath.getNodes());
+            }
+        }
+    }
+
+    @Test
+    void distanceMatrixTest() {
+        List<Node> nodes = Arrays.asList(g.getNode(3), g.getNode(0), g.getNode(4), g.getNode(3), g.getNode(6),
+                g.getNode(5));
+        DistanceMatrix plain = DistanceMatrix.compute(g, nodes);
+        assertEquals(nodes, plain.getNodes());
+        for (int from = 0; from < nodes.size(); from++) {
+            for (int to = 0; to < nodes.size(); to++) {
+                double expected = getPlainShortestPath(nodes.get(from).id, nodes.get(to).id).getPathCost();
+                assertEquals(expected, plain.get(from, to), EPSILON);
+            }
+        }
+
+        // bucket-based search on the contraction hierarchy
+        g.setContractionHierarchy(ContractionHierarchy.build(g));
+        DistanceMatrix buckets = DistanceMatrix.compute(g, nodes);
+        for (int from = 0; from < nodes.size(); from++) {
+            for (int to = 0; to < nodes.size(); to++) {
+                assertEquals(plain.get(from, to), buckets.get(from, to), EPSILON);
+            }
+        }
+
+        // corridor without node 5, e.g. 3 -> 4 has to go 3, 2, 0, 1, 4 instead of 3, 5, 4
+        Set<Node> corridorNodes = new HashSet<>(g.nodes);
+        corridorNodes.remove(g.getNode(5));
+        Corridor corridor = new Corridor(g, corridorNodes);
+        DistanceMatrix restricted = DistanceMatrix.compute(corridor, nodes);
+        CorridorDistances corridorDistances = new CorridorDistances(corridor);
+        for (int from = 0; from < nodes.size() - 1; from++) {
+            corridorDistances.setPath(getShortestPath(nodes.get(from).id, nodes.get(from).id).copy());
+            for (int to = 0; to < nodes.size(); to++) {
+                assertEquals(corridorDistances.getDistance(nodes.get(to)), restricted.get(from, to), EPSILON);
+            }
+        }
+        assertEquals(Double.POSITIVE_INFINITY, restricted.get(5, 5));
+        assertEquals(Double.POSITIVE_INFINITY, restricted.get(0, 5));
+        assertTrue(restricted.get(0, 2) > plain.get(0, 2));
+    }
+
+    @Test
+    void candidateRestrictionTest() {
+        // with factor 1, only the nodes of the shortest path 0, 1, 6, 3 are candidates
+        dijkstra.update(g.getNode(0), g.getNode(3), 1);
+        Set<Node> expected = new HashSet<>(Arrays.asList(g.getNode(0), g.getNode(1), g.getNode(6), g.getNode(3)));
+        assertEquals(expected, new HashSet<>(dijkstra.getPathCandidates()));
+        assertTrue(dijkstra.isCandidate(6));
+        assertFalse(dijkstra.getPathCandidates().contains(g.getNode(2)));
+
+        dijkstra.setRestrictToCandidates(true);
+        // paths from 5 pass through 4, which is no candidate
+        List<Node> source = Collections.singletonList(g.getNode(5));
+        assertTrue(dijkstra.shortestPath(source, Collections.singletonList(g.getNode(2)), false).isEmpty());
+        assertTrue(dijkstra.shortestPath(source, g.getNode(2), true).isEmpty());
+        assertTrue(dijkstra.goalDirectedPath(g.getNode(5), g.getNode(2)).isEmpty());
+        assertTrue(dijkstra.bidirectionalPath(g.getNode(5), g.getNode(2)).isEmpty());
+        // sources and targets may lie outside, if the path only passes through candidates
+        assertEquals(6, dijkstra.shortestPath(g.getNode(2), g.getNode(5), false).size());
+        assertEquals(2, dijkstra.goalDirectedPath(g.getNode(1), g.getNode(4)).size());
+        // candidates stay valid after other searches
+        assertEquals(expected, new HashSet<>(dijkstra.getPathCandidates()));
+
+        dijkstra.setRestrictToCandidates(false);
+        assertEquals(5, dijkstra.shortestPath(source, Collections.singletonList(g.getNode(2)), false).size());
+    }
+
+    @Test
+    void candidateRestrictionWithContractionHierarchyTest() {
+        g.setContractionHierarchy(ContractionHierarchy.build(g));
+        // the shortest path from 2 to 5 passes through 6 and 3
+        assertEquals(6, getShortestPath(2, 5).size());
+
+        // with factor 1, only the nodes of the shortest path 0, 1, 4 are candidates
+        dijkstra.update(g.getNode(0), g.getNode(4), 1);
+        dijkstra.setRestrictToCandidates(true);
+        Path restricted = getShortestPath(2, 5);
+        assertEquals(5, restricted.size());
+        List<Node> inner = restricted.getNodes().subList(1, restricted.size() - 1);
+        assertTrue(dijkstra.getPathCandidates().containsAll(inner));
+        assertTrue(getShortestPath(3, 0).isEmpty());
+    }
+
+    @Test
+    void goalDirectedSearchTest() {
+        g.setLandmarks(Landmarks.select(g, 2));
+        for (int s = 0; s < g.nodes.size(); s++) {
+            for (int t = 0; t < g.nodes.size(); t++) {
+                Path expected = getPlainShortestPath(s, t).copy();
+                if (expected.isEmpty()) {
+                    assertEquals(true, getShortestPath(s, t).isEmpty());
+                    continue;
+                }
+                assertEquals(true, g.getLandmarks().lowerBound(s, t) <= expected.getPathCost() + EPSILON);
+                assertEquals(expected.getPathCost(), getShortestPath(s, t).getPathCost(), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    void bidirectionalSearchTest() {
+        for (int s = 0; s < g.nodes.size(); s++) {
+            for (int t = 0; t < g.nodes.size(); t++) {
+                Path expected = getPlainShortestPath(s, t).copy();
+                Path bidirectional = dijkstra.bidirectionalPath(g.getNode(s), g.getNode(t));
+                assertEquals(expected.isEmpty(), bidirectional.isEmpty());
+                if (!expected.isEmpty()) {
+                    assertEquals(expected.getPathCost(), bidirectional.getPathCost(), EPSILON);
+                    assertEquals(expected.getNodes(), bidirectional.getNodes());
+                }
+            }
+        }
+    }
+
+    @Test
+    void snapshotTest() throws IOException {
+        File snapshot = File.createTempFile("graph", ".graph");
+        snapshot.deleteOnExit();
+        GraphSnapshot.write(g, snapshot);
+        Graph loaded = GraphSnapshot.read(snapshot);
+
+        assertEquals(g.nodes, loaded.nodes);
+        assertEquals(g.pois, loaded.pois);
+        assertEquals(g.poiClassesToCount, loaded.poiClassesToCount);
+        CSRGraph edges = g.getCSRGraph();
+        CSRGraph loadedEdges = loaded.getCSRGraph();
+        assertEquals(edges.getEdgeCount(), loadedEdges.getEdgeCount());
+        for (int v = 0; v < edges.getNodeCount(); v++) {
+            assertEquals(edges.outDegree(v), loadedEdges.outDegree(v));
+            for (int e = edges.outBegin(v); e < edges.outEnd(v); e++) {
+                assertEquals(edges.outTarget(e), loadedEdges.outTarget(e));
+                assertEquals(edges.outCost(e), loadedEdges.outCost(e));
+            }
+            assertEquals(edges.inDegree(v), loadedEdges.inDegree(v));
+        }
+
+        // memory mapped graphs answer the same queries off-heap
+        Graph mapped = GraphSnapshot.read(snapshot, true);
+        assertEquals(true, mapped.getNodeStore().isOffHeap() && mapped.getCSRGraph().isOffHeap());
+        assertEquals(g.nodes, mapped.nodes);
+        Dijkstra mappedDijkstra = Dijkstra.lease(mapped);
+        assertEquals(getShortestPath(3, 6).getPathCost(),
+                mappedDijkstra.shortestPath(mapped.getNode(3), mapped.getNode(6), false).getPathCost(), EPSILON);
+        mappedDijkstra.release();
+    }
+
+    @Test
+    void poiIndexTest() {
+        // enough POIs for several index levels, clustered around two cities
+        Graph pois = new Graph(new double[]{56, 47, 5, 16}, 3000);
+        Random random = new Random(0);
+        for (int id = 0; id < 3000; id++) {
+            double cityLon = id % 3 == 1 ? 13.4 : 9.9;
+            double lat = id % 3 == 0 ? 47 + 9 * random.nextDouble() : 52.5 + random.nextGaussian() * 0.05;
+            double lon = id % 3 == 0 ? 5 + 11 * random.nextDouble() : cityLon + random.nextGaussian() * 0.05;
+            pois.addNode(new Node(id, lat, lon, id % 2 == 0 ? null : "C" + id % 7));
+        }
+
+        double[] area = {53, 52, 9.5, 13.5};
+        assertEquals(pois.pois.stream().filter(poi -> poi.lat <= area[0] && poi.lat >= area[1] &&
+                poi.lon >= area[2] && poi.lon <= area[3]).collect(Collectors.toSet()),
+                new HashSet<>(pois.getPois(area)));
+
+        Node location = new Node(-1, 52.4, 13.2, null);
+        List<Node> byDistance = new ArrayList<>(pois.pois);
+        byDistance.sort(Comparator.comparingDouble(location::getDistance));
+        assertEquals(byDistance.subList(0, 25), pois.getNearestPois(location.lat, location.lon, 25));
+        assertEquals(pois.pois.size(), pois.getNearestPois(location.lat, location.lon, 10_000).size());
+
+        assertEquals(byDistance.stream().filter(poi -> location.getDistance(poi) <= 50_000).collect(Collectors.toSet()),
+                new HashSet<>(pois.getPoisWithin(location.lat, location.lon, 50_000)));
+    }
+
+    @Test
+    void nodeIndexTest() {
+        Graph roads = new Graph(new double[]{56, 47, 5, 16}, 2000);
+        Random random = new Random(0);
+        roads.addNode(new Node(0, 52.5, 13.4, null));  // without edges, never snapped to
+        for (int id = 1; id < 2000; id++) {
+            roads.addNode(new Node(id, 47 + 9 * random.nextDouble(), 5 + 11 * random.nextDouble(), null));
+        }
+        for (int id = 2; id < 2000; id++) {
+            roads.addEdge(new Edge(roads.getNode(id - 1), roads.getNode(id)));
+        }
+
+        List<Node> routable = new ArrayList<>(roads.nodes.subList(1, 2000));
+        for (int i = 0; i < 50; i++) {
+            Node location = i == 0 ? roads.getNode(0) :
+                    new Node(-1, 46 + 11 * random.nextDouble(), 4 + 13 * random.nextDouble(), null);
+            routable.sort(Comparator.comparingDouble(location::getDistance));
+            assertEquals(routable.get(0), roads.getNearestNode(location.lat, location.lon));
+            assertEquals(routable.subList(0, 10), roads.getNearestNodes(location.lat, location.lon, 10));
+        }
+        assertEquals(1999, roads.getNearestNodes(50, 10, 5000).size());
+    }
+
+    /**
+     * Shortest path by uninformed Dijkstra (the multi-target variant is never goal-directed).
+     */
+    Path getPlainShortestPath(int sourceId, int targetId) {
+        return dijkstra.shortestPath(g.getNode(sourceId), Collections.singletonList(g.getNode(targetId)), false);
+    }
+
     Path getShortestPath(int sourceId, int targetId) {
         return dijkstra.shortestPath(g.getNode(sourceId), g.getNode(targetId), false);
     }
@@ -1,10 +1,13 @@
 package eu.kickuth.mthesis;
 
 import crosby.binary.osmosis.OsmosisReader;
+import eu.kickuth.mthesis.graph.Edge;
 import eu.kickuth.mthesis.graph.Graph;
 import eu.kickuth.mthesis.graph.Node;
 import eu.kickuth.mthesis.solvers.GASolver;
+import eu.kickuth.mthesis.solvers.PortfolioSolver;
 import eu.kickuth.mthesis.solvers.SPESolver;
+import eu.kickuth.mthesis.solvers.SPSolver;
 import eu.kickuth.mthesis.solvers.SmartSPESolver;
 import eu.kickuth.mthesis.solvers.Solver;
 import eu.kickuth.mthesis.utils.OSMReader;
@@ -16,6 +19,10 @@ import org.junit.jupiter.api.Test;
 import java.io.*;
 import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 class SolverTest {
 
 
@@ -81,6 +88,94 @@ class SolverTest {
     }
 
 
+    @Test
+    void portfolio() {
+        Graph g = createGridGraph(30);
+        Node source = g.getNode(0);
+        Node target = g.getNode(g.nodes.size() - 1);
+        try (Solver portfolio = new PortfolioSolver(g);
+             Solver spe = new SPESolver(g);
+             Solver smartSpe = new SmartSPESolver(g)) {
+            portfolio.update(source, target, 1.3);
+            Graph.Path path = portfolio.solve();
+            assertFeasible(portfolio, path);
+
+            // the portfolio runs these solvers as members, so it is at least as good as each of them
+            int score = portfolio.uniqueClassScore(path);
+            for (Solver solver : new Solver[] {spe, smartSpe}) {
+                solver.update(source, target, 1.3);
+                assertTrue(score >= solver.uniqueClassScore(solver.solve()));
+            }
+        }
+    }
+
+
+    @Test
+    void portfolioTimeBudget() {
+        Graph g = createGridGraph(30);
+        Node source = g.getNode(0);
+        Node target = g.getNode(g.nodes.size() - 1);
+        // without time for the members, the portfolio still returns a feasible path: at least the shortest path
+        try (Solver portfolio = new PortfolioSolver(g, 0);
+             Solver shortestPath = new SPSolver(g)) {
+            portfolio.update(source, target, 1.3);
+            Graph.Path path = portfolio.solve();
+            assertFeasible(portfolio, path);
+
+            shortestPath.update(source, target, 1.3);
+            assertTrue(portfolio.uniqueClassScore(path) >= shortestPath.uniqueClassScore(shortestPath.solve()));
+        }
+    }
+
+
+    /**
+     * Check that a path leads from the solver's source to its target, within the max distance.
+     */
+    private static void assertFeasible(Solver solver, Graph.Path path) {
+        assertFalse(path.isEmpty());
+        assertEquals(solver.getSource().id, path.getNodeId(0));
+        assertEquals(solver.getTarget().id, path.getNodeId(path.size() - 1));
+        assertTrue(path.getPathCost() <= solver.getMaxDistance());
+    }
+
+
+    /**
+     * Create a grid of roads with random POIs. Some roads are one way, some are bendy (longer than the b-line).
+     * @param size nodes per grid side
+     * @return the graph
+     */
+    private static Graph createGridGraph(int size) {
+        Random random = new Random(0);
+        Graph g = new Graph(new double[]{52, 50, 8, 10});
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                String type = random.nextDouble() < 0.1 ? "FC " + random.nextInt(20) : null;
+                g.addNode(new Node(i * size + j, 50 + 0.1 * i + random.nextDouble() * 0.01,
+                        8 + 0.1 * j + random.nextDouble() * 0.01, type));
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                Node node = g.getNode(i * size + j);
+                if (j + 1 < size) {
+                    Node east = g.getNode(i * size + j + 1);
+                    g.addEdge(new Edge(node, east));
+                    if (random.nextDouble() < 0.9) {
+                        g.addEdge(new Edge(east, node));
+                    }
+                }
+                if (i + 1 < size) {
+                    Node north = g.getNode((i + 1) * size + j);
+                    double cost = node.getDistance(north) * (1 + random.nextDouble());
+                    g.addEdge(new Edge(node, north, cost));
+                    g.addEdge(new Edge(north, node, cost));
+                }
+            }
+        }
+        return g;
+    }
+
+
     private Graph loadGraph(String importFile) {
         logger.info("Loading graph from file: {}", importFile);
         OSMReader graphReader = new OSMReader();
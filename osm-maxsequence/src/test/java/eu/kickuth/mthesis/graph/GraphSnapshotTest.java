@@ -0,0 +1,87 @@
+package eu.kickuth.mthesis.graph;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class GraphSnapshotTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void chunkedTest() throws IOException {
+        Graph graph = createRandomGraph(1000, 3000);
+        File snapshot = new File(dir, "test.graph");
+        GraphSnapshot.write(graph, snapshot);
+
+        // arrays span many chunks of 16 values, the last one partial
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            Graph loaded = GraphSnapshot.read(snapshot, memoryMapped, 4);
+            assertSameGraph(graph, loaded);
+            assertEquals(memoryMapped, loaded.getCSRGraph().isOffHeap());
+            assertEquals(memoryMapped, loaded.getNodeStore().isOffHeap());
+        }
+    }
+
+    @Test
+    void emptyTest() throws IOException {
+        // graphs without edges have empty arrays
+        Graph graph = createRandomGraph(10, 0);
+        File snapshot = new File(dir, "empty.graph");
+        GraphSnapshot.write(graph, snapshot);
+        Graph loaded = GraphSnapshot.read(snapshot, true, 4);
+        assertSameGraph(graph, loaded);
+        assertEquals(0, loaded.getCSRGraph().getEdgeCount());
+        assertFalse(loaded.nodes.isEmpty());
+    }
+
+
+    private static Graph createRandomGraph(int nodeCount, int edgeCount) {
+        Random random = new Random(0);
+        Graph graph = new Graph(new double[] {52, 50, 8, 10});
+        for (int i = 0; i < nodeCount; i++) {
+            graph.addNode(new Node(i, 50 + 2 * random.nextDouble(), 8 + 2 * random.nextDouble(),
+                    random.nextInt(10) == 0 ? "FC " + random.nextInt(20) : null));
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            graph.addEdge(new Edge(graph.getNode(random.nextInt(nodeCount)), graph.getNode(random.nextInt(nodeCount))));
+        }
+        graph.freeze();
+        return graph;
+    }
+
+    private static void assertSameGraph(Graph expected, Graph actual) {
+        NodeStore expectedNodes = expected.getNodeStore();
+        NodeStore actualNodes = actual.getNodeStore();
+        assertEquals(expectedNodes.size(), actualNodes.size());
+        for (int id = 0; id < expectedNodes.size(); id++) {
+            assertEquals(expectedNodes.getLat(id), actualNodes.getLat(id));
+            assertEquals(expectedNodes.getLon(id), actualNodes.getLon(id));
+            assertEquals(expectedNodes.getType(id), actualNodes.getType(id));
+        }
+        assertEquals(expected.pois, actual.pois);
+
+        CSRGraph expectedEdges = expected.getCSRGraph();
+        CSRGraph actualEdges = actual.getCSRGraph();
+        assertEquals(expectedEdges.getEdgeCount(), actualEdges.getEdgeCount());
+        for (int v = 0; v < expectedEdges.getNodeCount(); v++) {
+            assertEquals(expectedEdges.outBegin(v), actualEdges.outBegin(v));
+            assertEquals(expectedEdges.outEnd(v), actualEdges.outEnd(v));
+            assertEquals(expectedEdges.inBegin(v), actualEdges.inBegin(v));
+            assertEquals(expectedEdges.inEnd(v), actualEdges.inEnd(v));
+        }
+        for (int e = 0; e < expectedEdges.getEdgeCount(); e++) {
+            assertEquals(expectedEdges.outTarget(e), actualEdges.outTarget(e));
+            assertEquals(expectedEdges.outCost(e), actualEdges.outCost(e));
+            assertEquals(expectedEdges.inSource(e), actualEdges.inSource(e));
+            assertEquals(expectedEdges.inCost(e), actualEdges.inCost(e));
+        }
+    }
+}
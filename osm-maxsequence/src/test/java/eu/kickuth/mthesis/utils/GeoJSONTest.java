@@ -0,0 +1,65 @@
+package eu.kickuth.mthesis.utils;
+
+import eu.kickuth.mthesis.graph.Dijkstra;
+import eu.kickuth.mthesis.graph.Edge;
+import eu.kickuth.mthesis.graph.Graph;
+import eu.kickuth.mthesis.graph.Node;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class GeoJSONTest {
+
+    // reference vector of the Google polyline algorithm documentation
+    private static final String REFERENCE_POLYLINE = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+
+    private final Graph g = new Graph(new double[]{45, 35, -130, -115});
+    private Graph.Path path;
+
+    @BeforeEach
+    void setUp() {
+        Node n0 = new Node(0, 38.5, -120.2, null);
+        Node n1 = new Node(1, 40.7, -120.95, "FC 1");
+        Node n2 = new Node(2, 43.252, -126.453, null);
+        g.addNode(n0);
+        g.addNode(n1);
+        g.addNode(n2);
+        g.addEdge(new Edge(n0, n1));
+        g.addEdge(new Edge(n1, n2));
+
+        Dijkstra dijkstra = Dijkstra.lease(g);
+        path = dijkstra.shortestPath(n0, Collections.singletonList(n2), false).copy();
+        dijkstra.release();
+    }
+
+    @Test
+    void polylineTest() {
+        assertEquals(REFERENCE_POLYLINE, GeoJSON.encodePolyline(path));
+        assertEquals("", GeoJSON.encodePolyline(g.new Path()));
+    }
+
+    @Test
+    void escapeTest() {
+        String name = "quote \" backslash \\ newline \n return \r tab \t bell \u0007 end";
+        assertEquals("[{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[-120.0,40.0]}," +
+                "\"properties\":{\"name\":\"quote \\\" backslash \\\\ newline \\n return \\r tab \\t bell " +
+                "\\u0007 end\",\"id\":7}}]",
+                GeoJSON.createPOIList(Collections.singletonList(new Node(7, 40, -120, name))));
+    }
+
+    @Test
+    void pathTest() {
+        Map<String, String> args = Collections.singletonMap("score", "\"1\"");
+        String length = String.valueOf(Math.floor(path.getPathCost()) / 1000);
+
+        // GeoJSON coordinates are lon, lat
+        assertEquals("{\"type\":\"LineString\",\"coordinates\":[[-120.2,38.5],[-120.95,40.7],[-126.453,43.252]]," +
+                "\"length\":" + length + ",\"score\":\"\\\"1\\\"\"}", GeoJSON.createPath(path, args, false));
+        assertEquals("{\"polyline\":\"" + REFERENCE_POLYLINE + "\",\"length\":" + length + ",\"score\":\"\\\"1\\\"\"}",
+                GeoJSON.createPath(path, args, true));
+    }
+}
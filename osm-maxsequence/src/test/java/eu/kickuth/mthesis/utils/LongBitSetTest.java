@@ -0,0 +1,69 @@
+package eu.kickuth.mthesis.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongBitSetTest {
+
+    @Test
+    void addContainsTest() {
+        LongBitSet set = new LongBitSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertTrue(set.add(63));
+        assertTrue(set.add(64));
+        assertTrue(set.add(65_535));  // last id of the first page
+        assertTrue(set.add(65_536));
+        assertFalse(set.add(64));
+        assertEquals(5, set.size());
+
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(63));
+        assertTrue(set.contains(64));
+        assertTrue(set.contains(65_535));
+        assertTrue(set.contains(65_536));
+        assertFalse(set.contains(1));
+        assertFalse(set.contains(65_537));
+        assertFalse(set.contains(1L << 40));  // beyond all pages
+    }
+
+    @Test
+    void sparseIdsTest() {
+        // scattered id ranges, like in OSM extracts
+        LongBitSet set = new LongBitSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 10_000; i++) {
+            long id = random.nextInt(8) * 1_000_000_000L + random.nextInt(100_000);
+            assertEquals(expected.add(id), set.add(id));
+        }
+        assertEquals(expected.size(), set.size());
+        for (long id : expected) {
+            assertTrue(set.contains(id));
+            assertEquals(expected.contains(id + 1), set.contains(id + 1));
+        }
+    }
+
+    @Test
+    void idRangeTest() {
+        LongBitSet set = new LongBitSet();
+        long largeId = (1L << 36) + 5;  // far beyond the first pages
+        assertTrue(set.add(largeId));
+        assertTrue(set.contains(largeId));
+        assertFalse(set.contains(largeId - 1));
+
+        assertFalse(set.contains(-1));
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> set.add(-1));
+        assertThrows(IllegalArgumentException.class, () -> set.add(Long.MAX_VALUE));
+        assertEquals(1, set.size());
+    }
+}
@@ -0,0 +1,94 @@
+package eu.kickuth.mthesis.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongIntHashMapTest {
+
+    @Test
+    void putGetTest() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        map.put(42, 1);
+        map.put(-42, 2);
+        map.put(Long.MAX_VALUE, 3);
+        map.put(Long.MIN_VALUE + 1, 4);
+        map.put(0, 5);
+
+        assertEquals(1, map.get(42, -1));
+        assertEquals(2, map.get(-42, -1));
+        assertEquals(3, map.get(Long.MAX_VALUE, -1));
+        assertEquals(4, map.get(Long.MIN_VALUE + 1, -1));
+        assertEquals(5, map.get(0, -1));
+        assertEquals(5, map.size());
+
+        // replacing a value does not add a key
+        map.put(42, 6);
+        assertEquals(6, map.get(42, -1));
+        assertEquals(5, map.size());
+    }
+
+    @Test
+    void missingKeyTest() {
+        LongIntHashMap map = new LongIntHashMap(0);
+        assertEquals(-1, map.get(7, -1));
+        assertFalse(map.containsKey(7));
+        assertEquals(0, map.size());
+
+        map.put(7, 0);
+        assertTrue(map.containsKey(7));
+        assertEquals(0, map.get(7, -1));
+        assertEquals(-1, map.get(8, -1));
+        assertFalse(map.containsKey(Long.MIN_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> map.put(Long.MIN_VALUE, 1));
+    }
+
+    @Test
+    void growthTest() {
+        // far more keys than reserved: collisions while probing, and several rehashes
+        LongIntHashMap map = new LongIntHashMap(0);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100_000; i++) {
+            long key;
+            switch (i % 4) {
+                case 0:
+                    key = i;  // dense ids
+                    break;
+                case 1:
+                    key = (long) i << 32;  // equal lower bits
+                    break;
+                case 2:
+                    key = -i;
+                    break;
+                default:
+                    key = random.nextLong();
+            }
+            if (key == Long.MIN_VALUE) {
+                continue;
+            }
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals((int) value, map.get(key, -1)));
+        for (int i = 0; i < 1000; i++) {
+            long key = random.nextLong();
+            assertEquals((int) expected.getOrDefault(key, -1), map.get(key, -1));
+        }
+    }
+
+    @Test
+    void capacityLimitTest() {
+        assertThrows(IllegalArgumentException.class, () -> new LongIntHashMap(700_000_000));
+        assertThrows(IllegalArgumentException.class, () -> new LongIntHashMap(Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> new LongIntHashMap(-1));
+    }
+}
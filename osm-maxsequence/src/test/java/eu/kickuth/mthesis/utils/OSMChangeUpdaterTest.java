@@ -0,0 +1,291 @@
+package eu.kickuth.mthesis.utils;
+
+import eu.kickuth.mthesis.graph.CSRGraph;
+import eu.kickuth.mthesis.graph.Graph;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.osmosis.core.container.v0_6.*;
+import org.openstreetmap.osmosis.core.domain.v0_6.*;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static eu.kickuth.mthesis.utils.OSMPreprocessorTest.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OSMChangeUpdaterTest {
+
+    private static final long TRACK = 5000;  // way ID of a track, which the changes turn into a road
+    private static final long MISSING_NODE = 7;  // referenced by the track, but not part of the extract
+
+    @TempDir
+    File dir;
+
+    @Test
+    void updateTest() throws IOException {
+        List<EntityContainer> extract = createExtractWithTrack();
+        File dump = new File(dir, "test.osm.pbf");
+        writeDump(dump, extract);
+        File roads = new File(dir, "test.roads");
+        Graph graph = readGraph(preprocess(dump, roads));
+
+        List<ChangeContainer> changes = createChanges();
+        File changeFile = new File(dir, "test.osc");
+        writeChangeFile(changeFile, changes);
+        RoadIndex roadIndex = RoadIndex.read(roads);
+        OSMChangeUpdater updater = new OSMChangeUpdater(roadIndex, graph, false);
+        XmlChangeReader reader = new XmlChangeReader(changeFile, false, CompressionMethod.None);
+        reader.setChangeSink(updater);
+        reader.run();
+        Graph updatedGraph = updater.getUpdatedGraph();
+
+        // the update yields the same roads as preprocessing the changed extract from scratch
+        File changedDump = new File(dir, "changed.osm.pbf");
+        writeDump(changedDump, applyChanges(extract, changes));
+        Graph expectedGraph = readGraph(preprocess(changedDump, new File(dir, "changed.roads")));
+        assertEquivalentGraphs(expectedGraph, updatedGraph);
+
+        // the index stays consistent with the updated graph
+        roadIndex.write(roads);
+        assertTrue(RoadIndex.read(roads).matches(updatedGraph));
+    }
+
+    @Test
+    void unknownNodeTest() throws IOException {
+        File dump = new File(dir, "test.osm.pbf");
+        writeDump(dump, createExtractWithTrack());
+        File roads = new File(dir, "test.roads");
+        Graph graph = readGraph(preprocess(dump, roads));
+
+        // a road through a node that is neither on a highway nor in the changes, e.g. a retagged building outline
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new Tag("highway", "residential"));
+        List<WayNode> wayNodes = new ArrayList<>();
+        wayNodes.add(new WayNode(roadNodeId(0, 1)));
+        wayNodes.add(new WayNode(offRoadNodeId(5)));
+        wayNodes.add(new WayNode(roadNodeId(1, 1)));
+        OSMChangeUpdater updater = new OSMChangeUpdater(RoadIndex.read(roads), graph, false);
+        updater.initialize(Collections.emptyMap());
+        updater.process(new ChangeContainer(new WayContainer(createWay(9000, tags, wayNodes)), ChangeAction.Modify));
+        assertThrows(IllegalStateException.class, updater::complete);
+    }
+
+
+    private File preprocess(File dump, File roadIndexFile) throws IOException {
+        File output = File.createTempFile("processed-", ".osm.pbf", dir);
+        read(dump, new OSMPreprocessor(dump, null, new OSMRoadSimplification(output), roadIndexFile, false));
+        return output;
+    }
+
+    /**
+     * The test extract, with a track over nodes off the road network. City limit signs are dropped: preprocessing
+     * samples classes for them in node order, so the changed extract would get different ones.
+     */
+    private static List<EntityContainer> createExtractWithTrack() {
+        List<EntityContainer> extract = createExtract();
+        for (EntityContainer container : extract) {
+            if (container instanceof NodeContainer) {
+                Collection<Tag> tags = container.getEntity().getTags();
+                tags.removeIf(tag -> tag.getValue().equals("city_limit"));
+                if (container.getEntity().getId() == offRoadNodeId(3)) {
+                    tags.add(new Tag("traffic_sign", "DE:206"));
+                }
+            }
+        }
+        extract.add(new WayContainer(createWay(TRACK, createTags("highway", "track"), createTrackNodes())));
+        return extract;
+    }
+
+    private static List<WayNode> createTrackNodes() {
+        List<WayNode> wayNodes = new ArrayList<>();
+        wayNodes.add(new WayNode(roadNodeId(50, 3)));
+        wayNodes.add(new WayNode(offRoadNodeId(2)));
+        wayNodes.add(new WayNode(MISSING_NODE));
+        wayNodes.add(new WayNode(offRoadNodeId(3)));
+        wayNodes.add(new WayNode(offRoadNodeId(4)));
+        wayNodes.add(new WayNode(roadNodeId(52, 3)));
+        return wayNodes;
+    }
+
+    /**
+     * Changes of all kinds: moved nodes, a changed sign, a new road through new nodes, a deleted road, a retagged
+     * track, and a changed road through a node missing from the extract.
+     */
+    private static List<ChangeContainer> createChanges() {
+        List<ChangeContainer> changes = new ArrayList<>();
+        // move a sign and change its type
+        Node sign = createNode(roadNodeId(20, 21), 50.2041, 8.2113);
+        sign.getTags().add(new Tag("traffic_sign", "DE:205"));
+        changes.add(new ChangeContainer(new NodeContainer(sign), ChangeAction.Modify));
+        // move a junction
+        changes.add(new ChangeContainer(new NodeContainer(createNode(roadNodeId(30, 30), 50.3052, 8.3037)),
+                ChangeAction.Modify));
+        // move a node of the track
+        changes.add(new ChangeContainer(new NodeContainer(createNode(offRoadNodeId(2), 50.5055, 8.0412)),
+                ChangeAction.Modify));
+        // a new road through new nodes
+        Node first = createNode(50_000_000_000L, 50.4101, 8.4155);
+        Node second = createNode(50_000_000_003L, 50.4153, 8.4171);
+        second.getTags().add(new Tag("traffic_sign", "DE:274"));
+        changes.add(new ChangeContainer(new NodeContainer(first), ChangeAction.Create));
+        changes.add(new ChangeContainer(new NodeContainer(second), ChangeAction.Create));
+        List<WayNode> wayNodes = new ArrayList<>();
+        wayNodes.add(new WayNode(roadNodeId(40, 41)));
+        wayNodes.add(new WayNode(first.getId()));
+        wayNodes.add(new WayNode(second.getId()));
+        wayNodes.add(new WayNode(roadNodeId(42, 41)));
+        changes.add(new ChangeContainer(new WayContainer(createWay(9000, createTags("highway", "residential"),
+                wayNodes)), ChangeAction.Create));
+        // delete a row
+        changes.add(new ChangeContainer(new WayContainer(createWay(13, createTags("highway", "residential"),
+                new ArrayList<>())), ChangeAction.Delete));
+        // turn the track into a road
+        changes.add(new ChangeContainer(new WayContainer(createWay(TRACK, createTags("highway", "unclassified"),
+                createTrackNodes())), ChangeAction.Modify));
+        // a roundabout becomes a two way road, one of its nodes is cut off at the extract border
+        wayNodes = new ArrayList<>();
+        for (int i = 0; i < GRID_SIZE; i++) {
+            wayNodes.add(new WayNode(roadNodeId(i, 10)));
+        }
+        wayNodes.add(new WayNode(1));
+        changes.add(new ChangeContainer(new WayContainer(createWay(GRID_SIZE + 6, createTags("highway", "primary"),
+                wayNodes)), ChangeAction.Modify));
+        // delete a node off the road network
+        changes.add(new ChangeContainer(new NodeContainer(createNode(offRoadNodeId(300), 50.1, 8.1)),
+                ChangeAction.Delete));
+        return changes;
+    }
+
+    private static List<Tag> createTags(String key, String value) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new Tag(key, value));
+        return tags;
+    }
+
+    /**
+     * Apply changes to an extract, like a new extract would contain them.
+     * @return the changed extract, in the order of a PBF file
+     */
+    private static List<EntityContainer> applyChanges(List<EntityContainer> extract, List<ChangeContainer> changes) {
+        List<EntityContainer> bounds = new ArrayList<>();
+        SortedMap<Long, EntityContainer> nodes = new TreeMap<>();
+        SortedMap<Long, EntityContainer> ways = new TreeMap<>();
+        for (EntityContainer container : extract) {
+            if (container instanceof NodeContainer) {
+                nodes.put(container.getEntity().getId(), container);
+            } else if (container instanceof WayContainer) {
+                ways.put(container.getEntity().getId(), container);
+            } else {
+                bounds.add(container);
+            }
+        }
+        for (ChangeContainer change : changes) {
+            EntityContainer container = change.getEntityContainer();
+            Map<Long, EntityContainer> entities = container instanceof NodeContainer ? nodes : ways;
+            if (change.getAction() == ChangeAction.Delete) {
+                entities.remove(container.getEntity().getId());
+            } else {
+                entities.put(container.getEntity().getId(), container);
+            }
+        }
+        List<EntityContainer> changed = new ArrayList<>(bounds);
+        changed.addAll(nodes.values());
+        changed.addAll(ways.values());
+        return changed;
+    }
+
+    /**
+     * Write changes as OSM change file (.osc).
+     */
+    private static void writeChangeFile(File file, List<ChangeContainer> changes) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8))) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osmChange version=\"0.6\" generator=\"test\">");
+            for (ChangeContainer change : changes) {
+                String action = change.getAction().name().toLowerCase(Locale.ENGLISH);
+                Entity entity = change.getEntityContainer().getEntity();
+                out.println("  <" + action + ">");
+                String attributes = "id=\"" + entity.getId() + "\" version=\"2\" " +
+                        "timestamp=\"2020-01-01T00:00:00Z\" uid=\"1\" user=\"test\" changeset=\"1\"";
+                if (entity instanceof Node) {
+                    Node node = (Node) entity;
+                    out.println("    <node " + attributes + " lat=\"" + node.getLatitude() + "\" lon=\"" +
+                            node.getLongitude() + "\">");
+                } else {
+                    out.println("    <way " + attributes + ">");
+                    for (WayNode wayNode : ((Way) entity).getWayNodes()) {
+                        out.println("      <nd ref=\"" + wayNode.getNodeId() + "\"/>");
+                    }
+                }
+                for (Tag tag : entity.getTags()) {
+                    out.println("      <tag k=\"" + tag.getKey() + "\" v=\"" + tag.getValue() + "\"/>");
+                }
+                out.println(entity instanceof Node ? "    </node>" : "    </way>");
+                out.println("  </" + action + ">");
+            }
+            out.println("</osmChange>");
+        }
+    }
+
+    /**
+     * Check that two graphs have the same edges and POIs, regardless of node IDs. Nodes without edges are ignored,
+     * since updates keep graph nodes that are no longer on a road.
+     */
+    private static void assertEquivalentGraphs(Graph expected, Graph actual) {
+        assertEquals(getConnectedPois(expected), getConnectedPois(actual));
+        List<double[]> expectedEdges = getEdges(expected);
+        List<double[]> actualEdges = getEdges(actual);
+        assertEquals(expectedEdges.size(), actualEdges.size());
+        for (int i = 0; i < expectedEdges.size(); i++) {
+            assertArrayEquals(expectedEdges.get(i), actualEdges.get(i), 1e-6);
+        }
+    }
+
+    /**
+     * @return coordinates and class of all POIs with edges, sorted
+     */
+    private static List<String> getConnectedPois(Graph graph) {
+        CSRGraph edges = graph.getCSRGraph();
+        List<String> pois = new ArrayList<>();
+        for (eu.kickuth.mthesis.graph.Node node : graph.nodes) {
+            if (node.type != null && edges.outDegree(node.id) + edges.inDegree(node.id) > 0) {
+                pois.add(node.lat + " " + node.lon + " " + node.type);
+            }
+        }
+        Collections.sort(pois);
+        return pois;
+    }
+
+    /**
+     * @return coordinates of source and target, and the cost of each edge, sorted
+     */
+    private static List<double[]> getEdges(Graph graph) {
+        CSRGraph edges = graph.getCSRGraph();
+        List<double[]> edgeList = new ArrayList<>();
+        for (int v = 0; v < edges.getNodeCount(); v++) {
+            eu.kickuth.mthesis.graph.Node source = graph.getNode(v);
+            for (int e = edges.outBegin(v); e < edges.outEnd(v); e++) {
+                eu.kickuth.mthesis.graph.Node target = graph.getNode(edges.outTarget(e));
+                edgeList.add(new double[] {source.lat, source.lon, target.lat, target.lon, edges.outCost(e)});
+            }
+        }
+        edgeList.sort((a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                int comparison = Double.compare(a[i], b[i]);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return 0;
+        });
+        return edgeList;
+    }
+}
@@ -0,0 +1,236 @@
+package eu.kickuth.mthesis.utils;
+
+import crosby.binary.osmosis.OsmosisSerializer;
+import eu.kickuth.mthesis.graph.CSRGraph;
+import eu.kickuth.mthesis.graph.Graph;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.osmosis.core.container.v0_6.*;
+import org.openstreetmap.osmosis.core.domain.v0_6.*;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+import org.openstreetmap.osmosis.osmbinary.file.BlockOutputStream;
+import org.openstreetmap.osmosis.pbf2.v0_6.PbfReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static eu.kickuth.mthesis.utils.Settings.PREPROCESSING_MEMORY_BUDGET_MB;
+import static eu.kickuth.mthesis.utils.Settings.PREPROCESSING_SPILL_DIR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OSMPreprocessorTest {
+
+    // road grid of the test extract
+    static final int GRID_SIZE = 70;
+    static final long FIRST_ROAD_NODE = 10_000_000_000L;  // beyond int, like recent OSM IDs
+    static final int OFF_ROAD_NODES = 500;
+
+    private static final OsmUser user = new OsmUser(0, "");
+    private static final Date date = new Date(0L);
+
+    @TempDir
+    File dir;
+
+    @Test
+    void fusedTest() throws IOException {
+        File dump = new File(dir, "test.osm.pbf");
+        writeDump(dump, createExtract());
+
+        for (boolean fakeSigns : new boolean[] {false, true}) {
+            Graph twoPass = readGraph(preprocess(dump, false, fakeSigns));
+            Graph fused = readGraph(preprocess(dump, true, fakeSigns));
+            assertSameGraph(twoPass, fused);
+
+            assertTrue(fused.getCSRGraph().getEdgeCount() > 0);
+            if (!fakeSigns) {
+                // only junctions and sign nodes are kept
+                assertTrue(fused.nodes.size() < GRID_SIZE * GRID_SIZE);
+            }
+        }
+    }
+
+
+    @Test
+    void spillTest() throws IOException {
+        File dump = new File(dir, "test.osm.pbf");
+        writeDump(dump, createExtract());
+
+        for (boolean fakeSigns : new boolean[] {false, true}) {
+            Graph inMemory = readGraph(preprocess(dump, true, fakeSigns));
+            // no heap for node data: all of it is memory mapped from temporary files
+            SpillableNodeStore.setMemoryBudget(0, dir);
+            try {
+                assertSameGraph(inMemory, readGraph(preprocess(dump, true, fakeSigns)));
+                assertSameGraph(inMemory, readGraph(preprocess(dump, false, fakeSigns)));
+            } finally {
+                SpillableNodeStore.setMemoryBudget(PREPROCESSING_MEMORY_BUDGET_MB * (1L << 20),
+                        PREPROCESSING_SPILL_DIR);
+            }
+        }
+    }
+
+
+    /**
+     * Preprocess an extract and simplify its roads.
+     * @param dump the extract
+     * @param fused simplify in the same pass, instead of reading an intermediate file?
+     * @param fakeSigns generate fake signs, instead of using the real ones?
+     * @return the preprocessed file
+     * @throws IOException if the extract could not be read
+     */
+    private File preprocess(File dump, boolean fused, boolean fakeSigns) throws IOException {
+        File output = File.createTempFile("processed-", ".osm.pbf", dir);
+        if (fused) {
+            read(dump, new OSMPreprocessor(dump, null, new OSMRoadSimplification(output), null, fakeSigns));
+        } else {
+            File temporary = File.createTempFile("temp-", ".osm.pbf", dir);
+            read(dump, new OSMPreprocessor(dump, temporary, null, null, fakeSigns));
+            read(temporary, new OSMRoadSimplification(output));
+        }
+        return output;
+    }
+
+    static void read(File file, Sink sink) {
+        PbfReader reader = new PbfReader(file, 2);
+        reader.setSink(sink);
+        reader.run();
+    }
+
+    static Graph readGraph(File file) {
+        OSMReader graphReader = new OSMReader();
+        read(file, graphReader);
+        return graphReader.getOsmGraph();
+    }
+
+    /**
+     * Check that two graphs have the same nodes and edges, in the same order.
+     */
+    static void assertSameGraph(Graph expected, Graph actual) {
+        assertEquals(expected.nodes.size(), actual.nodes.size());
+        for (int id = 0; id < expected.nodes.size(); id++) {
+            eu.kickuth.mthesis.graph.Node expectedNode = expected.getNode(id);
+            eu.kickuth.mthesis.graph.Node actualNode = actual.getNode(id);
+            assertEquals(expectedNode.lat, actualNode.lat);
+            assertEquals(expectedNode.lon, actualNode.lon);
+            assertEquals(expectedNode.type, actualNode.type);
+        }
+
+        CSRGraph expectedEdges = expected.getCSRGraph();
+        CSRGraph actualEdges = actual.getCSRGraph();
+        assertEquals(expectedEdges.getEdgeCount(), actualEdges.getEdgeCount());
+        for (int v = 0; v < expectedEdges.getNodeCount(); v++) {
+            assertEquals(expectedEdges.outBegin(v), actualEdges.outBegin(v));
+            assertEquals(expectedEdges.outEnd(v), actualEdges.outEnd(v));
+        }
+        for (int e = 0; e < expectedEdges.getEdgeCount(); e++) {
+            assertEquals(expectedEdges.outTarget(e), actualEdges.outTarget(e));
+            assertEquals(expectedEdges.outCost(e), actualEdges.outCost(e));
+        }
+    }
+
+
+    /**
+     * Create a small extract: a grid of roads of different types and directions, with traffic signs on some nodes,
+     * and footways over nodes off the road network. Large enough for several pipeline batches.
+     * @return the extract's entities, in the order of a PBF file
+     */
+    static List<EntityContainer> createExtract() {
+        Random random = new Random(0);
+        List<EntityContainer> entities = new ArrayList<>();
+        entities.add(new BoundContainer(new Bound(8.8, 8, 50.8, 50, "test")));
+
+        // nodes off the road network precede the roads' nodes, as they have lower IDs
+        for (int i = 0; i < OFF_ROAD_NODES; i++) {
+            entities.add(new NodeContainer(createNode(offRoadNodeId(i),
+                    50 + random.nextDouble() * 0.7, 8 + random.nextDouble() * 0.7)));
+        }
+        for (int i = 0; i < GRID_SIZE; i++) {
+            for (int j = 0; j < GRID_SIZE; j++) {
+                Node node = createNode(roadNodeId(i, j),
+                        50 + 0.01 * i + random.nextDouble() * 0.002, 8 + 0.01 * j + random.nextDouble() * 0.002);
+                int index = i * GRID_SIZE + j;
+                if (index % 7 == 0) {
+                    node.getTags().add(new Tag("traffic_sign", "DE:274"));
+                } else if (index % 13 == 0) {
+                    node.getTags().add(new Tag("traffic_sign", "city_limit"));
+                } else if (index % 17 == 0) {
+                    node.getTags().add(new Tag("traffic_sign", "DE:205;DE:206"));
+                }
+                entities.add(new NodeContainer(node));
+            }
+        }
+
+        long wayId = 1;
+        for (int i = 0; i < GRID_SIZE; i++) {
+            List<Tag> tags = new ArrayList<>();
+            if (i % 10 == 5) {
+                tags.add(new Tag("highway", "footway"));
+            } else {
+                tags.add(new Tag("highway", "residential"));
+            }
+            if (i % 3 == 0) {
+                tags.add(new Tag("oneway", "yes"));
+            }
+            if (i % 10 == 7) {
+                tags.add(new Tag("access", "private"));
+            }
+            List<WayNode> wayNodes = new ArrayList<>();
+            for (int j = 0; j < GRID_SIZE; j++) {
+                wayNodes.add(new WayNode(roadNodeId(i, j)));
+            }
+            entities.add(new WayContainer(createWay(wayId++, tags, wayNodes)));
+        }
+        for (int j = 0; j < GRID_SIZE; j += 2) {  // sparser columns, so rows have nodes between junctions
+            List<Tag> tags = new ArrayList<>();
+            tags.add(new Tag("highway", j % 4 == 0 ? "secondary" : "tertiary_link"));
+            if (j % 8 == 2) {
+                tags.add(new Tag("junction", "roundabout"));
+            }
+            List<WayNode> wayNodes = new ArrayList<>();
+            for (int i = 0; i < GRID_SIZE; i++) {
+                wayNodes.add(new WayNode(roadNodeId(i, j)));
+            }
+            if (j == 10) {
+                wayNodes.add(new WayNode(1));  // cut off at the extract border
+            }
+            entities.add(new WayContainer(createWay(wayId++, tags, wayNodes)));
+        }
+        for (int i = 0; i + 1 < OFF_ROAD_NODES; i += 10) {
+            List<Tag> tags = new ArrayList<>();
+            tags.add(new Tag("highway", "footway"));
+            List<WayNode> wayNodes = new ArrayList<>();
+            wayNodes.add(new WayNode(offRoadNodeId(i)));
+            wayNodes.add(new WayNode(offRoadNodeId(i + 1)));
+            wayNodes.add(new WayNode(roadNodeId(i % GRID_SIZE, 1)));
+            entities.add(new WayContainer(createWay(wayId++, tags, wayNodes)));
+        }
+        return entities;
+    }
+
+    static long roadNodeId(int row, int column) {
+        return FIRST_ROAD_NODE + 3L * (row * GRID_SIZE + column);
+    }
+
+    static long offRoadNodeId(int index) {
+        return 1000 + 5L * index;
+    }
+
+    static Node createNode(long id, double lat, double lon) {
+        return new Node(new CommonEntityData(id, 1, date, user, 0, new ArrayList<>()), lat, lon);
+    }
+
+    static Way createWay(long id, List<Tag> tags, List<WayNode> wayNodes) {
+        return new Way(new CommonEntityData(id, 1, date, user, 0, tags), wayNodes);
+    }
+
+    static void writeDump(File file, List<EntityContainer> entities) throws IOException {
+        Sink writer = new OsmosisSerializer(new BlockOutputStream(new FileOutputStream(file)));
+        writer.initialize(Collections.emptyMap());
+        entities.forEach(writer::process);
+        writer.complete();
+        writer.close();
+    }
+}
@@ -0,0 +1,154 @@
+package eu.kickuth.mthesis.utils;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.task.v0_6.Sink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PipelinedSinkTest {
+
+    @Test
+    void orderTest() {
+        // several full batches and a partial one
+        CollectingSink downstream = new CollectingSink(-1);
+        PipelinedSink pipeline = new PipelinedSink(downstream, "test-writer");
+        pipeline.initialize(Collections.emptyMap());
+        for (int i = 0; i < 10_000; i++) {
+            pipeline.process(createNode(i));
+        }
+        pipeline.complete();
+        pipeline.close();
+
+        assertTrue(downstream.initialized);
+        assertTrue(downstream.completed);
+        assertTrue(downstream.closed);
+        assertEquals(10_000, downstream.ids.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, (long) downstream.ids.get(i));
+        }
+    }
+
+    @Test
+    void emptyTest() {
+        CollectingSink downstream = new CollectingSink(-1);
+        PipelinedSink pipeline = new PipelinedSink(downstream, "test-writer");
+        pipeline.initialize(Collections.emptyMap());
+        pipeline.complete();
+
+        assertTrue(downstream.completed);
+        assertTrue(downstream.ids.isEmpty());
+    }
+
+    @Test
+    void failureTest() {
+        // the downstream sink fails in the second batch: the failure reaches the producer, at the latest on completion
+        CollectingSink downstream = new CollectingSink(5000);
+        PipelinedSink pipeline = new PipelinedSink(downstream, "test-writer");
+        pipeline.initialize(Collections.emptyMap());
+        RuntimeException thrown = assertThrows(RuntimeException.class, () -> {
+            for (int i = 0; i < 200_000; i++) {
+                pipeline.process(createNode(i));
+            }
+            pipeline.complete();
+        });
+
+        assertSame(downstream.failure, thrown);
+        assertFalse(downstream.completed);
+        assertEquals(5000, downstream.ids.size());
+    }
+
+    @Test
+    void errorTest() {
+        // errors are not lost with the worker thread: the producer gets them wrapped, instead of blocking forever
+        CollectingSink downstream = new CollectingSink(5000, new AssertionError("Test error"));
+        PipelinedSink pipeline = new PipelinedSink(downstream, "test-writer");
+        pipeline.initialize(Collections.emptyMap());
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> {
+            for (int i = 0; i < 200_000; i++) {
+                pipeline.process(createNode(i));
+            }
+            pipeline.complete();
+        });
+
+        assertSame(downstream.failure, thrown.getCause());
+        assertFalse(downstream.completed);
+    }
+
+
+    private static EntityContainer createNode(long id) {
+        return new NodeContainer(new Node(new CommonEntityData(
+                id, 1, new Date(0L), new OsmUser(0, ""), 0, new ArrayList<>()), 50, 8));
+    }
+
+
+    /**
+     * Sink remembering the IDs of processed entities. Fails on a given entity.
+     */
+    private static final class CollectingSink implements Sink {
+
+        private final List<Long> ids = new ArrayList<>();
+        private final long failAt;
+        private final Throwable failure;
+        private volatile boolean initialized = false;
+        private volatile boolean completed = false;
+        private volatile boolean closed = false;
+
+        /**
+         * @param failAt ID of the entity to fail on, -1 to never fail
+         */
+        CollectingSink(long failAt) {
+            this(failAt, new IllegalStateException("Test failure"));
+        }
+
+        /**
+         * @param failAt ID of the entity to fail on, -1 to never fail
+         * @param failure exception or error to fail with
+         */
+        CollectingSink(long failAt, Throwable failure) {
+            this.failAt = failAt;
+            this.failure = failure;
+        }
+
+        @Override
+        public void initialize(Map<String, Object> metaData) {
+            initialized = true;
+        }
+
+        @Override
+        public void process(EntityContainer entityContainer) {
+            long id = entityContainer.getEntity().getId();
+            if (id == failAt) {
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+            ids.add(id);
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
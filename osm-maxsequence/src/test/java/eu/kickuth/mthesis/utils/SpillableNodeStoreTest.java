@@ -0,0 +1,72 @@
+package eu.kickuth.mthesis.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static eu.kickuth.mthesis.utils.Settings.PREPROCESSING_MEMORY_BUDGET_MB;
+import static eu.kickuth.mthesis.utils.Settings.PREPROCESSING_SPILL_DIR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SpillableNodeStoreTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void heapTest() {
+        try (SpillableNodeStore store = new SpillableNodeStore("test")) {
+            fillAndCheck(store);
+        }
+    }
+
+    @Test
+    void spillTest() {
+        SpillableNodeStore.setMemoryBudget(0, dir);
+        try {
+            try (SpillableNodeStore store = new SpillableNodeStore("test")) {
+                fillAndCheck(store);
+                assertEquals(1, countSpillFiles());
+            }
+            // the temporary file is removed once the store is closed
+            assertEquals(0, countSpillFiles());
+        } finally {
+            SpillableNodeStore.setMemoryBudget(PREPROCESSING_MEMORY_BUDGET_MB * (1L << 20), PREPROCESSING_SPILL_DIR);
+        }
+    }
+
+
+    /**
+     * Set random nodes spread over several chunks, and check them and some unset nodes.
+     */
+    private static void fillAndCheck(SpillableNodeStore store) {
+        Random random = new Random(0);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            int id = random.nextInt(3 << 20);
+            store.set(id, id * 1e-6, -id * 1e-6, i + 1);
+            expected.put(id, i + 1);
+        }
+        expected.forEach((id, value) -> {
+            assertEquals(id * 1e-6, store.getLat(id));
+            assertEquals(-id * 1e-6, store.getLon(id));
+            assertEquals((int) value, store.getValue(id));
+        });
+        for (int i = 0; i < 1000; i++) {
+            int id = random.nextInt(4 << 20);
+            if (!expected.containsKey(id)) {
+                assertEquals(0, store.getLat(id));
+                assertEquals(0, store.getValue(id));
+            }
+        }
+    }
+
+    private int countSpillFiles() {
+        File[] spillFiles = dir.listFiles((directory, name) -> name.endsWith(".spill"));
+        return spillFiles == null ? 0 : spillFiles.length;
+    }
+}
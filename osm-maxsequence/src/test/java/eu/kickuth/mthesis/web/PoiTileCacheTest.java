@@ -0,0 +1,104 @@
+package eu.kickuth.mthesis.web;
+
+import eu.kickuth.mthesis.graph.Graph;
+import eu.kickuth.mthesis.graph.Node;
+import eu.kickuth.mthesis.utils.GeoJSON;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static eu.kickuth.mthesis.utils.Settings.POI_TILE_CLUSTER_ZOOM;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PoiTileCacheTest {
+
+    // Munich city centre: tile 10/544/355 and 13/4359/2842
+    private final Node single = new Node(0, 48.1374, 11.5755, "FC 1");
+    // three POIs in tile 13/4359/2843, and in the same cluster cell of tile 10/544/355. Their centroid is exact.
+    private final Node[] cluster = {
+            new Node(1, 48.125, 11.5625, "FC 2"),
+            new Node(2, 48.1259765625, 11.56640625, "FC 3"),
+            new Node(3, 48.1240234375, 11.55859375, "FC 4")};
+    private final Node far = new Node(4, 40, -120, "FC 5");
+
+    private final Graph g = new Graph(new double[]{50, 30, -130, 20});
+
+    @BeforeEach
+    void setUp() {
+        g.addNode(single);
+        for (Node poi : cluster) {
+            g.addNode(poi);
+        }
+        g.addNode(far);
+        g.freeze();
+    }
+
+    @Test
+    void tileTest() {
+        assertEquals(13, POI_TILE_CLUSTER_ZOOM);  // the tiles below assume this zoom lists POIs
+        PoiTileCache tiles = new PoiTileCache(g);
+
+        assertEquals(GeoJSON.createPOIList(Collections.singletonList(single)), tiles.getTile(13, 4359, 2842).json);
+        String clusterTile = tiles.getTile(13, 4359, 2843).json;
+        for (Node poi : cluster) {
+            assertTrue(clusterTile.contains("\"id\":" + poi.id + "}"));
+        }
+        assertFalse(clusterTile.contains("\"id\":" + single.id + "}"));
+        assertEquals("[]", tiles.getTile(13, 4358, 2843).json);
+
+        assertThrows(IllegalArgumentException.class, () -> tiles.getTile(13, 8192, 0));
+        assertThrows(IllegalArgumentException.class, () -> tiles.getTile(-1, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> tiles.getTile(PoiTileCache.MAX_ZOOM + 1, 0, 0));
+    }
+
+    @Test
+    void clusterTest() {
+        PoiTileCache tiles = new PoiTileCache(g);
+
+        // the lone POI is listed, the other three become one cluster at their centroid
+        assertEquals(GeoJSON.createPOIClusterList(Collections.singletonList(single),
+                Collections.singletonList(new double[]{48.125, 11.5625, 3})), tiles.getTile(10, 544, 355).json);
+
+        // at zoom 0, the four POIs in Germany share a cell
+        String world = tiles.getTile(0, 0, 0).json;
+        assertTrue(world.contains("\"count\":4}"));
+        assertTrue(world.contains("\"id\":" + far.id + "}"));
+    }
+
+    @Test
+    void evictionTest() {
+        PoiTileCache tiles = new PoiTileCache(g, 2);
+        PoiTileCache.Tile a = tiles.getTile(10, 544, 355);
+        PoiTileCache.Tile b = tiles.getTile(13, 4359, 2842);
+        assertSame(a, tiles.getTile(10, 544, 355));  // a is now more recently used than b
+
+        tiles.getTile(0, 0, 0);
+        assertSame(a, tiles.getTile(10, 544, 355));
+        PoiTileCache.Tile recreated = tiles.getTile(13, 4359, 2842);
+        assertNotSame(b, recreated);
+        assertEquals(b.json, recreated.json);
+        assertEquals(b.etag, recreated.etag);
+    }
+
+    @Test
+    void etagTest() {
+        PoiTileCache tiles = new PoiTileCache(g);
+        PoiTileCache.Tile tile = tiles.getTile(10, 544, 355);
+        assertNotEquals(tile.etag, tiles.getTile(13, 4359, 2842).etag);
+
+        assertTrue(tile.matches(tile.etag));
+        assertTrue(tile.matches("W/" + tile.etag));
+        assertTrue(tile.matches("\"other\", " + tile.etag));
+        assertTrue(tile.matches("*"));
+        assertFalse(tile.matches(null));
+        assertFalse(tile.matches("\"other\""));
+        assertFalse(tile.matches(tile.etag.substring(1, tile.etag.length() - 1)));  // unquoted
+    }
+}
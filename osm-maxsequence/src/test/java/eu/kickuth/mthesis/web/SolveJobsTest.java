@@ -0,0 +1,140 @@
+package eu.kickuth.mthesis.web;
+
+import eu.kickuth.mthesis.graph.Graph;
+import eu.kickuth.mthesis.graph.Node;
+import eu.kickuth.mthesis.solvers.SPSolver;
+import eu.kickuth.mthesis.solvers.Solver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SolveJobsTest {
+
+    private final Graph g = new Graph(new double[]{90, -90, -180, 180});
+    private final AtomicInteger createdSolvers = new AtomicInteger();
+    private final Supplier<Solver> solverFactory = () -> {
+        createdSolvers.incrementAndGet();
+        return new SPSolver(g);
+    };
+
+    // the blocking task holds its thread until released, or until it is interrupted
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Function<Solver, String> blockingTask = solver -> {
+        started.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            throw new CancellationException("interrupted");  // like Solver.checkCancelled
+        }
+        return "blocking";
+    };
+
+    @BeforeEach
+    void setUp() {
+        g.addNode(new Node(0, 0, 0, null));
+    }
+
+    @Test
+    void doneTest() throws InterruptedException {
+        SolveJobs<String> jobs = new SolveJobs<>(1, 1, 60_000);
+        SolveJobs.Job<String> job = jobs.submit(solverFactory, solver -> "done");
+        assertEquals("done", job.awaitResult());
+        assertEquals(SolveJobs.State.DONE, job.getState());
+        assertEquals(1, job.getProgress());
+        assertSame(job, jobs.getJob(job.id));
+        assertFalse(job.cancel());
+    }
+
+    @Test
+    void cancelQueuedTest() throws InterruptedException {
+        SolveJobs<String> jobs = new SolveJobs<>(1, 1, 60_000);
+        SolveJobs.Job<String> running = jobs.submit(solverFactory, blockingTask);
+        started.await();
+        SolveJobs.Job<String> queued = jobs.submit(solverFactory, solver -> "queued");
+        assertEquals(SolveJobs.State.QUEUED, queued.getState());
+
+        assertTrue(queued.cancel());
+        assertEquals(SolveJobs.State.CANCELLED, queued.getState());
+        assertNull(queued.awaitResult());
+
+        release.countDown();
+        assertEquals("blocking", running.awaitResult());
+        // the cancelled job never created its solver
+        assertEquals(1, createdSolvers.get());
+    }
+
+    @Test
+    void cancelRunningTest() throws InterruptedException {
+        SolveJobs<String> jobs = new SolveJobs<>(1, 1, 60_000);
+        SolveJobs.Job<String> running = jobs.submit(solverFactory, blockingTask);
+        started.await();
+        assertEquals(SolveJobs.State.RUNNING, running.getState());
+
+        assertTrue(running.cancel());
+        // waits until the task noticed the interruption
+        assertNull(running.awaitResult());
+        assertEquals(SolveJobs.State.CANCELLED, running.getState());
+
+        // the thread is free for further jobs
+        assertEquals("next", jobs.submit(solverFactory, solver -> "next").awaitResult());
+    }
+
+    @Test
+    void failureTest() throws InterruptedException {
+        SolveJobs<String> jobs = new SolveJobs<>(1, 1, 60_000);
+        SolveJobs.Job<String> job = jobs.submit(solverFactory, solver -> {
+            throw new IllegalStateException("Test failure");
+        });
+        assertNull(job.awaitResult());
+        assertEquals(SolveJobs.State.FAILED, job.getState());
+    }
+
+    @Test
+    void rejectionTest() throws InterruptedException {
+        SolveJobs<String> jobs = new SolveJobs<>(1, 1, 60_000);
+        SolveJobs.Job<String> running = jobs.submit(solverFactory, blockingTask);
+        started.await();
+        SolveJobs.Job<String> queued = jobs.submit(solverFactory, solver -> "queued");
+
+        // one job runs and one waits: the queue is full
+        assertThrows(RejectedExecutionException.class, () -> jobs.submit(solverFactory, solver -> "rejected"));
+
+        release.countDown();
+        assertEquals("blocking", running.awaitResult());
+        assertEquals("queued", queued.awaitResult());
+    }
+
+    @Test
+    void expiryTest() throws InterruptedException {
+        SolveJobs<String> jobs = new SolveJobs<>(1, 1, 0);
+        SolveJobs.Job<String> finished = jobs.submit(solverFactory, solver -> "finished");
+        assertEquals("finished", finished.awaitResult());
+        Thread.sleep(5);
+
+        // finished jobs expire on the next submission, unfinished ones are kept
+        SolveJobs.Job<String> running = jobs.submit(solverFactory, blockingTask);
+        assertNull(jobs.getJob(finished.id));
+        started.await();
+        SolveJobs.Job<String> queued = jobs.submit(solverFactory, solver -> "queued");
+        assertNotNull(jobs.getJob(running.id));
+        assertNotNull(jobs.getJob(queued.id));
+
+        release.countDown();
+        assertEquals("queued", queued.awaitResult());
+    }
+}